@@ -0,0 +1,63 @@
+package ipopprojekt.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Helper functions for the benchmarks
+ */
+public final class BenchmarkUtils {
+	private BenchmarkUtils() {
+	
+	}
+	
+	/**
+	 * Returns the given percentile of the given values
+	 * @param values The values, will be sorted
+	 * @param percentile The percentile, between 0 and 100
+	 */
+	public static long percentile(long[] values, double percentile) {
+		if (values.length == 0) {
+			return 0;
+		}
+		
+		Arrays.sort(values);
+		int index = (int)Math.ceil(percentile / 100.0 * values.length) - 1;
+		return values[Math.max(0, Math.min(values.length - 1, index))];
+	}
+	
+	/**
+	 * Returns the resident memory of the process in kilobytes.
+	 * Falls back to the used heap if the resident memory is not available.
+	 */
+	public static long residentMemoryKb() {
+		try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", ""));
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+		
+		}
+		
+		Runtime runtime = Runtime.getRuntime();
+		return (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+	}
+	
+	/**
+	 * Returns the used heap after a garbage collection in kilobytes
+	 */
+	public static long usedHeapKb() {
+		Runtime runtime = Runtime.getRuntime();
+		
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		
+		return (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+	}
+}
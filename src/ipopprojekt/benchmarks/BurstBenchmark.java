@@ -0,0 +1,152 @@
+package ipopprojekt.benchmarks;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import ipopprojekt.client.InMemoryNetwork;
+import ipopprojekt.client.P2PClient;
+import ipopprojekt.client.RelayStrategy;
+import ipopprojekt.client.SendQueueMetrics;
+import ipopprojekt.server.ChatNetwork;
+import ipopprojekt.server.TopologyPolicy;
+import ipopprojekt.util.ExecutionBackend;
+
+/**
+ * Measures how a room handles a client that pastes many messages at once, with and without pacing.
+ * The clients are connected through an in-memory network where the link to each client has a limited bandwidth and buffer,
+ * and the datagrams beyond that are dropped. The messages are sent without linger time, so each message is a datagram.
+ * Reports how many messages arrived, how long it took, how many datagrams the links dropped and how much was asked for again.
+ * Usage: BurstBenchmark [clients] [messages] [link bandwidth in KB/s]
+ */
+public class BurstBenchmark {
+	private static final int BASE_PORT = 22000;
+	private static final long TIMEOUT_MS = 20000;
+	private static final int LINK_BUFFER_SIZE = 64 * 1024;
+	
+	private final InMemoryNetwork network = new InMemoryNetwork(1337);
+	private final P2PClient[] clients;
+	private final LongAdder numDelivered = new LongAdder();
+	
+	/**
+	 * Creates the room
+	 * @param numClients The number of clients
+	 * @param linkRate The bandwidth of the link to each client in bytes per second
+	 */
+	private BurstBenchmark(int numClients, double linkRate) {
+		this.network.setLinks(linkRate, LINK_BUFFER_SIZE);
+		this.clients = new P2PClient[numClients];
+		
+		for (int i = 0; i < numClients; i++) {
+			this.clients[i] = new P2PClient(
+				this.network.bind(address(i)),
+				i,
+				"Client " + i,
+				message -> this.numDelivered.increment(),
+				ExecutionBackend.PLATFORM_THREADS);
+		}
+		
+		ChatNetwork topology = new ChatNetwork(TopologyPolicy.fixed(1), 1337);
+		for (int i = 0; i < numClients; i++) {
+			topology.addClient(i);
+		}
+		
+		for (int i = 0; i < numClients; i++) {
+			for (int neighbor : topology.getNeighbors(i)) {
+				this.clients[i].addNeighbor(neighbor, address(neighbor));
+				this.clients[neighbor].addNeighbor(i, address(i));
+			}
+		}
+	}
+	
+	/**
+	 * Returns the address of the given client
+	 * @param clientId The id of the client
+	 */
+	private static InetSocketAddress address(int clientId) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), BASE_PORT + clientId);
+	}
+	
+	/**
+	 * Pastes the messages from the first client, and prints the results
+	 * @param name The name of the setting
+	 * @param numMessages The number of messages
+	 */
+	private void run(String name, int numMessages) throws InterruptedException {
+		char[] text = new char[200];
+		Arrays.fill(text, 'x');
+		
+		//Every client learns about the writer first, as messages before the first one received are not repaired
+		this.clients[0].send("Hello");
+		long expected = this.clients.length - 1;
+		while (this.numDelivered.sum() < expected) {
+			Thread.sleep(1);
+		}
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < numMessages; i++) {
+			this.clients[0].send(new String(text));
+		}
+		
+		expected += (long)numMessages * (this.clients.length - 1);
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (this.numDelivered.sum() < expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		
+		double seconds = (System.nanoTime() - start) / 1E9;
+		long numRequested = 0;
+		long numDecreases = 0;
+		long numQueueDrops = 0;
+		int maxQueuedBytes = 0;
+		
+		for (P2PClient client : this.clients) {
+			numRequested += client.getMetrics().getNumRequested();
+			
+			for (SendQueueMetrics metrics : client.getSendQueueMetrics().values()) {
+				numDecreases += metrics.getNumDecreases();
+				numQueueDrops += metrics.getNumDropped();
+				maxQueuedBytes = Math.max(maxQueuedBytes, metrics.getMaxQueuedBytes());
+			}
+		}
+		
+		System.out.printf(
+			"%-11s delivered %7.3f%% in %5.2f s, %7d datagrams dropped by links, %7d messages asked for again, %4d rate decreases, max send queue %7d bytes, %5d dropped by send queues%n",
+			name,
+			100.0 * (this.numDelivered.sum() - (this.clients.length - 1)) / ((long)numMessages * (this.clients.length - 1)),
+			seconds,
+			this.network.getNumOverflows(),
+			numRequested,
+			numDecreases,
+			maxQueuedBytes,
+			numQueueDrops);
+	}
+	
+	/**
+	 * Closes the clients
+	 */
+	private void close() {
+		for (P2PClient client : this.clients) {
+			client.close();
+		}
+	}
+	
+	public static void main(String[] args) throws InterruptedException {
+		int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int numMessages = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		double linkRate = 1024 * (args.length > 2 ? Integer.parseInt(args[2]) : 512);
+		
+		System.setProperty(P2PClient.LINGER_PROPERTY, "0");
+		for (boolean pacing : new boolean[] { false, true }) {
+			System.setProperty(P2PClient.PACING_PROPERTY, Boolean.toString(pacing));
+			System.setProperty(RelayStrategy.PROPERTY, "flood");
+			
+			BurstBenchmark benchmark = new BurstBenchmark(numClients, linkRate);
+			benchmark.run(pacing ? "Pacing:" : "No pacing:", numMessages);
+			benchmark.close();
+		}
+		
+		System.exit(0);
+	}
+}
@@ -0,0 +1,33 @@
+package ipopprojekt.benchmarks;
+
+import ipopprojekt.server.ChatNetwork;
+
+/**
+ * Reports the memory used per node by the chat network.
+ * Usage: ChatNetworkFootprint [nodes] [max neighbors per node]
+ */
+public class ChatNetworkFootprint {
+	public static void main(String[] args) {
+		int numNodes = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int maxNeighbors = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		
+		long heapBefore = BenchmarkUtils.usedHeapKb();
+		ChatNetwork network = new ChatNetwork(maxNeighbors, 1337);
+		for (int i = 0; i < numNodes; i++) {
+			network.addClient(i);
+		}
+		long heapAfter = BenchmarkUtils.usedHeapKb();
+		
+		System.out.printf(
+			"%d nodes, %d neighbors per node: measured %.1f bytes/node, estimated %.1f bytes/node%n",
+			numNodes,
+			maxNeighbors,
+			(heapAfter - heapBefore) * 1024.0 / numNodes,
+			network.estimatedMemoryBytes() / (double)numNodes);
+		
+		//Keep the network reachable until it has been measured
+		if (!network.exists(0)) {
+			System.out.println("Missing node");
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package ipopprojekt.benchmarks;
+
+import ipopprojekt.server.ChatNetwork;
+import ipopprojekt.server.TopologyPolicy;
+
+/**
+ * Measures the number of joins and leaves per second in a large chat network.
+ * The network is first filled, and then random clients leave and new clients join so that the size stays the same.
+ * With a connectivity of 2 the network is repaired before each leave, which a server does in the background,
+ * so the time of the leaves is what the clients wait for.
+ * Usage: ChurnBenchmark [clients] [neighbors per client] [operations] [connectivity]
+ */
+public class ChurnBenchmark {
+	public static void main(String[] args) {
+		int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int maxNeighbors = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		int numOperations = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+		int connectivity = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+		
+		ChatNetwork network = new ChatNetwork(TopologyPolicy.fixed(maxNeighbors), connectivity, 1337);
+		long start = System.nanoTime();
+		for (int i = 0; i < numClients; i++) {
+			network.addClient(i);
+		}
+		
+		System.out.printf(
+			"Filled %d clients: %.0f joins/s%n",
+			numClients,
+			numClients / ((System.nanoTime() - start) / 1E9));
+		
+		int nextClientId = numClients;
+		long leaveTime = 0;
+		long joinTime = 0;
+		long repairTime = 0;
+		for (int i = 0; i < numOperations; i++) {
+			if (network.needsRepair()) {
+				start = System.nanoTime();
+				network.repair();
+				repairTime += System.nanoTime() - start;
+			}
+			
+			int clientId = network.randomClientInNetwork();
+			
+			start = System.nanoTime();
+			network.removeClient(clientId);
+			leaveTime += System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			network.addClient(nextClientId++);
+			joinTime += System.nanoTime() - start;
+		}
+		
+		System.out.printf("Leaves: %.0f/s (%.1f us/leave)%n", numOperations / (leaveTime / 1E9), leaveTime / 1E3 / numOperations);
+		System.out.printf("Joins: %.0f/s (%.1f us/join)%n", numOperations / (joinTime / 1E9), joinTime / 1E3 / numOperations);
+		if (connectivity > 1) {
+			System.out.printf("Background repairs: %.1f us/repair%n", repairTime / 1E3 / numOperations);
+			network.repair();
+		}
+		
+		System.out.printf("Connected: %s%n", network.isConnected());
+	}
+}
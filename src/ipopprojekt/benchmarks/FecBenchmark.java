@@ -0,0 +1,166 @@
+package ipopprojekt.benchmarks;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ipopprojekt.client.ChatMessage;
+import ipopprojekt.client.InMemoryNetwork;
+import ipopprojekt.client.P2PClient;
+import ipopprojekt.client.RelayStrategy;
+import ipopprojekt.server.ChatNetwork;
+import ipopprojekt.server.TopologyPolicy;
+import ipopprojekt.util.ExecutionBackend;
+
+/**
+ * Compares forward error correction to repairing lost messages with NACKs only, on a network that loses datagrams.
+ * A room of P2P clients is connected through an in-memory network, and random clients send a message every few milliseconds.
+ * Each client gets one link when it joins, so the links form a tree and every lost datagram has to be repaired,
+ * and the messages are flooded over the links so the relays do not change the tree.
+ * Reports the ratio of the messages that reached the clients, the delivery latency and the datagrams sent per message,
+ * for each loss rate and block size of the forward error correction.
+ * Usage: FecBenchmark [clients] [messages]
+ */
+public class FecBenchmark {
+	private static final int BASE_PORT = 21000;
+	private static final long SEND_INTERVAL_MS = 5;
+	private static final long SETTLE_MS = 2000;
+	
+	private final P2PClient[] clients;
+	private final InMemoryNetwork network = new InMemoryNetwork(1337);
+	private final long[] latencies;
+	private final AtomicLong numDelivered = new AtomicLong();
+	
+	/**
+	 * Creates the room
+	 * @param numClients The number of clients
+	 * @param numMessages The number of messages that will be sent
+	 */
+	private FecBenchmark(int numClients, int numMessages) {
+		this.clients = new P2PClient[numClients];
+		this.latencies = new long[numMessages * (numClients - 1)];
+		
+		for (int i = 0; i < numClients; i++) {
+			this.clients[i] = new P2PClient(
+				this.network.bind(address(i)),
+				i,
+				"Client " + i,
+				this::delivered,
+				ExecutionBackend.PLATFORM_THREADS);
+		}
+		
+		ChatNetwork topology = new ChatNetwork(TopologyPolicy.fixed(1), 1337);
+		for (int i = 0; i < numClients; i++) {
+			topology.addClient(i);
+		}
+		
+		for (int i = 0; i < numClients; i++) {
+			for (int neighbor : topology.getNeighbors(i)) {
+				this.clients[i].addNeighbor(neighbor, address(neighbor));
+				this.clients[neighbor].addNeighbor(i, address(i));
+			}
+		}
+	}
+	
+	/**
+	 * Returns the address of the given client
+	 * @param clientId The id of the client
+	 */
+	private static InetSocketAddress address(int clientId) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), BASE_PORT + clientId);
+	}
+	
+	/**
+	 * Records the latency of a delivered message, which holds the time it was sent
+	 * @param message The message
+	 */
+	private void delivered(ChatMessage message) {
+		long latency = System.nanoTime() - Long.parseLong(message.getMessage());
+		long index = this.numDelivered.getAndIncrement();
+		
+		if (index < this.latencies.length) {
+			this.latencies[(int)index] = latency / 1000;
+		}
+	}
+	
+	/**
+	 * Returns the number of datagrams received by all clients
+	 */
+	private long numDatagrams() {
+		long total = 0;
+		for (P2PClient client : this.clients) {
+			total += client.getNumDatagramsReceived();
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Sends the messages with the given loss rate, and prints the results
+	 * @param name The name of the setting
+	 * @param lossRate The ratio of the datagrams that are lost
+	 * @param numMessages The number of messages
+	 */
+	private void run(String name, double lossRate, int numMessages) throws InterruptedException {
+		Random random = new Random(4711);
+		
+		//Warm up before losing datagrams
+		for (int i = 0; i < 100; i++) {
+			this.clients[random.nextInt(this.clients.length)].send(Long.toString(System.nanoTime()));
+			Thread.sleep(1);
+		}
+		
+		Thread.sleep(500);
+		this.numDelivered.set(0);
+		long startDatagrams = this.numDatagrams();
+		this.network.setLossRate(lossRate);
+		
+		for (int i = 0; i < numMessages; i++) {
+			this.clients[random.nextInt(this.clients.length)].send(Long.toString(System.nanoTime()));
+			Thread.sleep(SEND_INTERVAL_MS);
+		}
+		
+		Thread.sleep(SETTLE_MS);
+		
+		long delivered = Math.min(this.numDelivered.get(), this.latencies.length);
+		long[] latencies = Arrays.copyOf(this.latencies, (int)delivered);
+		System.out.printf(
+			"%-22s delivered %7.3f%%, latency p50 %6.2f ms, p99 %6.2f ms, max %7.2f ms, %6.1f datagrams/message%n",
+			name,
+			100.0 * delivered / this.latencies.length,
+			BenchmarkUtils.percentile(latencies, 50) / 1E3,
+			BenchmarkUtils.percentile(latencies, 99) / 1E3,
+			Arrays.stream(latencies).max().orElse(0) / 1E3,
+			(double)(this.numDatagrams() - startDatagrams) / numMessages);
+	}
+	
+	/**
+	 * Closes the clients
+	 */
+	private void close() {
+		for (P2PClient client : this.clients) {
+			client.close();
+		}
+	}
+	
+	public static void main(String[] args) throws InterruptedException {
+		int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int numMessages = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		
+		for (double lossRate : new double[] { 0.01, 0.05, 0.1 }) {
+			for (int blockSize : new int[] { 0, 8, 4 }) {
+				System.setProperty(RelayStrategy.PROPERTY, "flood");
+				System.setProperty(P2PClient.FEC_PROPERTY, Integer.toString(blockSize));
+				
+				FecBenchmark benchmark = new FecBenchmark(numClients, numMessages);
+				String name = String.format("%.0f%% loss, %s", 100 * lossRate, blockSize == 0 ? "NACK only" : "FEC " + blockSize);
+				benchmark.run(name, lossRate, numMessages);
+				benchmark.close();
+			}
+		}
+		
+		System.exit(0);
+	}
+}
@@ -0,0 +1,184 @@
+package ipopprojekt.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+import ipopprojekt.client.InMemoryNetwork;
+import ipopprojekt.client.P2PClient;
+import ipopprojekt.server.ChatNetwork;
+import ipopprojekt.server.TopologyPolicy;
+import ipopprojekt.util.ExecutionBackend;
+
+/**
+ * Measures how fast chat messages are flooded through an overlay of P2P clients running in the same process.
+ * The clients are connected like the server would connect them, and send datagrams through an in-memory network.
+ * Messages are sent by random clients in rounds, and each round waits until every message has reached every client.
+ * The execution backend of the receive loops is selected with -Dipopprojekt.execution.
+ * Usage: FloodBenchmark [clients] [messages] [messages per round]
+ */
+public class FloodBenchmark {
+	private static final int BASE_PORT = 20000;
+	private static final long TIMEOUT_MS = 60000;
+	
+	private final P2PClient[] clients;
+	private final int messagesPerRound;
+	private final LongAdder numDelivered = new LongAdder();
+	private final Random random = new Random(1337);
+	
+	/**
+	 * Creates the overlay
+	 * @param numClients The number of clients
+	 * @param messagesPerRound The number of messages sent at the same time
+	 */
+	private FloodBenchmark(int numClients, int messagesPerRound) {
+		this.messagesPerRound = messagesPerRound;
+		InMemoryNetwork network = new InMemoryNetwork();
+		ExecutionBackend executionBackend = ExecutionBackend.fromSystemProperty();
+		this.clients = new P2PClient[numClients];
+		
+		for (int i = 0; i < numClients; i++) {
+			this.clients[i] = new P2PClient(
+				network.bind(address(i)),
+				i,
+				"Client " + i,
+				message -> this.numDelivered.increment(),
+				executionBackend);
+		}
+		
+		ChatNetwork topology = new ChatNetwork(TopologyPolicy.logarithmic(2, 16), 1337);
+		for (int i = 0; i < numClients; i++) {
+			topology.addClient(i);
+		}
+		
+		//Both ends of a link know about it, like when the server sends the changes
+		for (int i = 0; i < numClients; i++) {
+			for (int neighbor : topology.getNeighbors(i)) {
+				this.clients[i].addNeighbor(neighbor, address(neighbor));
+				this.clients[neighbor].addNeighbor(i, address(i));
+			}
+		}
+	}
+	
+	/**
+	 * Returns the address of the given client
+	 * @param clientId The id of the client
+	 */
+	private static InetSocketAddress address(int clientId) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), BASE_PORT + clientId);
+	}
+	
+	/**
+	 * Returns the number of bytes allocated by all threads
+	 */
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			total += Math.max(0, allocated);
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Returns the number of datagrams received by all clients
+	 */
+	private long numDatagrams() {
+		long total = 0;
+		for (P2PClient client : this.clients) {
+			total += client.getNumDatagramsReceived();
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Returns the number of chat messages received by all clients, including duplicates
+	 */
+	private long numMessageCopies() {
+		long total = 0;
+		for (P2PClient client : this.clients) {
+			total += client.getMetrics().getNumRelayed() + client.getMetrics().getNumDuplicates();
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Floods the given number of messages through the overlay
+	 * @param numMessages The number of messages
+	 * @return False if the messages did not reach all clients in time
+	 */
+	private boolean flood(int numMessages) throws InterruptedException {
+		for (int sent = 0; sent < numMessages; sent += this.messagesPerRound) {
+			int round = Math.min(this.messagesPerRound, numMessages - sent);
+			long expected = this.numDelivered.sum() + (long)round * (this.clients.length - 1);
+			
+			for (int i = 0; i < round; i++) {
+				this.clients[this.random.nextInt(this.clients.length)].send("Message " + (sent + i));
+			}
+			
+			long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+			while (this.numDelivered.sum() < expected) {
+				if (System.currentTimeMillis() > deadline) {
+					return false;
+				}
+				
+				Thread.sleep(1);
+			}
+		}
+		
+		return true;
+	}
+	
+	public static void main(String[] args) throws InterruptedException {
+		int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int numMessages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int messagesPerRound = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		
+		FloodBenchmark benchmark = new FloodBenchmark(numClients, messagesPerRound);
+		
+		//Warm up
+		benchmark.flood(numMessages / 4);
+		
+		long startDelivered = benchmark.numDelivered.sum();
+		long startDatagrams = benchmark.numDatagrams();
+		long startCopies = benchmark.numMessageCopies();
+		long startAllocated = allocatedBytes();
+		long startCpu = ((com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+		long start = System.nanoTime();
+		
+		boolean completed = benchmark.flood(numMessages);
+		
+		double seconds = (System.nanoTime() - start) / 1E9;
+		double cpuSeconds = (((com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime() - startCpu) / 1E9;
+		long delivered = benchmark.numDelivered.sum() - startDelivered;
+		long datagrams = benchmark.numDatagrams() - startDatagrams;
+		long copies = benchmark.numMessageCopies() - startCopies;
+		long allocated = allocatedBytes() - startAllocated;
+		
+		if (!completed) {
+			System.out.println("Timed out, not all messages were delivered");
+		}
+		
+		System.out.printf(
+			"%d clients, %d messages: %.0f messages/s, %.0f deliveries/s, %.0f datagrams/s%n",
+			numClients,
+			numMessages,
+			numMessages / seconds,
+			delivered / seconds,
+			datagrams / seconds);
+		System.out.printf(
+			"%.0f transmissions per message (%d clients)%n",
+			(double)copies / numMessages,
+			numClients);
+		System.out.printf(
+			"%.2f us CPU and %.0f bytes allocated per datagram%n",
+			cpuSeconds * 1E6 / datagrams,
+			(double)allocated / datagrams);
+		System.exit(0);
+	}
+}
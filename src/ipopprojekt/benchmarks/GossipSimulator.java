@@ -0,0 +1,191 @@
+package ipopprojekt.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import ipopprojekt.client.GossipRelay;
+import ipopprojekt.client.P2PMessageHandler;
+import ipopprojekt.server.ChatNetwork;
+import ipopprojekt.server.TopologyPolicy;
+
+/**
+ * Simulates the gossip relay with different target duplicate ratios, and compares it to flooding.
+ * The links of a room with the logarithmic topology are used in both directions, like the clients do.
+ * Messages are sent by random clients and spread hop by hop. Each client adapts its relay probability to its
+ * duplicate ratio in the same way as the gossip relay, and the first messages are used to let the probabilities settle.
+ * Reports the ratio of clients reached, the number of duplicates each client receives per message and the number of hops.
+ * Usage: GossipSimulator [clients] [messages]
+ */
+public class GossipSimulator {
+	private static final int NUM_WARMUP_MESSAGES = 200;
+	
+	private final int[][] neighbors;
+	private final Random random = new Random(4711);
+	
+	//The state of the clients, a target below 0 means flooding
+	private final double target;
+	private final double[] duplicateRatio;
+	private final double[] probability;
+	
+	private long numMessages = 0;
+	private long numDelivered = 0;
+	private long numDuplicates = 0;
+	private long totalHops = 0;
+	private int maxHops = 0;
+	
+	/**
+	 * Creates a new simulator
+	 * @param neighbors The neighbors of each client
+	 * @param target The target duplicate ratio, or below 0 to flood
+	 */
+	private GossipSimulator(int[][] neighbors, double target) {
+		this.neighbors = neighbors;
+		this.target = target;
+		this.duplicateRatio = new double[neighbors.length];
+		this.probability = new double[neighbors.length];
+		Arrays.fill(this.probability, 1);
+	}
+	
+	/**
+	 * Creates the symmetric links of a room with the given number of clients
+	 * @param numClients The number of clients
+	 */
+	private static int[][] createNeighbors(int numClients) {
+		ChatNetwork network = new ChatNetwork(TopologyPolicy.logarithmic(2, 16), 1337);
+		for (int i = 0; i < numClients; i++) {
+			network.addClient(i);
+		}
+		
+		List<Set<Integer>> links = new ArrayList<>();
+		for (int i = 0; i < numClients; i++) {
+			links.add(new HashSet<>());
+		}
+		
+		for (int i = 0; i < numClients; i++) {
+			for (int neighbor : network.getNeighbors(i)) {
+				links.get(i).add(neighbor);
+				links.get(neighbor).add(i);
+			}
+		}
+		
+		int[][] neighbors = new int[numClients][];
+		for (int i = 0; i < numClients; i++) {
+			neighbors[i] = links.get(i).stream().mapToInt(Integer::intValue).toArray();
+		}
+		
+		return neighbors;
+	}
+	
+	/**
+	 * Marks that the given client received a message
+	 * @param client The client
+	 * @param isDuplicate Indicates if the client had already received the message
+	 */
+	private void received(int client, boolean isDuplicate) {
+		this.duplicateRatio[client] = P2PMessageHandler.updateDuplicateRatio(this.duplicateRatio[client], isDuplicate);
+		
+		if (this.target >= 0) {
+			this.probability[client] = GossipRelay.adapt(this.probability[client], this.duplicateRatio[client], this.target);
+		}
+	}
+	
+	/**
+	 * Sends a message from the given client, and spreads it one hop at a time
+	 * @param writer The client that writes the message
+	 * @param measure Indicates if the message is included in the results
+	 */
+	private void sendMessage(int writer, boolean measure) {
+		int numClients = this.neighbors.length;
+		int[] hops = new int[numClients];
+		Arrays.fill(hops, -1);
+		hops[writer] = 0;
+		
+		//Each entry is the receiving client and the client it came from
+		List<int[]> current = new ArrayList<>();
+		for (int neighbor : this.neighbors[writer]) {
+			current.add(new int[] { neighbor, writer });
+		}
+		
+		long delivered = 0;
+		long duplicates = 0;
+		long hopSum = 0;
+		int hop = 1;
+		
+		while (!current.isEmpty()) {
+			List<int[]> next = new ArrayList<>();
+			
+			for (int[] transmission : current) {
+				int client = transmission[0];
+				
+				if (hops[client] >= 0) {
+					duplicates++;
+					this.received(client, true);
+					continue;
+				}
+				
+				hops[client] = hop;
+				delivered++;
+				hopSum += hop;
+				this.received(client, false);
+				
+				for (int neighbor : this.neighbors[client]) {
+					if (neighbor != transmission[1] && neighbor != writer
+						&& this.random.nextDouble() < this.probability[client]) {
+						next.add(new int[] { neighbor, client });
+					}
+				}
+			}
+			
+			current = next;
+			hop++;
+		}
+		
+		if (measure) {
+			this.numMessages++;
+			this.numDelivered += delivered;
+			this.numDuplicates += duplicates;
+			this.totalHops += hopSum;
+			
+			for (int clientHops : hops) {
+				this.maxHops = Math.max(this.maxHops, clientHops);
+			}
+		}
+	}
+	
+	/**
+	 * Sends the given number of messages after the warm-up, and prints the results
+	 * @param name The name of the setting
+	 * @param numMessages The number of messages
+	 */
+	private void run(String name, int numMessages) {
+		int numClients = this.neighbors.length;
+		for (int i = 0; i < NUM_WARMUP_MESSAGES + numMessages; i++) {
+			this.sendMessage(this.random.nextInt(numClients), i >= NUM_WARMUP_MESSAGES);
+		}
+		
+		double averageProbability = Arrays.stream(this.probability).average().orElse(1);
+		System.out.printf(
+			"%-14s probability %.2f, delivery %7.3f%%, duplicates/client/message %5.2f, average hops %4.1f, max hops %3d%n",
+			name,
+			averageProbability,
+			100.0 * this.numDelivered / (this.numMessages * (numClients - 1)),
+			(double)this.numDuplicates / this.numDelivered,
+			(double)this.totalHops / this.numDelivered,
+			this.maxHops);
+	}
+	
+	public static void main(String[] args) {
+		int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int numMessages = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int[][] neighbors = createNeighbors(numClients);
+		
+		new GossipSimulator(neighbors, -1).run("flood", numMessages);
+		for (double target : new double[] { 0.9, 0.8, 0.67, 0.5 }) {
+			new GossipSimulator(neighbors, target).run("target " + target, numMessages);
+		}
+	}
+}
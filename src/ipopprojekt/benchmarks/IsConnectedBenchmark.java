@@ -0,0 +1,68 @@
+package ipopprojekt.benchmarks;
+
+import java.lang.management.ManagementFactory;
+
+import ipopprojekt.server.ChatNetwork;
+
+/**
+ * Measures the time and the allocations of ChatNetwork.isConnected.
+ * Uses one neighbor per node, which makes the network close to a long path.
+ * Usage: IsConnectedBenchmark [nodes...]
+ */
+public class IsConnectedBenchmark {
+	/**
+	 * Returns the number of bytes allocated by the current thread
+	 */
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+			.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	/**
+	 * Runs the benchmark for the given number of nodes
+	 * @param numNodes The number of nodes
+	 */
+	private static void run(int numNodes) {
+		ChatNetwork network = new ChatNetwork(1, 1337);
+		for (int i = 0; i < numNodes; i++) {
+			network.addClient(i);
+		}
+		
+		//Warm up
+		int iterations = Math.max(5, 10000000 / numNodes);
+		try {
+			for (int i = 0; i < iterations; i++) {
+				network.isConnected();
+			}
+		} catch (StackOverflowError e) {
+			System.out.printf("%d nodes: StackOverflowError%n", numNodes);
+			return;
+		}
+		
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		boolean connected = true;
+		for (int i = 0; i < iterations; i++) {
+			connected &= network.isConnected();
+		}
+		long duration = System.nanoTime() - start;
+		long allocated = allocatedBytes() - allocatedBefore;
+		
+		System.out.printf(
+			"%d nodes: %.1f us/call, %d bytes allocated/call, connected: %s%n",
+			numNodes,
+			duration / 1E3 / iterations,
+			allocated / iterations,
+			connected);
+	}
+	
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			args = new String[] { "1000", "100000", "1000000" };
+		}
+		
+		for (String numNodes : args) {
+			run(Integer.parseInt(numNodes));
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package ipopprojekt.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import ipopprojekt.server.Server;
+import ipopprojekt.server.TransportMode;
+import ipopprojekt.util.ExecutionBackend;
+
+/**
+ * Measures the joins per second and the join latency when clients join several rooms at the same time.
+ * Each room gets its own joining thread, which joins the simulated clients one at a time and waits for their neighbors.
+ * Usage: JoinStormBenchmark [rooms] [clients per room] [blocking|nio]
+ * Note that both ends of each connection are in the process, so the open file limit must be at least twice the number of clients.
+ */
+public class JoinStormBenchmark {
+	private static final int PORT = 5713;
+	
+	public static void main(String[] args) throws Exception {
+		int numRooms = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int numClients = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		TransportMode transportMode = args.length > 2 ? TransportMode.fromName(args[2]) : TransportMode.NIO;
+		
+		Server server = new Server(PORT, transportMode, 2, ExecutionBackend.PLATFORM_THREADS);
+		for (int i = 0; i < numRooms; i++) {
+			server.addRoom();
+		}
+		server.start();
+		
+		//Silence the per client logging of the server
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			
+			}
+		}));
+		
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", PORT);
+		long[] joinTimes = new long[numRooms * numClients];
+		List<SocketChannel> channels = new ArrayList<>();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> joiners = new ArrayList<>();
+		
+		for (int room = 1; room <= numRooms; room++) {
+			int roomNumber = room;
+			Thread joiner = new Thread(() -> {
+				try {
+					start.await();
+					for (int i = 0; i < numClients; i++) {
+						long joinStart = System.nanoTime();
+						SocketChannel channel = ServerLoadTest.join(address, roomNumber, i > 0);
+						joinTimes[(roomNumber - 1) * numClients + i] = System.nanoTime() - joinStart;
+						
+						synchronized (channels) {
+							channels.add(channel);
+						}
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}, "joiner-" + room);
+			
+			joiner.start();
+			joiners.add(joiner);
+		}
+		
+		long startTime = System.nanoTime();
+		start.countDown();
+		for (Thread joiner : joiners) {
+			joiner.join();
+		}
+		long duration = System.nanoTime() - startTime;
+		
+		System.setOut(out);
+		System.out.printf(
+			"%s, %d rooms, %d clients each: %.0f joins/s, join p50 %d us, p99 %d us, max %d us%n",
+			transportMode,
+			numRooms,
+			numClients,
+			numRooms * numClients / (duration / 1E9),
+			BenchmarkUtils.percentile(joinTimes, 50) / 1000,
+			BenchmarkUtils.percentile(joinTimes, 99) / 1000,
+			BenchmarkUtils.percentile(joinTimes, 100) / 1000);
+		
+		//Exit directly, disconnecting all clients would measure the leaves instead
+		System.exit(0);
+	}
+}
@@ -0,0 +1,167 @@
+package ipopprojekt.benchmarks;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import ipopprojekt.server.ChatNetwork;
+import ipopprojekt.server.TopologyPolicy;
+
+/**
+ * Simulates the delivery time of chat messages in a room with emulated latencies between the clients.
+ * Each client is placed at a random position, and the one way delay between two clients is a base delay
+ * plus the access delay of both clients plus a delay proportional to their distance.
+ * The delivery time of a message is the fastest path through the relays, as the message is flooded to all neighbors.
+ * The delivery times are measured with random neighbors, and then again after the clients have reported
+ * the round trip times to their neighbors and some random peers for a few rounds, like the real clients do.
+ * Usage: LatencySimulator [clients] [rounds]
+ */
+public class LatencySimulator {
+	private static final int NUM_SENDERS = 20;
+	private static final int NUM_PROBE_PEERS = 8;
+	
+	private final int numClients;
+	private final double[] x;
+	private final double[] y;
+	private final double[] accessDelay;
+	
+	/**
+	 * Creates a new simulator
+	 * @param numClients The number of clients
+	 * @param seed The seed for the positions and the delays
+	 */
+	private LatencySimulator(int numClients, long seed) {
+		Random random = new Random(seed);
+		this.numClients = numClients;
+		this.x = new double[numClients];
+		this.y = new double[numClients];
+		this.accessDelay = new double[numClients];
+		
+		for (int i = 0; i < numClients; i++) {
+			this.x[i] = random.nextDouble();
+			this.y[i] = random.nextDouble();
+			this.accessDelay[i] = random.nextDouble() * 20;
+		}
+	}
+	
+	/**
+	 * Returns the one way delay between the given clients in milliseconds
+	 * @param from The first client
+	 * @param to The second client
+	 */
+	private double delay(int from, int to) {
+		double distance = Math.hypot(this.x[from] - this.x[to], this.y[from] - this.y[to]);
+		return 2 + this.accessDelay[from] + this.accessDelay[to] + 100 * distance;
+	}
+	
+	/**
+	 * Lets each client measure the round trip time to its neighbors and some random peers, and report them
+	 * @param network The network
+	 */
+	private void reportRoundTripTimes(ChatNetwork network) {
+		for (int client = 0; client < this.numClients; client++) {
+			for (int neighbor : network.getNeighbors(client)) {
+				network.setRoundTripTime(client, neighbor, (int)(2000 * this.delay(client, neighbor)));
+			}
+			
+			for (int peer : network.randomPeers(client, NUM_PROBE_PEERS)) {
+				network.setRoundTripTime(client, peer, (int)(2000 * this.delay(client, peer)));
+			}
+			
+			network.rewire(client);
+		}
+	}
+	
+	/**
+	 * Returns the delivery times in milliseconds of messages sent by random clients to all other clients
+	 * @param network The network
+	 */
+	private long[] deliveryTimes(ChatNetwork network) {
+		Random random = new Random(4711);
+		long[] times = new long[NUM_SENDERS * (this.numClients - 1)];
+		int numTimes = 0;
+		
+		for (int i = 0; i < NUM_SENDERS; i++) {
+			double[] arrival = this.arrivalTimes(network, random.nextInt(this.numClients));
+			
+			for (double time : arrival) {
+				if (time > 0) {
+					times[numTimes++] = Math.round(time);
+				}
+			}
+		}
+		
+		return Arrays.copyOf(times, numTimes);
+	}
+	
+	/**
+	 * Computes when a message sent by the given client arrives at each client, using Dijkstra's algorithm
+	 * @param network The network
+	 * @param sender The sender
+	 * @return The arrival time at each client in milliseconds
+	 */
+	private double[] arrivalTimes(ChatNetwork network, int sender) {
+		double[] arrival = new double[this.numClients];
+		Arrays.fill(arrival, Double.MAX_VALUE);
+		arrival[sender] = 0;
+		
+		PriorityQueue<double[]> queue = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0]));
+		queue.add(new double[] { 0, sender });
+		
+		while (!queue.isEmpty()) {
+			double[] entry = queue.poll();
+			int client = (int)entry[1];
+			
+			if (entry[0] > arrival[client]) {
+				continue;
+			}
+			
+			for (int neighbor : network.getNeighbors(client)) {
+				double time = arrival[client] + this.delay(client, neighbor);
+				
+				if (time < arrival[neighbor]) {
+					arrival[neighbor] = time;
+					queue.add(new double[] { time, neighbor });
+				}
+			}
+		}
+		
+		return arrival;
+	}
+	
+	/**
+	 * Prints the median and the 99th percentile of the delivery times
+	 * @param name The name of the measurement
+	 * @param network The network
+	 */
+	private void printDeliveryTimes(String name, ChatNetwork network) {
+		long[] times = this.deliveryTimes(network);
+		System.out.printf(
+			"%-24s median %4d ms, p99 %4d ms, connected: %s%n",
+			name,
+			BenchmarkUtils.percentile(times, 50),
+			BenchmarkUtils.percentile(times, 99),
+			network.isConnected());
+	}
+	
+	public static void main(String[] args) {
+		int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int numRounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		
+		LatencySimulator simulator = new LatencySimulator(numClients, 1337);
+		ChatNetwork network = new ChatNetwork(TopologyPolicy.logarithmic(2, 16), 1337);
+		for (int i = 0; i < numClients; i++) {
+			network.addClient(i);
+		}
+		
+		simulator.printDeliveryTimes("Random neighbors:", network);
+		
+		for (int round = 1; round <= numRounds; round++) {
+			simulator.reportRoundTripTimes(network);
+			
+			if (round == 1 || round == numRounds) {
+				simulator.printDeliveryTimes("After " + round + " reports:", network);
+			}
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package ipopprojekt.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+
+import ipopprojekt.server.ChatRoom;
+import ipopprojekt.server.Client;
+import ipopprojekt.server.Server;
+
+/**
+ * Measures the joins and leaves per second of a chat room with many clients, including the lookups of the clients
+ * that get the changes. The room is filled, and then all clients leave in random order.
+ * The simulated clients share one connection, as the messages to them are queued but never written.
+ * Usage: LeaveStormBenchmark [clients]
+ */
+public class LeaveStormBenchmark {
+	/**
+	 * Waits until the room has the given number of clients
+	 * @param room The room
+	 * @param numClients The number of clients
+	 */
+	private static void waitForClients(ChatRoom room, int numClients) throws InterruptedException {
+		while (room.getNumClients() != numClients) {
+			Thread.sleep(1);
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		
+		try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+			Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort())) {
+			Server server = new Server(0);
+			ChatRoom room = new ChatRoom(1);
+			Client[] clients = new Client[numClients];
+			for (int i = 0; i < numClients; i++) {
+				clients[i] = new Client(socket, server, i);
+			}
+			
+			//Silence the per client logging of the room
+			PrintStream out = System.out;
+			System.setOut(new PrintStream(new OutputStream() {
+				@Override
+				public void write(int b) {
+				
+				}
+			}));
+			
+			long start = System.nanoTime();
+			for (Client client : clients) {
+				room.addClient(client);
+			}
+			waitForClients(room, numClients);
+			long joinTime = System.nanoTime() - start;
+			
+			//Leave in a random order
+			Random random = new Random(1337);
+			for (int i = numClients - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				Client client = clients[i];
+				clients[i] = clients[j];
+				clients[j] = client;
+			}
+			
+			start = System.nanoTime();
+			for (Client client : clients) {
+				room.removeClient(client);
+			}
+			waitForClients(room, 0);
+			long leaveTime = System.nanoTime() - start;
+			
+			System.setOut(out);
+			System.out.printf(
+				"%d clients: %.0f joins/s, %.0f leaves/s%n",
+				numClients,
+				numClients / (joinTime / 1E9),
+				numClients / (leaveTime / 1E9));
+			
+			room.close();
+		}
+	}
+}
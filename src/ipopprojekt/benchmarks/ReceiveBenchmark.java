@@ -0,0 +1,102 @@
+package ipopprojekt.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import ipopprojekt.client.P2PClient;
+import ipopprojekt.client.P2PMessage;
+import ipopprojekt.client.P2PMessageHandler;
+import ipopprojekt.messages.DatagramType;
+
+/**
+ * Measures the number of chat datagrams the receive loop of a P2P client handles per second of CPU time.
+ * The datagrams are sent over the loopback interface, and each message is sent several times,
+ * like when a message arrives from several neighbors.
+ * Usage: ReceiveBenchmark [seconds] [copies per message]
+ */
+public class ReceiveBenchmark {
+	private static final int PORT = 47111;
+	private static final int NUM_SENDERS = 100;
+	
+	/**
+	 * Encodes the given message as a datagram
+	 * @param handler The message handler
+	 * @param message The message
+	 */
+	private static byte[] encode(P2PMessageHandler handler, P2PMessage message) throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		DataOutputStream dataStream = new DataOutputStream(stream);
+		dataStream.writeByte(DatagramType.CHAT.getId());
+		handler.writeMessage(dataStream, message);
+		return stream.toByteArray();
+	}
+	
+	/**
+	 * Returns the CPU time of the receive thread in nanoseconds
+	 */
+	private static long receiveThreadCpuTime() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if (info != null && info.getThreadName().equals("p2p-receive")) {
+				return threads.getThreadCpuTime(info.getThreadId());
+			}
+		}
+		
+		return 0;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int copies = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		
+		P2PClient client = new P2PClient(PORT, 0, "Receiver", message -> { });
+		P2PMessageHandler handler = new P2PMessageHandler(1, "Sender");
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", PORT);
+		String text = "The quick brown fox jumps over the lazy dog, again and again";
+		
+		try (DatagramChannel channel = DatagramChannel.open()) {
+			long startReceived = client.getNumDatagramsReceived();
+			long startCpu = receiveThreadCpuTime();
+			long end = System.nanoTime() + seconds * 1000000000L;
+			long numSent = 0;
+			int sequenceNumber = 0;
+			
+			while (System.nanoTime() < end) {
+				for (int sender = 1; sender <= NUM_SENDERS; sender++) {
+					P2PMessage message = new P2PMessage(sender, sequenceNumber, "Sender " + sender, text);
+					ByteBuffer datagram = ByteBuffer.wrap(encode(handler, message));
+					
+					for (int i = 0; i < copies; i++) {
+						datagram.rewind();
+						channel.send(datagram, address);
+						numSent++;
+					}
+				}
+				
+				sequenceNumber++;
+			}
+			
+			Thread.sleep(200);
+			long received = client.getNumDatagramsReceived() - startReceived;
+			double cpuSeconds = (receiveThreadCpuTime() - startCpu) / 1E9;
+			
+			System.out.printf(
+				"Sent %d, received %d datagrams (%d%% duplicates) in %.2f s of receive CPU: %.0f datagrams/s per core%n",
+				numSent,
+				received,
+				100 - 100 / copies,
+				cpuSeconds,
+				received / cpuSeconds);
+		}
+		
+		client.close();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,93 @@
+package ipopprojekt.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import ipopprojekt.server.ChatRoom;
+import ipopprojekt.server.Client;
+import ipopprojekt.server.Server;
+
+/**
+ * Measures how fast a chat room handles a storm of reconnecting clients, like after a network blip,
+ * with each join and leave admitted on its own and with batched admission.
+ * The room is filled, and then every client leaves and joins again as a new client at the same time.
+ * The simulated clients share one connection, as the messages to them are queued but never written.
+ * Usage: ReconnectStormBenchmark [clients] [admission window in milliseconds]
+ */
+public class ReconnectStormBenchmark {
+	/**
+	 * Waits until the room has the given number of clients
+	 * @param room The room
+	 * @param numClients The number of clients
+	 */
+	private static void waitForClients(ChatRoom room, int numClients) throws InterruptedException {
+		while (room.getNumClients() != numClients) {
+			Thread.sleep(1);
+		}
+	}
+	
+	/**
+	 * Runs the storm for a new room
+	 * @param socket The connection shared by the clients
+	 * @param numClients The number of clients
+	 * @param admissionWindow The admission window of the room
+	 * @return The time of the storm in nanoseconds
+	 */
+	private static long runStorm(Socket socket, int numClients, long admissionWindow) throws InterruptedException {
+		Server server = new Server(0);
+		ChatRoom room = new ChatRoom(1, admissionWindow);
+		
+		Client[] clients = new Client[numClients];
+		for (int i = 0; i < numClients; i++) {
+			clients[i] = new Client(socket, server, i);
+			room.addClient(clients[i]);
+		}
+		waitForClients(room, numClients);
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < numClients; i++) {
+			room.removeClient(clients[i]);
+			clients[i] = new Client(socket, server, numClients + i);
+			room.addClient(clients[i]);
+		}
+		
+		//The extra client is admitted last, so the room has one more client only when the storm is over
+		room.addClient(new Client(socket, server, 2 * numClients));
+		waitForClients(room, numClients + 1);
+		long time = System.nanoTime() - start;
+		
+		room.close();
+		return time;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		long admissionWindow = args.length > 1 ? Long.parseLong(args[1]) : ChatRoom.DEFAULT_ADMISSION_WINDOW;
+		
+		try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+			Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort())) {
+			//Silence the per client logging of the room
+			PrintStream out = System.out;
+			System.setOut(new PrintStream(new OutputStream() {
+				@Override
+				public void write(int b) {
+				
+				}
+			}));
+			
+			long unbatched = runStorm(socket, numClients, ChatRoom.NO_BATCHING);
+			long batched = runStorm(socket, numClients, admissionWindow);
+			
+			System.setOut(out);
+			System.out.printf(
+				"%d clients reconnecting: %.0f reconnects/s one at a time, %.0f reconnects/s batched with a %d ms window%n",
+				numClients,
+				numClients / (unbatched / 1E9),
+				numClients / (batched / 1E9),
+				admissionWindow);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package ipopprojekt.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import ipopprojekt.messages.MessageId;
+import ipopprojekt.server.Server;
+import ipopprojekt.server.TransportMode;
+import ipopprojekt.util.ExecutionBackend;
+
+/**
+ * Load test that connects a number of simulated clients to an in-process server and
+ * reports the resident memory and the join latency.
+ * Usage: ServerLoadTest [clients] [blocking|nio] [platform|pool|virtual]
+ * Each configuration should be run in its own JVM. Note that both ends of each connection are in the process,
+ * so the open file limit must be at least twice the number of clients.
+ */
+public class ServerLoadTest {
+	private static final int PORT = 5712;
+	
+	/**
+	 * Reads exactly the given number of bytes from the channel
+	 * @param channel The channel
+	 * @param size The number of bytes
+	 */
+	private static ByteBuffer readFully(SocketChannel channel, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException("Connection closed");
+			}
+		}
+		
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * Connects a simulated client and joins the given room
+	 * @param address The address of the server
+	 * @param room The number of the room, starting at 1
+	 * @param waitForNeighbors Indicates if to wait until the client receives its neighbors
+	 * @return The channel
+	 */
+	static SocketChannel join(InetSocketAddress address, int room, boolean waitForNeighbors) throws IOException {
+		SocketChannel channel = SocketChannel.open(address);
+		
+		//SET_USER_ID and SET_NUMBER_OF_ROOMS
+		readFully(channel, 10);
+		
+		ByteBuffer connect = ByteBuffer.allocate(9);
+		connect.put(MessageId.CONNECT_CLIENT.getId());
+		connect.putInt(4712);
+		connect.putInt(room);
+		connect.flip();
+		while (connect.hasRemaining()) {
+			channel.write(connect);
+		}
+		
+		if (waitForNeighbors) {
+			//The server sends the neighbors of the new client first
+			ByteBuffer header = readFully(channel, 1);
+			if (header.get() != MessageId.ADD_NEIGHBORS.getId()) {
+				throw new IOException("Expected neighbors");
+			}
+		}
+		
+		return channel;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		TransportMode transportMode = args.length > 1 ? TransportMode.fromName(args[1]) : TransportMode.BLOCKING;
+		ExecutionBackend backend = args.length > 2 ? ExecutionBackend.fromName(args[2]) : ExecutionBackend.PLATFORM_THREADS;
+		
+		Server server = new Server(PORT, transportMode, 2, backend);
+		server.addRoom();
+		server.start();
+		
+		//Silence the per client logging of the server
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			
+			}
+		}));
+		
+		long memoryBefore = BenchmarkUtils.residentMemoryKb();
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", PORT);
+		List<SocketChannel> channels = new ArrayList<>();
+		long[] joinTimes = new long[numClients];
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < numClients; i++) {
+			long joinStart = System.nanoTime();
+			channels.add(join(address, 1, i > 0));
+			joinTimes[i] = System.nanoTime() - joinStart;
+		}
+		long duration = System.nanoTime() - start;
+		
+		Thread.sleep(1000);
+		long memoryAfter = BenchmarkUtils.residentMemoryKb();
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		
+		System.setOut(out);
+		System.out.printf(
+			"%s/%s, %d clients: %.1f joins/s, join p50 %d us, p99 %d us, max %d us, resident memory +%d MB (%.1f KB/client), %d platform threads%n",
+			transportMode,
+			backend,
+			numClients,
+			numClients / (duration / 1E9),
+			BenchmarkUtils.percentile(joinTimes, 50) / 1000,
+			BenchmarkUtils.percentile(joinTimes, 99) / 1000,
+			BenchmarkUtils.percentile(joinTimes, 100) / 1000,
+			(memoryAfter - memoryBefore) / 1024,
+			(memoryAfter - memoryBefore) / (double)numClients,
+			threads);
+		
+		//Exit directly, disconnecting all clients would measure the leaves instead
+		System.exit(0);
+	}
+}
@@ -0,0 +1,72 @@
+package ipopprojekt.benchmarks;
+
+import ipopprojekt.server.ChatNetwork;
+import ipopprojekt.server.TopologyPolicy;
+
+/**
+ * Simulates rooms of different sizes with different topology policies, and reports the number of hops a message needs.
+ * The room is first filled and then half of the clients are replaced, so that the topology has been through churn.
+ * The diameter and the average number of hops are measured from a sample of the clients.
+ * Usage: TopologySimulator [clients...]
+ */
+public class TopologySimulator {
+	private static final int NUM_SAMPLES = 50;
+	
+	/**
+	 * Simulates a room with the given policy
+	 * @param name The name of the policy
+	 * @param policy The policy
+	 * @param numClients The number of clients
+	 */
+	private static void simulate(String name, TopologyPolicy policy, int numClients) {
+		ChatNetwork network = new ChatNetwork(policy, 1337);
+		for (int i = 0; i < numClients; i++) {
+			network.addClient(i);
+		}
+		
+		int nextClientId = numClients;
+		for (int i = 0; i < numClients / 2; i++) {
+			network.removeClient(network.randomClientInNetwork());
+			network.addClient(nextClientId++);
+		}
+		
+		int diameter = 0;
+		long totalHops = 0;
+		long numReached = 0;
+		long totalDegree = 0;
+		
+		for (int i = 0; i < NUM_SAMPLES; i++) {
+			int clientId = network.randomClientInNetwork();
+			int[] hopCounts = network.hopCounts(clientId);
+			diameter = Math.max(diameter, hopCounts.length - 1);
+			totalDegree += network.getNeighbors(clientId).size();
+			
+			for (int hops = 1; hops < hopCounts.length; hops++) {
+				totalHops += (long)hops * hopCounts[hops];
+				numReached += hopCounts[hops];
+			}
+		}
+		
+		System.out.printf(
+			"%-16s %8d clients: degree %5.1f, diameter %6d, average hops %8.1f, connected: %s%n",
+			name,
+			numClients,
+			(double)totalDegree / NUM_SAMPLES,
+			diameter,
+			(double)totalHops / numReached,
+			network.isConnected());
+	}
+	
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			args = new String[] { "1000", "10000", "100000" };
+		}
+		
+		for (String numClients : args) {
+			int size = Integer.parseInt(numClients);
+			simulate("fixed(1)", TopologyPolicy.fixed(1), size);
+			simulate("fixed(3)", TopologyPolicy.fixed(3), size);
+			simulate("logarithmic", TopologyPolicy.logarithmic(2, 16), size);
+		}
+	}
+}
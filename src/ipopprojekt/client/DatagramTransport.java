@@ -0,0 +1,30 @@
+package ipopprojekt.client;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends and receives the datagrams of a P2P client
+ */
+public interface DatagramTransport {
+	/**
+	 * Waits for the next datagram and writes it into the given buffer
+	 * @param buffer The buffer
+	 * @return The address of the sender
+	 */
+	SocketAddress receive(ByteBuffer buffer) throws IOException;
+	
+	/**
+	 * Sends the remaining bytes of the given buffer as one datagram.
+	 * The buffer is not modified, except for its position.
+	 * @param data The data
+	 * @param address The address to send to
+	 */
+	void send(ByteBuffer data, SocketAddress address) throws IOException;
+	
+	/**
+	 * Closes the transport. A thread waiting in receive gets an exception.
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,139 @@
+package ipopprojekt.client;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rebuilds lost datagrams from the parity datagrams of a neighbor that uses forward error correction, see FecEncoder.
+ * The latest blocks are kept until their parity has arrived, and a block with exactly one lost datagram is rebuilt
+ * by XORing the parity with the datagrams that arrived.
+ */
+public class FecDecoder {
+	/**
+	 * The number of blocks kept waiting for datagrams or parity
+	 */
+	public static final int NUM_BLOCKS = 8;
+	
+	private final Map<Integer, Block> blocks = new LinkedHashMap<Integer, Block>() {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+			return this.size() > NUM_BLOCKS;
+		}
+	};
+	
+	/**
+	 * Marks that a datagram of a block has arrived
+	 * @param block The number of the block
+	 * @param index The index of the datagram in the block
+	 * @param datagram The datagram, the position is restored afterwards
+	 * @return The lost datagram of the block, if it could be rebuilt, otherwise null
+	 */
+	public byte[] dataReceived(int block, int index, ByteBuffer datagram) {
+		if (index < 0 || index >= FecEncoder.MAX_BLOCK_SIZE) {
+			return null;
+		}
+		
+		Block state = this.block(block);
+		if (state.datagrams[index] == null) {
+			int position = datagram.position();
+			state.datagrams[index] = new byte[datagram.remaining()];
+			datagram.get(state.datagrams[index]);
+			datagram.position(position);
+			state.numReceived++;
+		}
+		
+		return state.recover();
+	}
+	
+	/**
+	 * Marks that the parity of a block has arrived
+	 * @param parity The parity datagram, after the type
+	 * @return The lost datagram of the block, if it could be rebuilt, otherwise null
+	 */
+	public byte[] parityReceived(ByteBuffer parity) {
+		if (parity.remaining() < 5) {
+			return null;
+		}
+		
+		int block = parity.getInt();
+		int numDatagrams = parity.get() & 0xFF;
+		if (numDatagrams > FecEncoder.MAX_BLOCK_SIZE || parity.remaining() < 2 * numDatagrams) {
+			return null;
+		}
+		
+		Block state = this.block(block);
+		if (state.parity != null) {
+			return null;
+		}
+		
+		state.lengths = new int[numDatagrams];
+		for (int i = 0; i < numDatagrams; i++) {
+			state.lengths[i] = parity.getShort() & 0xFFFF;
+		}
+		
+		state.parity = new byte[parity.remaining()];
+		parity.get(state.parity);
+		return state.recover();
+	}
+	
+	/**
+	 * Returns the state of the given block, creating it if needed
+	 * @param block The number of the block
+	 */
+	private Block block(int block) {
+		Block state = this.blocks.get(block);
+		if (state == null) {
+			state = new Block();
+			this.blocks.put(block, state);
+		}
+		
+		return state;
+	}
+	
+	/**
+	 * The datagrams and the parity of a block that have arrived
+	 */
+	private static class Block {
+		public final byte[][] datagrams = new byte[FecEncoder.MAX_BLOCK_SIZE][];
+		public int numReceived = 0;
+		public int[] lengths;
+		public byte[] parity;
+		
+		/**
+		 * Returns the lost datagram if it is the only one in the block and the parity has arrived, otherwise null
+		 */
+		public byte[] recover() {
+			if (this.parity == null || this.numReceived != this.lengths.length - 1) {
+				return null;
+			}
+			
+			int missing = 0;
+			while (this.datagrams[missing] != null) {
+				missing++;
+			}
+			
+			if (this.lengths[missing] > this.parity.length) {
+				return null;
+			}
+			
+			byte[] datagram = new byte[this.lengths[missing]];
+			System.arraycopy(this.parity, 0, datagram, 0, datagram.length);
+			
+			for (byte[] received : this.datagrams) {
+				if (received != null) {
+					for (int i = 0; i < Math.min(datagram.length, received.length); i++) {
+						datagram[i] ^= received[i];
+					}
+				}
+			}
+			
+			//The block is complete now
+			this.datagrams[missing] = datagram;
+			this.numReceived++;
+			return datagram;
+		}
+	}
+}
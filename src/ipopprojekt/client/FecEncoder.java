@@ -0,0 +1,106 @@
+package ipopprojekt.client;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import ipopprojekt.messages.DatagramType;
+
+/**
+ * Adds forward error correction to the datagrams sent to a neighbor.
+ * The datagrams are grouped into blocks, each datagram is sent with the number of its block and its index in the block,
+ * and each block is followed by a parity datagram holding the XOR of the datagrams in the block.
+ * The receiver can then rebuild one lost datagram per block without asking for it again.
+ */
+public class FecEncoder {
+	/**
+	 * The largest number of datagrams in a block
+	 */
+	public static final int MAX_BLOCK_SIZE = 32;
+	
+	/**
+	 * The number of bytes added to a datagram: the type, the block number and the index
+	 */
+	public static final int DATA_HEADER_SIZE = 1 + 4 + 1;
+	
+	/**
+	 * The number of bytes a parity datagram has in addition to the XOR of the datagrams
+	 */
+	public static final int PARITY_HEADER_SIZE = 1 + 4 + 1 + 2 * MAX_BLOCK_SIZE;
+	
+	private final int blockSize;
+	private int block = 0;
+	private int numDatagrams = 0;
+	private final int[] lengths = new int[MAX_BLOCK_SIZE];
+	private final byte[] parity;
+	private int parityLength = 0;
+	
+	/**
+	 * Creates a new encoder
+	 * @param blockSize The number of datagrams in a block
+	 * @param maxDatagramSize The size of the largest datagram that is encoded
+	 */
+	public FecEncoder(int blockSize, int maxDatagramSize) {
+		if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("The block size must be between 1 and " + MAX_BLOCK_SIZE);
+		}
+		
+		this.blockSize = blockSize;
+		this.parity = new byte[maxDatagramSize];
+	}
+	
+	/**
+	 * Writes the given datagram with the header of the current block, and adds it to the parity of the block
+	 * @param datagram The datagram, consumed
+	 * @param out The buffer to write to, must be cleared
+	 */
+	public void encode(ByteBuffer datagram, ByteBuffer out) {
+		int length = datagram.remaining();
+		out.put(DatagramType.FEC_DATA.getId());
+		out.putInt(this.block);
+		out.put((byte)this.numDatagrams);
+		
+		for (int i = 0; i < length; i++) {
+			byte value = datagram.get();
+			out.put(value);
+			this.parity[i] ^= value;
+		}
+		
+		this.lengths[this.numDatagrams++] = length;
+		this.parityLength = Math.max(this.parityLength, length);
+	}
+	
+	/**
+	 * Indicates if the current block has datagrams
+	 */
+	public boolean hasDatagrams() {
+		return this.numDatagrams > 0;
+	}
+	
+	/**
+	 * Indicates if the current block is full, so the parity should be sent
+	 */
+	public boolean isFull() {
+		return this.numDatagrams == this.blockSize;
+	}
+	
+	/**
+	 * Writes the parity datagram of the current block, and starts a new block
+	 * @param out The buffer to write to, must be cleared
+	 */
+	public void writeParity(ByteBuffer out) {
+		out.put(DatagramType.FEC_PARITY.getId());
+		out.putInt(this.block);
+		out.put((byte)this.numDatagrams);
+		
+		for (int i = 0; i < this.numDatagrams; i++) {
+			out.putShort((short)this.lengths[i]);
+		}
+		
+		out.put(this.parity, 0, this.parityLength);
+		
+		Arrays.fill(this.parity, 0, this.parityLength, (byte)0);
+		this.parityLength = 0;
+		this.numDatagrams = 0;
+		this.block++;
+	}
+}
@@ -0,0 +1,38 @@
+package ipopprojekt.client;
+
+import java.net.SocketAddress;
+
+/**
+ * Sends every message to all neighbors. Announcements, grafts and prunes are ignored.
+ */
+public class FloodRelay implements RelayStrategy {
+	@Override
+	public void messageReceived(long messageId, SocketAddress sender, byte[] message) {
+	
+	}
+	
+	@Override
+	public boolean shouldRelay(long messageId, SocketAddress sender) {
+		return true;
+	}
+	
+	@Override
+	public void duplicateReceived(long messageId, SocketAddress sender) {
+	
+	}
+	
+	@Override
+	public void announcementReceived(long messageId, SocketAddress sender) {
+	
+	}
+	
+	@Override
+	public void graftReceived(long messageId, SocketAddress sender) {
+	
+	}
+	
+	@Override
+	public void pruneReceived(SocketAddress sender) {
+	
+	}
+}
@@ -0,0 +1,193 @@
+package ipopprojekt.client;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import ipopprojekt.messages.DatagramType;
+
+/**
+ * Repairs lost messages with negative acknowledgements.
+ * The sequence numbers of each writer increase by one for each message, so a message that skips sequence numbers
+ * reveals that the messages in between are missing. If they have not arrived after a short delay, they are asked for
+ * with a NACK, first from the neighbor that revealed the gap and then from the other neighbors, which answer from
+ * their retransmit buffers. Messages at the end of a burst are repaired when the next message of the writer arrives.
+ * Only called while holding the relay lock of the client.
+ */
+public class GapRepair {
+	/**
+	 * The time in milliseconds to wait for a missing message before asking for it, as it can still arrive through another path
+	 */
+	public static final long NACK_DELAY = 30;
+	
+	/**
+	 * The time in milliseconds to wait for a message that has been asked for before asking again.
+	 * The time doubles for each attempt, up to the longest retry time, so congested neighbors are not flooded with NACKs.
+	 */
+	public static final long NACK_RETRY = 60;
+	
+	/**
+	 * The longest time in milliseconds to wait for a message that has been asked for before asking again
+	 */
+	public static final long MAX_NACK_RETRY = 1000;
+	
+	/**
+	 * The number of times a missing message is asked for before it is given up
+	 */
+	public static final int MAX_ATTEMPTS = 10;
+	
+	/**
+	 * The largest number of missing messages asked for in one gap
+	 */
+	public static final int MAX_GAP = 256;
+	
+	/**
+	 * The largest number of messages asked for in one NACK.
+	 * Only this many of the messages in a NACK are sent again, so a NACK can not make a neighbor send much more than it received.
+	 */
+	public static final int MAX_NACK_SIZE = 64;
+	
+	private final P2PClient client;
+	
+	//The highest sequence number received from each writer
+	private final Map<Integer, Integer> highest = new HashMap<>();
+	//The missing messages, in the order they were found
+	private final Map<Long, Missing> missing = new LinkedHashMap<>();
+	private boolean checkScheduled = false;
+	
+	/**
+	 * Creates a new repair for the given client
+	 * @param client The client
+	 */
+	public GapRepair(P2PClient client) {
+		this.client = client;
+	}
+	
+	/**
+	 * Returns the number of messages that are missing
+	 */
+	public int numMissing() {
+		return this.missing.size();
+	}
+	
+	/**
+	 * Marks that a new message has been received, and looks for the messages it reveals as missing
+	 * @param messageId The id of the message
+	 * @param sender The address of the sender, or null for own messages
+	 */
+	public void messageReceived(long messageId, SocketAddress sender) {
+		this.missing.remove(messageId);
+		if (sender == null) {
+			return;
+		}
+		
+		int writerId = (int)(messageId >>> 32);
+		int sequenceNumber = (int)messageId;
+		Integer highest = this.highest.get(writerId);
+		
+		//Messages sent before the first one received are not asked for
+		if (highest == null || sequenceNumber - highest > 0) {
+			this.highest.put(writerId, sequenceNumber);
+		}
+		
+		if (highest == null || sequenceNumber - highest <= 1) {
+			return;
+		}
+		
+		long due = System.currentTimeMillis() + NACK_DELAY;
+		int first = sequenceNumber - highest > MAX_GAP ? sequenceNumber - MAX_GAP : highest + 1;
+		
+		for (int missingNumber = first; missingNumber != sequenceNumber; missingNumber++) {
+			long missingId = P2PMessageHandler.messageId(writerId, missingNumber);
+			
+			if (!this.client.hasReceived(missingId) && !this.missing.containsKey(missingId)) {
+				this.missing.put(missingId, new Missing(sender, due));
+			}
+		}
+		
+		this.scheduleCheck(NACK_DELAY);
+	}
+	
+	/**
+	 * Sends the given message again, as a neighbor asked for it
+	 * @param messageId The id of the message
+	 * @param sender The address of the neighbor
+	 */
+	public void nackReceived(long messageId, SocketAddress sender) {
+		byte[] message = this.client.cachedMessage(messageId);
+		if (message != null) {
+			this.client.retransmit(messageId, message, sender);
+		}
+	}
+	
+	/**
+	 * Schedules a check of the missing messages, if none is scheduled
+	 * @param delay The delay in milliseconds
+	 */
+	private void scheduleCheck(long delay) {
+		if (!this.checkScheduled) {
+			this.checkScheduled = true;
+			P2PClient.timer().schedule(this::check, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Asks for the missing messages that are due, one NACK per neighbor
+	 */
+	private void check() {
+		synchronized (this.client.relayLock()) {
+			this.checkScheduled = false;
+			
+			long now = System.currentTimeMillis();
+			Map<SocketAddress, List<Long>> requests = new HashMap<>();
+			Iterator<Map.Entry<Long, Missing>> iterator = this.missing.entrySet().iterator();
+			
+			while (iterator.hasNext()) {
+				Map.Entry<Long, Missing> entry = iterator.next();
+				Missing missing = entry.getValue();
+				
+				if (this.client.hasReceived(entry.getKey()) || missing.attempts == MAX_ATTEMPTS || missing.neighbor == null) {
+					iterator.remove();
+					continue;
+				}
+				
+				if (missing.due > now) {
+					continue;
+				}
+				
+				requests.computeIfAbsent(missing.neighbor, neighbor -> new ArrayList<>()).add(entry.getKey());
+				missing.attempts++;
+				missing.due = now + Math.min(MAX_NACK_RETRY, NACK_RETRY << (missing.attempts - 1));
+				missing.neighbor = this.client.neighborAfter(missing.neighbor);
+			}
+			
+			for (Map.Entry<SocketAddress, List<Long>> request : requests.entrySet()) {
+				this.client.sendControl(DatagramType.NACK, request.getValue(), request.getKey());
+			}
+			
+			if (!this.missing.isEmpty()) {
+				this.scheduleCheck(Math.min(NACK_DELAY, NACK_RETRY));
+			}
+		}
+	}
+	
+	/**
+	 * A message that has not been received
+	 */
+	private static class Missing {
+		//The neighbor to ask next
+		public SocketAddress neighbor;
+		public long due;
+		public int attempts = 0;
+		
+		public Missing(SocketAddress neighbor, long due) {
+			this.neighbor = neighbor;
+			this.due = due;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package ipopprojekt.client;
+
+import java.net.SocketAddress;
+import java.util.Random;
+
+/**
+ * Relays each new message to every neighbor with a probability, which adapts to the duplicates the client sees.
+ * When more of the received messages are duplicates than the target, the network has more redundancy than needed
+ * and the probability is lowered, otherwise it is raised. The target duplicate ratio trades bandwidth for reliability:
+ * a ratio of r means that each client receives about 1 / (1 - r) copies of each message.
+ * Own messages are always sent to all neighbors.
+ */
+public class GossipRelay implements RelayStrategy {
+	/**
+	 * The system property used to set the target duplicate ratio
+	 */
+	public static final String TARGET_PROPERTY = "ipopprojekt.gossipTarget";
+	
+	/**
+	 * The default target duplicate ratio
+	 */
+	public static final double DEFAULT_TARGET = 0.8;
+	
+	/**
+	 * The lowest relay probability
+	 */
+	public static final double MIN_PROBABILITY = 0.05;
+	
+	/**
+	 * How fast the probability adapts to the difference between the duplicate ratio and the target
+	 */
+	public static final double GAIN = 0.05;
+	
+	private final P2PMessageHandler messageHandler;
+	private final double target;
+	private final Random random = new Random();
+	private double probability = 1;
+	
+	/**
+	 * Creates a new strategy
+	 * @param messageHandler The message handler, which measures the duplicate ratio
+	 * @param target The target duplicate ratio, between 0 and 1
+	 */
+	public GossipRelay(P2PMessageHandler messageHandler, double target) {
+		this.messageHandler = messageHandler;
+		this.target = target;
+	}
+	
+	/**
+	 * Returns the current relay probability
+	 */
+	public double getProbability() {
+		return this.probability;
+	}
+	
+	/**
+	 * Returns the relay probability after receiving a message
+	 * @param probability The current probability
+	 * @param duplicateRatio The current duplicate ratio
+	 * @param target The target duplicate ratio
+	 */
+	public static double adapt(double probability, double duplicateRatio, double target) {
+		double adapted = probability * Math.exp(GAIN * (target - duplicateRatio));
+		return Math.max(MIN_PROBABILITY, Math.min(1, adapted));
+	}
+	
+	/**
+	 * Returns the target duplicate ratio set by the system property, or the default
+	 */
+	public static double targetFromSystemProperty() {
+		String target = System.getProperty(TARGET_PROPERTY);
+		
+		if (target != null) {
+			try {
+				return Math.max(0, Math.min(1, Double.parseDouble(target)));
+			} catch (NumberFormatException e) {
+				System.err.println("Invalid gossip target '" + target + "'");
+			}
+		}
+		
+		return DEFAULT_TARGET;
+	}
+	
+	@Override
+	public void messageReceived(long messageId, SocketAddress sender, byte[] message) {
+		if (sender != null) {
+			this.probability = adapt(this.probability, this.messageHandler.getDuplicateRatio(), this.target);
+		}
+	}
+	
+	@Override
+	public boolean shouldRelay(long messageId, SocketAddress sender) {
+		return sender == null || this.random.nextDouble() < this.probability;
+	}
+	
+	@Override
+	public void duplicateReceived(long messageId, SocketAddress sender) {
+		this.probability = adapt(this.probability, this.messageHandler.getDuplicateRatio(), this.target);
+	}
+	
+	@Override
+	public void announcementReceived(long messageId, SocketAddress sender) {
+	
+	}
+	
+	@Override
+	public void graftReceived(long messageId, SocketAddress sender) {
+	
+	}
+	
+	@Override
+	public void pruneReceived(SocketAddress sender) {
+	
+	}
+}
@@ -0,0 +1,197 @@
+package ipopprojekt.client;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A network that delivers datagrams between transports in the same process, used to run many P2P clients without sockets.
+ * Like UDP, datagrams sent to an address without a transport are dropped. By default datagrams are never dropped because of full buffers,
+ * but the links to the transports can be given a bandwidth and a buffer, so that datagrams sent faster than the bandwidth
+ * are dropped when the buffer is full, and a ratio of the datagrams can be dropped at random to test how lost datagrams are handled.
+ * The datagrams that pass a link arrive directly, only the drops are emulated.
+ */
+public class InMemoryNetwork {
+	private final Map<SocketAddress, Endpoint> endpoints = new ConcurrentHashMap<>();
+	private final Random random;
+	private volatile double lossRate = 0;
+	private volatile double linkRate = 0;
+	private volatile int linkBufferSize = 0;
+	private final LongAdder numOverflows = new LongAdder();
+	
+	/**
+	 * Creates a new network
+	 */
+	public InMemoryNetwork() {
+		this(0);
+	}
+	
+	/**
+	 * Creates a new network
+	 * @param seed The seed used to choose the datagrams that are lost
+	 */
+	public InMemoryNetwork(long seed) {
+		this.random = new Random(seed);
+	}
+	
+	/**
+	 * Sets the ratio of the datagrams that are dropped
+	 * @param lossRate The ratio, between 0 and 1
+	 */
+	public void setLossRate(double lossRate) {
+		this.lossRate = lossRate;
+	}
+	
+	/**
+	 * Sets the bandwidth and the buffer of the link to each transport
+	 * @param linkRate The bandwidth in bytes per second, 0 for no limit
+	 * @param linkBufferSize The number of bytes that can wait to pass the link, the datagrams beyond that are dropped
+	 */
+	public void setLinks(double linkRate, int linkBufferSize) {
+		this.linkBufferSize = linkBufferSize;
+		this.linkRate = linkRate;
+	}
+	
+	/**
+	 * Returns the number of datagrams dropped because the buffer of a link was full
+	 */
+	public long getNumOverflows() {
+		return this.numOverflows.sum();
+	}
+	
+	/**
+	 * Indicates if the next datagram is dropped
+	 */
+	private boolean isLost() {
+		double lossRate = this.lossRate;
+		return lossRate > 0 && this.random.nextDouble() < lossRate;
+	}
+	
+	/**
+	 * Creates a transport bound to the given address
+	 * @param address The address
+	 */
+	public DatagramTransport bind(SocketAddress address) {
+		Endpoint endpoint = new Endpoint(address);
+		if (this.endpoints.putIfAbsent(address, endpoint) != null) {
+			throw new IllegalArgumentException("The address " + address + " is already bound");
+		}
+		
+		return endpoint;
+	}
+	
+	/**
+	 * A datagram in the queue of an endpoint
+	 */
+	private static class Datagram {
+		public final SocketAddress sender;
+		public final byte[] data;
+		
+		public Datagram(SocketAddress sender, byte[] data) {
+			this.sender = sender;
+			this.data = data;
+		}
+	}
+	
+	/**
+	 * A transport bound to an address in the network
+	 */
+	private class Endpoint implements DatagramTransport {
+		//Put in the queue when the endpoint is closed, to wake up the receiver
+		private final Datagram CLOSED = new Datagram(null, null);
+		
+		private final SocketAddress address;
+		private final BlockingQueue<Datagram> queue = new LinkedBlockingQueue<>();
+		private volatile boolean closed = false;
+		
+		//The time in nanoseconds when the link to the endpoint has sent the datagrams in its buffer
+		private long linkFreeAt = 0;
+		
+		public Endpoint(SocketAddress address) {
+			this.address = address;
+		}
+		
+		/**
+		 * Adds a datagram to the buffer of the link, if there is room for it
+		 * @param size The size of the datagram
+		 * @return False if the datagram is dropped
+		 */
+		public synchronized boolean admit(int size) {
+			double rate = linkRate;
+			if (rate <= 0) {
+				return true;
+			}
+			
+			long now = System.nanoTime();
+			long start = Math.max(now, this.linkFreeAt);
+			if ((start - now) * rate / 1E9 + size > linkBufferSize) {
+				return false;
+			}
+			
+			this.linkFreeAt = start + (long)(size * 1E9 / rate);
+			return true;
+		}
+		
+		@Override
+		public SocketAddress receive(ByteBuffer buffer) throws IOException {
+			if (this.closed) {
+				throw new AsynchronousCloseException();
+			}
+			
+			Datagram datagram;
+			try {
+				datagram = this.queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new AsynchronousCloseException();
+			}
+			
+			if (datagram == CLOSED) {
+				throw new AsynchronousCloseException();
+			}
+			
+			//Like UDP, the part of the datagram that does not fit is discarded
+			buffer.put(datagram.data, 0, Math.min(datagram.data.length, buffer.remaining()));
+			return datagram.sender;
+		}
+		
+		@Override
+		public void send(ByteBuffer data, SocketAddress address) throws IOException {
+			if (this.closed) {
+				throw new AsynchronousCloseException();
+			}
+			
+			Endpoint receiver = endpoints.get(address);
+			if (receiver == null || receiver.closed || isLost()) {
+				data.position(data.limit());
+				return;
+			}
+			
+			if (!receiver.admit(data.remaining())) {
+				numOverflows.increment();
+				data.position(data.limit());
+				return;
+			}
+			
+			byte[] copy = new byte[data.remaining()];
+			data.get(copy);
+			receiver.queue.add(new Datagram(this.address, copy));
+		}
+		
+		@Override
+		public void close() {
+			if (!this.closed) {
+				this.closed = true;
+				endpoints.remove(this.address, this);
+				this.queue.add(CLOSED);
+			}
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package ipopprojekt.client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the latest encoded chat messages, so they can be sent again when asked for
+ */
+public class MessageCache {
+	private final Map<Long, byte[]> messages;
+	
+	/**
+	 * Creates a new cache
+	 * @param capacity The number of messages to keep
+	 */
+	public MessageCache(int capacity) {
+		this.messages = new LinkedHashMap<Long, byte[]>() {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+				return this.size() > capacity;
+			}
+		};
+	}
+	
+	/**
+	 * Adds the given message
+	 * @param messageId The id of the message
+	 * @param message The encoded message
+	 */
+	public void put(long messageId, byte[] message) {
+		this.messages.put(messageId, message);
+	}
+	
+	/**
+	 * Returns the given message, or null if it is not in the cache
+	 * @param messageId The id of the message
+	 */
+	public byte[] get(long messageId) {
+		return this.messages.get(messageId);
+	}
+	
+	/**
+	 * Returns the number of messages in the cache
+	 */
+	public int size() {
+		return this.messages.size();
+	}
+}
@@ -7,14 +7,20 @@ import java.io.IOException;
 import java.net.Socket;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.Map;
 import java.util.Random;
 
 import ipopprojekt.messages.MessageId;
+import ipopprojekt.util.ExecutionBackend;
 
 /**
  * Represents a network client
  */
 public class NetworkClient implements Runnable {
+	//How often the round trip times to the peers are measured, and how long to wait for the answers
+	private static final long PROBE_INTERVAL_MS = 10000;
+	private static final long PROBE_TIMEOUT_MS = 1000;
+	
 	private final String name;
 	private int chatRoom;
 	
@@ -32,6 +38,7 @@ public class NetworkClient implements Runnable {
 	private final ChatMessageReceived chatMessageReceived;
 	private final ChatRoomListReceived chatRoomListReceived;
 	private final ConnectionEvents connectionEvents;
+	private final ExecutionBackend executionBackend;
 	
 	/**
 	 * Creates a new network client
@@ -49,12 +56,34 @@ public class NetworkClient implements Runnable {
 		ChatMessageReceived chatMessageReceived,
 		ChatRoomListReceived chatroomListReceived,
 		ConnectionEvents connectionEvents) {
+		this(serverName, serverPort, name, chatMessageReceived, chatroomListReceived, connectionEvents, ExecutionBackend.fromSystemProperty());
+	}
+	
+	/**
+	 * Creates a new network client
+	 * @param serverName The name of the server
+	 * @param serverPort The port of the server
+	 * @param name The name of the client
+	 * @param chatMessageReceived Handles when a message is received
+	 * @param chatroomListReceived Handles when the chat room list is received
+	 * @param connectionEvents Handles connection events
+	 * @param executionBackend How the receive loops are executed
+	 */
+	public NetworkClient(
+		String serverName,
+		int serverPort,
+		String name,	
+		ChatMessageReceived chatMessageReceived,
+		ChatRoomListReceived chatroomListReceived,
+		ConnectionEvents connectionEvents,
+		ExecutionBackend executionBackend) {
 		this.serverName = serverName;
 		this.serverPort = serverPort;
 		this.name = name;
 		this.chatMessageReceived = chatMessageReceived;
 		this.chatRoomListReceived = chatroomListReceived;
 		this.connectionEvents = connectionEvents;
+		this.executionBackend = executionBackend;
 		connectToServer();
 	}
 	
@@ -78,7 +107,7 @@ public class NetworkClient implements Runnable {
 	public String getServerName() {
 		return this.serverName;
 	}
-
+	
 	/**
 	 * Returns the server port
 	 */
@@ -144,9 +173,8 @@ public class NetworkClient implements Runnable {
 			this.connectionEvents.connected();
 			
 			//Handle communication in a separate thread
-			Thread clientThread = new Thread(this);
-			clientThread.start();
-									
+			this.executionBackend.execute(this, "network-client");
+			
 			//Choose a random port to receive messages on
 			Random random = new Random();
 			this.p2pPort = 4712 + random.nextInt(10000);
@@ -175,7 +203,7 @@ public class NetworkClient implements Runnable {
 			this.p2pClient.close();
 		}
 	}
-
+	
 	@Override
 	public void run() {
 		while (this.isConnected()) {
@@ -220,6 +248,19 @@ public class NetworkClient implements Runnable {
 						chatRoomListReceived.listReceived(streamIn.readInt());
 					}
 					break;
+				case PROBE_PEERS:
+					{
+						int num = streamIn.readInt();
+						for (int i = 0; i < num; i++) {
+							int userId = streamIn.readInt();
+							InetSocketAddress userAddress = new InetSocketAddress(
+								streamIn.readUTF(),
+								streamIn.readInt());
+							
+							this.p2pClient.addProbePeer(userId, userAddress);
+						}
+					}
+					break;
 				default: break;
 				}
 			} catch (IOException e) {
@@ -236,17 +277,73 @@ public class NetworkClient implements Runnable {
 		this.chatRoom = chatRoom;
 		
 		try {
-			this.p2pClient = new P2PClient(this.p2pPort, this.userId, this.name, this.chatMessageReceived);
+			this.p2pClient = new P2PClient(
+				this.p2pPort,
+				this.userId,
+				this.name,
+				this.chatMessageReceived,
+				this.executionBackend);
+			
+			synchronized (this.streamOut) {
+				this.streamOut.writeByte(MessageId.CONNECT_CLIENT.getId());
+				this.streamOut.writeInt(this.p2pPort);
+				this.streamOut.writeInt(this.chatRoom);
+				this.streamOut.flush();
+			}
 			
-			this.streamOut.writeByte(MessageId.CONNECT_CLIENT.getId());
-			this.streamOut.writeInt(this.p2pPort);
-			this.streamOut.writeInt(this.chatRoom);
-			this.streamOut.flush();
+			this.executionBackend.execute(new Runnable() {
+				@Override
+				public void run() {
+					measureRoundTripTimes();
+				}
+			}, "latency-probe");
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Periodically measures the round trip times to the peers and reports them to the server,
+	 * which uses them to choose neighbors with low latency
+	 */
+	private void measureRoundTripTimes() {
+		P2PClient p2pClient = this.p2pClient;
+		
+		try {
+			while (this.isConnected()) {
+				//The first probe is made soon after joining, so the server gets the times early
+				Thread.sleep(PROBE_TIMEOUT_MS);
+				p2pClient.probe();
+				Thread.sleep(PROBE_TIMEOUT_MS);
+				
+				Map<Integer, Integer> roundTripTimes = p2pClient.takeRoundTripTimes();
+				if (!roundTripTimes.isEmpty()) {
+					synchronized (this.streamOut) {
+						//The server disconnects clients that report more peers than allowed
+						int num = Math.min(roundTripTimes.size(), MessageId.MAX_REPORTED_PEERS);
+						this.streamOut.writeByte(MessageId.LATENCY_REPORT.getId());
+						this.streamOut.writeInt(num);
+						
+						for (Map.Entry<Integer, Integer> entry : roundTripTimes.entrySet()) {
+							if (num-- == 0) {
+								break;
+							}
+							
+							this.streamOut.writeInt(entry.getKey());
+							this.streamOut.writeInt(entry.getValue());
+						}
+						
+						this.streamOut.flush();
+					}
+				}
+				
+				Thread.sleep(PROBE_INTERVAL_MS - 2 * PROBE_TIMEOUT_MS);
+			}
+		} catch (InterruptedException | IOException e) {
+			//The client has disconnected
+		}
+	}
+	
 	/**
 	 * Sends the given message to the chat
 	 * @param message The message
@@ -1,30 +1,154 @@
 package ipopprojekt.client;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.time.LocalDateTime;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import ipopprojekt.messages.DatagramType;
+import ipopprojekt.util.ByteBufferInputStream;
+import ipopprojekt.util.ExecutionBackend;
+import ipopprojekt.util.SpscRingBuffer;
 
 /**
  * Represents a P2P client that handles message exchange
  */
-public class P2PClient implements P2PMessageReceived {
+public class P2PClient {
 	private final P2PMessageHandler messageHandler;
 	private final ChatMessageReceived chatMessageReceived;
-	private final DatagramSocket clientSocket;
-	private boolean connected = true;
+	private final DatagramTransport transport;
+	private volatile boolean connected = true;
+	private final PipelineMetrics metrics = new PipelineMetrics(this);
 	
 	public final int MAX_PACKET_SIZE = 10 * 1024;
 	
-	private final Map<Integer, InetSocketAddress> neighbors = new HashMap<>();
+	/**
+	 * The system property used to set the linger time in milliseconds
+	 */
+	public static final String LINGER_PROPERTY = "ipopprojekt.linger";
+	
+	/**
+	 * The default time in milliseconds that outbound messages wait for more messages to be sent in the same datagram
+	 */
+	public static final long DEFAULT_LINGER = 2;
+	
+	//Sends the batches when the linger time has passed and runs the timeouts of the relay strategies, shared by all clients
+	private static ScheduledExecutorService timer;
+	
+	private final long linger = Long.getLong(LINGER_PROPERTY, DEFAULT_LINGER);
+	private boolean flushScheduled = false;
+	
+	/**
+	 * The time in milliseconds that announcements wait before being sent.
+	 * Announcements are only used to repair lost messages, so they wait longer to share datagrams.
+	 */
+	public static final long ANNOUNCEMENT_LINGER = 20;
+	private boolean announcementsScheduled = false;
+	
+	/**
+	 * The system property used to set the number of datagrams per block of forward error correction, 0 to disable it
+	 */
+	public static final String FEC_PROPERTY = "ipopprojekt.fec";
+	
+	/**
+	 * The time in milliseconds a block of forward error correction waits for more datagrams before its parity is sent
+	 */
+	public static final long FEC_LINGER = 5;
+	
+	private final int fecBlockSize = Math.max(0, Math.min(FecEncoder.MAX_BLOCK_SIZE, Integer.getInteger(FEC_PROPERTY, 0)));
+	private boolean paritiesScheduled = false;
+	
+	//The size of the largest batch, leaving room for the headers of forward error correction
+	private final int maxBatchSize = MAX_PACKET_SIZE - (this.fecBlockSize > 0 ? FecEncoder.PARITY_HEADER_SIZE : 0);
+	
+	//Used to send the datagrams and parities of forward error correction
+	private final ByteBuffer fecBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+	
+	/**
+	 * The system property used to disable the pacing of the datagrams sent to each neighbor
+	 */
+	public static final String PACING_PROPERTY = "ipopprojekt.pacing";
+	
+	private final boolean pacing = Boolean.parseBoolean(System.getProperty(PACING_PROPERTY, "true"));
+	private boolean pacingScheduled = false;
+	
+	//Used to send messages directly when there is no linger time
+	private final ByteBuffer sendBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+	//Used to send announcements, grafts and prunes
+	private final ByteBuffer controlBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+	
+	//Decides which neighbors get the messages. Only called while holding the lock of the neighbors.
+	private final RelayStrategy relayStrategy;
+	
+	/**
+	 * The number of messages kept to be sent again when asked for
+	 */
+	public static final int RETRANSMIT_BUFFER_SIZE = 4096;
+	
+	//The latest new and own messages, and the repair of lost messages. Only used while holding the lock of the neighbors.
+	private final MessageCache retransmitBuffer = new MessageCache(RETRANSMIT_BUFFER_SIZE);
+	private final GapRepair gapRepair = new GapRepair(this);
+	
+	//Used by the receive loop only
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+	private long receivedAt = 0;
+	
+	//The forward error correction of each sender, used by the receive loop only
+	private final Map<SocketAddress, FecDecoder> fecDecoders = new LinkedHashMap<SocketAddress, FecDecoder>() {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<SocketAddress, FecDecoder> eldest) {
+			return this.size() > 256;
+		}
+	};
+	
+	/**
+	 * The number of received messages that can wait to be displayed in the lock-free delivery queue.
+	 * Messages beyond that wait in the spill list.
+	 */
+	public static final int DELIVERY_QUEUE_SIZE = 4096;
+	
+	/**
+	 * The number of received messages that can wait to be displayed in the spill list, when the delivery queue is full.
+	 * Messages beyond that are relayed but not displayed.
+	 */
+	public static final int SPILL_SIZE = 65536;
+	
+	//The messages to display, from the receive loop to the delivery loop
+	private final SpscRingBuffer<Delivery> deliveries = new SpscRingBuffer<>(DELIVERY_QUEUE_SIZE);
+	//The messages that did not fit in the delivery queue, and all messages after them until it has been emptied
+	private final BlockingQueue<Delivery> spill = new LinkedBlockingQueue<>(SPILL_SIZE);
+	private volatile Thread deliveryThread;
+	private volatile boolean deliveryWaiting = false;
+	//Used by the receive loop only, so a full spill list is logged once and not for each message
+	private boolean spillFull = false;
+	
+	//Used by the delivery loop only
+	private final ByteBuffer deliveryBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+	private final DataInputStream deliveryStream = new DataInputStream(new ByteBufferInputStream(this.deliveryBuffer));
+	
+	private final Map<Integer, Neighbor> neighbors = new HashMap<>();
+	
+	//The peers to measure the round trip time to in the next probe, in addition to the neighbors
+	private final Map<Integer, InetSocketAddress> probePeers = new HashMap<>();
+	//The measured round trip times in microseconds
+	private final Map<Integer, Integer> roundTripTimes = new HashMap<>();
 	
 	/**
 	 * Creates a new P2P client
@@ -33,121 +157,1146 @@ public class P2PClient implements P2PMessageReceived {
 	 * @param name The name of the user
 	 * @param chatMessageReceived Handles when a chat message is received for the client
 	 */
-	public P2PClient(int port, int userId, String name, ChatMessageReceived chatMessageReceived) throws SocketException {
+	public P2PClient(int port, int userId, String name, ChatMessageReceived chatMessageReceived) throws IOException {
+		this(port, userId, name, chatMessageReceived, ExecutionBackend.PLATFORM_THREADS);
+	}
+	
+	/**
+	 * Creates a new P2P client
+	 * @param port The port used
+	 * @param userId The id of the client
+	 * @param name The name of the user
+	 * @param chatMessageReceived Handles when a chat message is received for the client
+	 * @param executionBackend How the receive loop is executed
+	 */
+	public P2PClient(
+		int port,
+		int userId,
+		String name,
+		ChatMessageReceived chatMessageReceived,
+		ExecutionBackend executionBackend) throws IOException {
+		this(new UdpTransport(port), userId, name, chatMessageReceived, executionBackend);
+	}
+	
+	/**
+	 * Creates a new P2P client
+	 * @param transport The transport used to send and receive datagrams
+	 * @param userId The id of the client
+	 * @param name The name of the user
+	 * @param chatMessageReceived Handles when a chat message is received for the client
+	 * @param executionBackend How the receive loop is executed
+	 */
+	public P2PClient(
+		DatagramTransport transport,
+		int userId,
+		String name,
+		ChatMessageReceived chatMessageReceived,
+		ExecutionBackend executionBackend) {
 		this.messageHandler = new P2PMessageHandler(userId, name);
-		this.clientSocket = new DatagramSocket(port);
+		this.transport = transport;
 		this.chatMessageReceived = chatMessageReceived;
+		this.relayStrategy = RelayStrategy.fromSystemProperty(this);
 		
 		//Listen for incoming messages
-		Thread receiveThread = new Thread(new Runnable() {		
+		executionBackend.execute(new Runnable() {		
 			@Override
-			public void run() {		
-				byte[] buffer = new byte[MAX_PACKET_SIZE];
-				
+			public void run() {
 				while (connected) {
-					DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-					
 					try {
-						clientSocket.receive(packet);
-						try (DataInputStream stream = new DataInputStream(new ByteArrayInputStream(buffer))) {
-							P2PMessage msg = messageHandler.nextMessage(stream);
-							
-							if (msg != null) {
-								synchronized (messageHandler) {
-									received(msg);
-								}
-							}
-						}
+						receiveBuffer.clear();
+						SocketAddress sender = transport.receive(receiveBuffer);
+						receiveBuffer.flip();
+						receivedAt = System.nanoTime();
+						metrics.numDatagrams++;
+						datagramReceived(sender);
+					} catch (RuntimeException e) {
+						//A malformed datagram is dropped, it must not stop the client from receiving
+						metrics.numMalformed++;
 					} catch (IOException e) {
-						e.printStackTrace();
+						//Closing the transport interrupts the receive
+						if (connected) {
+							e.printStackTrace();
+						}
 					}
 				}
 			}
-		});
-		receiveThread.start();
+		}, "p2p-receive");
+		
+		//Display the received messages
+		executionBackend.execute(this::deliveryLoop, "p2p-deliver");
+	}
+	
+	/**
+	 * Displays the messages handed over by the receive loop, until the client is closed
+	 */
+	private void deliveryLoop() {
+		this.deliveryThread = Thread.currentThread();
+		
+		while (this.connected) {
+			//The messages in the delivery queue are older than those in the spill list
+			Delivery delivery = this.deliveries.poll();
+			if (delivery == null) {
+				delivery = this.spill.poll();
+			}
+			
+			if (delivery == null) {
+				//The receive loop wakes the thread if it sees that it waits
+				this.deliveryWaiting = true;
+				if (this.deliveries.isEmpty() && this.spill.isEmpty() && this.connected) {
+					LockSupport.park(this);
+				}
+				
+				this.deliveryWaiting = false;
+				continue;
+			}
+			
+			P2PMessage message = null;
+			try {
+				this.deliveryBuffer.clear();
+				this.deliveryBuffer.put(delivery.message);
+				this.deliveryBuffer.flip();
+				message = this.messageHandler.readMessage(this.deliveryStream);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			
+			//Fragments are kept by the message handler until the message is complete
+			if (message == null) {
+				continue;
+			}
+			
+			this.display(message);
+			long latency = System.nanoTime() - delivery.receivedAt;
+			this.metrics.numDelivered++;
+			this.metrics.totalDeliveryNanos += latency;
+			if (latency > this.metrics.maxDeliveryNanos) {
+				this.metrics.maxDeliveryNanos = latency;
+			}
+		}
 	}
 	
 	/**
-	 * Adds a neighbor to current client
+	 * Handles the datagram in the receive buffer.
+	 * The sender and the sequence number of chat messages are read directly from the buffer,
+	 * so duplicates are dropped before anything is decoded. New chat messages are relayed as the received bytes,
+	 * and then handed over to the delivery loop to be decoded and displayed.
+	 * @param sender The address of the sender
+	 */
+	private void datagramReceived(SocketAddress sender) {
+		if (!this.receiveBuffer.hasRemaining()) {
+			return;
+		}
+		
+		DatagramType type = DatagramType.fromByte(this.receiveBuffer.get());
+		if (type == null) {
+			return;
+		}
+		
+		switch (type) {
+		case CHAT:
+			this.chatMessageReceived(sender);
+			break;
+		case BATCH:
+			{
+				int end = this.receiveBuffer.limit();
+				
+				while (this.receiveBuffer.remaining() >= 2) {
+					int length = this.receiveBuffer.getShort() & 0xFFFF;
+					int next = this.receiveBuffer.position() + length;
+					
+					if (next > end) {
+						break;
+					}
+					
+					//Limit the buffer to the message
+					this.receiveBuffer.limit(next);
+					this.chatMessageReceived(sender);
+					this.receiveBuffer.limit(end);
+					this.receiveBuffer.position(next);
+				}
+			}
+			break;
+		case PING:
+			if (this.receiveBuffer.remaining() >= 8) {
+				this.sendPing(DatagramType.PONG, this.receiveBuffer.getLong(), sender);
+			}
+			break;
+		case PONG:
+			if (this.receiveBuffer.remaining() >= 12) {
+				int userId = this.receiveBuffer.getInt();
+				long sent = this.receiveBuffer.getLong();
+				this.pongReceived(userId, sent);
+			}
+			break;
+		case IHAVE:
+			synchronized (this.neighbors) {
+				while (this.receiveBuffer.remaining() >= 8) {
+					this.relayStrategy.announcementReceived(this.receiveBuffer.getLong(), sender);
+				}
+			}
+			break;
+		case GRAFT:
+			synchronized (this.neighbors) {
+				//Like NACKs, only grafts from neighbors are answered, and a graft asks for a single message
+				if (this.neighborAt(sender) != null && this.receiveBuffer.remaining() >= 8) {
+					this.relayStrategy.graftReceived(this.receiveBuffer.getLong(), sender);
+				}
+			}
+			break;
+		case PRUNE:
+			synchronized (this.neighbors) {
+				this.relayStrategy.pruneReceived(sender);
+			}
+			break;
+		case NACK:
+			synchronized (this.neighbors) {
+				//Only neighbors are answered, so the client can not be used to send messages to other addresses
+				if (this.neighborAt(sender) != null) {
+					this.lossReported(sender);
+					for (int i = 0; i < GapRepair.MAX_NACK_SIZE && this.receiveBuffer.remaining() >= 8; i++) {
+						this.gapRepair.nackReceived(this.receiveBuffer.getLong(), sender);
+					}
+				}
+			}
+			break;
+		case FEC_DATA:
+			if (this.receiveBuffer.remaining() > 5) {
+				int block = this.receiveBuffer.getInt();
+				int index = this.receiveBuffer.get() & 0xFF;
+				byte[] recovered = this.fecDecoder(sender).dataReceived(block, index, this.receiveBuffer);
+				
+				this.innerDatagramReceived(sender);
+				if (recovered != null) {
+					this.recoveredDatagramReceived(recovered, sender);
+				}
+			}
+			break;
+		case FEC_PARITY:
+			{
+				byte[] recovered = this.fecDecoder(sender).parityReceived(this.receiveBuffer);
+				if (recovered != null) {
+					this.recoveredDatagramReceived(recovered, sender);
+				}
+			}
+			break;
+		default:
+			break;
+		}
+	}
+	
+	/**
+	 * Returns the forward error correction of the given sender
+	 * @param sender The address of the sender
+	 */
+	private FecDecoder fecDecoder(SocketAddress sender) {
+		FecDecoder decoder = this.fecDecoders.get(sender);
+		if (decoder == null) {
+			decoder = new FecDecoder();
+			this.fecDecoders.put(sender, decoder);
+		}
+		
+		return decoder;
+	}
+	
+	/**
+	 * Handles the datagram in a block of forward error correction, between the position and the limit of the receive buffer
+	 * @param sender The address of the sender
+	 */
+	private void innerDatagramReceived(SocketAddress sender) {
+		byte type = this.receiveBuffer.get(this.receiveBuffer.position());
+		
+		//Blocks are never nested
+		if (type != DatagramType.FEC_DATA.getId() && type != DatagramType.FEC_PARITY.getId()) {
+			this.datagramReceived(sender);
+		}
+	}
+	
+	/**
+	 * Handles a datagram rebuilt by the forward error correction, replacing the datagram in the receive buffer
+	 * @param datagram The datagram
+	 * @param sender The address of the sender
+	 */
+	private void recoveredDatagramReceived(byte[] datagram, SocketAddress sender) {
+		if (datagram.length == 0) {
+			return;
+		}
+		
+		this.metrics.numRecovered++;
+		this.receiveBuffer.clear();
+		this.receiveBuffer.put(datagram);
+		this.receiveBuffer.flip();
+		this.innerDatagramReceived(sender);
+	}
+	
+	/**
+	 * Handles the chat message between the position and the limit of the receive buffer
+	 * @param sender The address of the sender
+	 */
+	private void chatMessageReceived(SocketAddress sender) {
+		if (this.receiveBuffer.remaining() < 8) {
+			return;
+		}
+		
+		int position = this.receiveBuffer.position();
+		int senderId = this.receiveBuffer.getInt(position);
+		int sequenceNumber = this.receiveBuffer.getInt(position + 4);
+		long messageId = P2PMessageHandler.messageId(senderId, sequenceNumber);
+		
+		//Own messages and duplicates are dropped
+		if (senderId == this.messageHandler.getUserId()
+			|| !this.messageHandler.markReceived(senderId, sequenceNumber)) {
+			this.metrics.numDuplicates++;
+			
+			synchronized (this.neighbors) {
+				this.relayStrategy.duplicateReceived(messageId, sender);
+			}
+			return;
+		}
+		
+		//Relays never change the message, so the received bytes are forwarded as they are
+		byte[] message = new byte[this.receiveBuffer.remaining()];
+		this.receiveBuffer.get(message);
+		
+		this.relay(messageId, sender, message);
+		this.metrics.numRelayed++;
+		this.metrics.totalRelayNanos += System.nanoTime() - this.receivedAt;
+		
+		this.deliver(new Delivery(message, this.receivedAt));
+	}
+	
+	/**
+	 * Hands over the given message to the delivery loop, without ever waiting for it.
+	 * Once a message has been put in the spill list, the following messages are too until it is empty, so they are displayed in order.
+	 * @param delivery The message
+	 */
+	private void deliver(Delivery delivery) {
+		if (!this.spill.isEmpty() || !this.deliveries.offer(delivery)) {
+			if (this.spill.offer(delivery)) {
+				this.spillFull = false;
+			} else {
+				this.metrics.numDropped++;
+				if (!this.spillFull) {
+					this.spillFull = true;
+					System.err.println("The display does not keep up, received messages are relayed but not displayed");
+				}
+			}
+		}
+		
+		if (this.deliveryWaiting) {
+			LockSupport.unpark(this.deliveryThread);
+		}
+	}
+	
+	/**
+	 * Adds a neighbor to current client.
+	 * A user can be added several times, once for each link to it, and stays a neighbor until removed as many times.
 	 * @param userId The id of the user
 	 * @param address The socket address of the user
 	 */
 	public void addNeighbor(int userId, InetSocketAddress address) {
 		synchronized (this.neighbors) {
-			this.neighbors.put(userId, address);
+			Neighbor neighbor = this.neighbors.get(userId);
+			
+			if (neighbor == null) {
+				this.neighbors.put(userId, new Neighbor(address));
+			} else {
+				neighbor.numLinks++;
+			}
 		}
 	}
 	
 	/**
-	 * Removes the given user as neighbor
+	 * Removes one link to the given user, and removes the user as neighbor when no links are left
 	 * @param userId The id of the user
 	 */
 	public void removeNeighbor(int userId) {
 		synchronized (this.neighbors) {
-			this.neighbors.remove(userId);
+			Neighbor neighbor = this.neighbors.get(userId);
+			
+			if (neighbor != null && --neighbor.numLinks == 0) {
+				this.neighbors.remove(userId);
+				this.flush(neighbor);
+				this.sendParity(neighbor);
+				this.sendAnnouncements(neighbor);
+			}
+		}
+	}
+	
+	/**
+	 * Adds a peer to measure the round trip time to in the next probe
+	 * @param userId The id of the user
+	 * @param address The socket address of the user
+	 */
+	public void addProbePeer(int userId, InetSocketAddress address) {
+		synchronized (this.probePeers) {
+			this.probePeers.put(userId, address);
+		}
+	}
+	
+	/**
+	 * Sends a ping to the neighbors and the probe peers. The round trip times are recorded when the pongs arrive.
+	 */
+	public void probe() {
+		Map<Integer, InetSocketAddress> peers = new HashMap<>();
+		synchronized (this.neighbors) {
+			for (Map.Entry<Integer, Neighbor> neighbor : this.neighbors.entrySet()) {
+				peers.put(neighbor.getKey(), neighbor.getValue().address);
+			}
+		}
+		
+		synchronized (this.probePeers) {
+			peers.putAll(this.probePeers);
+			this.probePeers.clear();
+		}
+		
+		for (InetSocketAddress peer : peers.values()) {
+			this.sendPing(DatagramType.PING, System.nanoTime(), peer);
+		}
+	}
+	
+	/**
+	 * Returns the round trip times measured since the last call, in microseconds
+	 */
+	public Map<Integer, Integer> takeRoundTripTimes() {
+		synchronized (this.roundTripTimes) {
+			Map<Integer, Integer> times = new HashMap<>(this.roundTripTimes);
+			this.roundTripTimes.clear();
+			return times;
+		}
+	}
+	
+	/**
+	 * Sends a ping or a pong
+	 * @param type The type, either ping or pong
+	 * @param time The time the ping was sent, which the pong echoes back
+	 * @param address The address to send to
+	 */
+	private void sendPing(DatagramType type, long time, SocketAddress address) {
+		try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+			DataOutputStream dataStream = new DataOutputStream(stream);
+			dataStream.writeByte(type.getId());
+			
+			if (type == DatagramType.PONG) {
+				dataStream.writeInt(this.messageHandler.getUserId());
+			}
+			
+			dataStream.writeLong(time);
+			dataStream.flush();
+			
+			this.transport.send(ByteBuffer.wrap(stream.toByteArray()), address);
+		} catch (IOException e) {
+			if (this.connected) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Records the round trip time for the given pong
+	 * @param userId The user that sent the pong
+	 * @param sent The time the ping was sent
+	 */
+	private void pongReceived(int userId, long sent) {
+		int roundTripTime = (int)Math.min(Integer.MAX_VALUE, (System.nanoTime() - sent) / 1000);
+		
+		synchronized (this.roundTripTimes) {
+			this.roundTripTimes.put(userId, roundTripTime);
 		}
 	}
 	
 	/**
 	 * Sends the given message
 	 * @param message The message
+	 * @throws IllegalArgumentException If the message is longer than the largest number of fragments can hold
 	 */
 	public void send(String message) {
 		this.sendMessage(this.messageHandler.createMessage(message));
 	}
 	
 	/**
-	 * Sends the given message to all neighbors
+	 * Sends the given message to all neighbors.
+	 * A large message is sent as fragments, which the neighbors relay as soon as they arrive.
 	 * @param message The message
 	 */
 	private void sendMessage(P2PMessage message) {
 		try {
-			//Create a binary version of the message
-			byte[] data = null;
-			try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
-				this.messageHandler.writeMessage(new DataOutputStream(stream), message);
-				data = stream.toByteArray();
+			List<byte[]> fragments = this.messageHandler.encodeMessage(message);
+			for (int i = 0; i < fragments.size(); i++) {
+				this.relay(
+					P2PMessageHandler.messageId(message.getSenderId(), message.getSequenceNumber() + i),
+					null,
+					fragments.get(i));
 			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 	
-			//Send to each neighbor
-			synchronized (this.neighbors) {
-				for (InetSocketAddress neighbor : this.neighbors.values()) {
-					DatagramPacket packet = new DatagramPacket(data, data.length, neighbor);
-					this.clientSocket.send(packet);
+	/**
+	 * Sends the given chat message to the neighbors, except the one it came from and the one that wrote it.
+	 * The relay strategy decides which neighbors get the message and which only get an announcement of it.
+	 * The messages and announcements are added to the batch of each neighbor, which are sent when the linger time has passed.
+	 * If there is no linger time, the message is sent directly as one datagram shared by all neighbors.
+	 * @param messageId The id of the message
+	 * @param sender The address the message came from, or null for own messages
+	 * @param message The encoded message
+	 */
+	private void relay(long messageId, SocketAddress sender, byte[] message) {
+		int writerId = (int)(messageId >>> 32);
+		
+		synchronized (this.neighbors) {
+			this.retransmitBuffer.put(messageId, message);
+			this.gapRepair.messageReceived(messageId, sender);
+			this.relayStrategy.messageReceived(messageId, sender, message);
+			
+			if (this.linger <= 0 && 1 + message.length <= MAX_PACKET_SIZE) {
+				this.sendBuffer.clear();
+				this.sendBuffer.put(DatagramType.CHAT.getId());
+				this.sendBuffer.put(message);
+				this.sendBuffer.flip();
+				
+				for (Map.Entry<Integer, Neighbor> entry : this.neighbors.entrySet()) {
+					Neighbor neighbor = entry.getValue();
+					if (neighbor.address.equals(sender) || entry.getKey() == writerId) {
+						continue;
+					}
+					
+					if (!neighbor.eager) {
+						this.announce(neighbor, messageId);
+					} else if (this.relayStrategy.shouldRelay(messageId, sender)) {
+						this.sendBuffer.rewind();
+						this.sendData(this.sendBuffer, neighbor);
+					}
 				}
+				
+				return;
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
+			
+			ByteBuffer buffer = ByteBuffer.wrap(message);
+			for (Map.Entry<Integer, Neighbor> entry : this.neighbors.entrySet()) {
+				Neighbor neighbor = entry.getValue();
+				if (neighbor.address.equals(sender) || entry.getKey() == writerId) {
+					continue;
+				}
+				
+				if (!neighbor.eager) {
+					this.announce(neighbor, messageId);
+				} else if (this.relayStrategy.shouldRelay(messageId, sender)) {
+					this.addToBatch(neighbor, buffer);
+				}
+			}
+			
+			this.scheduleFlush();
 		}
 	}
 	
 	/**
-	 * Marks that the given message was received
-	 * @param message The message
+	 * Sends the batches when the linger time has passed, or directly if there is no linger time
 	 */
-	@Override
-	public void received(P2PMessage message) {
-		//To avoid displaying own messages
-		if (message.getSenderId() == this.messageHandler.getUserId()) {
+	private void scheduleFlush() {
+		if (this.linger <= 0) {
+			this.flushAll();
+		} else if (!this.flushScheduled && !this.neighbors.isEmpty()) {
+			this.flushScheduled = true;
+			timer().schedule(this::flushAll, this.linger, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Adds the given message to the announcements for the given neighbor, sending the announcements first if they are full
+	 * @param neighbor The neighbor
+	 * @param messageId The id of the message
+	 */
+	private void announce(Neighbor neighbor, long messageId) {
+		if (1 + 8 * (neighbor.numAnnouncements + 1) > MAX_PACKET_SIZE) {
+			this.sendAnnouncements(neighbor);
+		}
+		
+		if (neighbor.numAnnouncements == neighbor.announcements.length) {
+			neighbor.announcements = Arrays.copyOf(neighbor.announcements, Math.max(16, 2 * neighbor.numAnnouncements));
+		}
+		
+		neighbor.announcements[neighbor.numAnnouncements++] = messageId;
+		
+		if (!this.announcementsScheduled) {
+			this.announcementsScheduled = true;
+			timer().schedule(this::flushAnnouncements, ANNOUNCEMENT_LINGER, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Sends the announcements of all neighbors
+	 */
+	private void flushAnnouncements() {
+		synchronized (this.neighbors) {
+			this.announcementsScheduled = false;
+			
+			for (Neighbor neighbor : this.neighbors.values()) {
+				this.sendAnnouncements(neighbor);
+			}
+		}
+	}
+	
+	/**
+	 * Sends the announcements for the given neighbor, if there are any
+	 * @param neighbor The neighbor
+	 */
+	private void sendAnnouncements(Neighbor neighbor) {
+		if (neighbor.numAnnouncements == 0) {
+			return;
+		}
+		
+		this.controlBuffer.clear();
+		this.controlBuffer.put(DatagramType.IHAVE.getId());
+		for (int i = 0; i < neighbor.numAnnouncements; i++) {
+			this.controlBuffer.putLong(neighbor.announcements[i]);
+		}
+		
+		this.controlBuffer.flip();
+		this.send(this.controlBuffer, neighbor.address);
+		neighbor.numAnnouncements = 0;
+	}
+	
+	/**
+	 * Sends a control datagram. Must be called while holding the lock of the relay strategy.
+	 * @param type The type of the datagram
+	 * @param messageId The id of the message, ignored for prunes
+	 * @param address The address to send to
+	 */
+	void sendControl(DatagramType type, long messageId, SocketAddress address) {
+		this.controlBuffer.clear();
+		this.controlBuffer.put(type.getId());
+		
+		if (type != DatagramType.PRUNE) {
+			this.controlBuffer.putLong(messageId);
+		}
+		
+		this.controlBuffer.flip();
+		this.send(this.controlBuffer, address);
+	}
+	
+	/**
+	 * Sends a control datagram with several message ids. Must be called while holding the lock of the relay strategy.
+	 * @param type The type of the datagram
+	 * @param messageIds The ids of the messages
+	 * @param address The address to send to
+	 */
+	void sendControl(DatagramType type, List<Long> messageIds, SocketAddress address) {
+		//The neighbors only answer part of larger NACKs
+		int maxIds = type == DatagramType.NACK ? GapRepair.MAX_NACK_SIZE : Integer.MAX_VALUE;
+		int start = 0;
+		while (start < messageIds.size()) {
+			this.controlBuffer.clear();
+			this.controlBuffer.put(type.getId());
+			
+			int end = (int)Math.min((long)start + maxIds, messageIds.size());
+			while (start < end && this.controlBuffer.remaining() >= 8) {
+				this.controlBuffer.putLong(messageIds.get(start++));
+			}
+			
+			this.controlBuffer.flip();
+			this.send(this.controlBuffer, address);
+		}
+		
+		if (type == DatagramType.NACK) {
+			this.metrics.numRequested += messageIds.size();
+		}
+	}
+	
+	/**
+	 * Sends the given message again to the given neighbor, in its batch, as it asked for it with a NACK or a graft.
+	 * Nothing is sent to addresses that are not neighbors.
+	 * A message is not sent again to a neighbor while the previous copy can still be waiting in its send queue.
+	 * Must be called while holding the lock of the relay strategy.
+	 * @param messageId The id of the message
+	 * @param message The encoded message
+	 * @param address The address of the neighbor
+	 */
+	void retransmit(long messageId, byte[] message, SocketAddress address) {
+		Neighbor neighbor = this.neighborAt(address);
+		if (neighbor == null) {
+			return;
+		}
+		
+		long now = System.nanoTime();
+		if (neighbor.pacer != null) {
+			Long previous = neighbor.retransmitted.get(messageId);
+			if (previous != null && now - previous < neighbor.pacer.queueDelay() + GapRepair.NACK_RETRY * 1000000L) {
+				return;
+			}
+			
+			neighbor.retransmitted.put(messageId, now);
+		}
+		
+		this.metrics.numRetransmitted++;
+		this.addToBatch(neighbor, ByteBuffer.wrap(message));
+		this.scheduleFlush();
+	}
+	
+	/**
+	 * Returns the given message if it is in the retransmit buffer, otherwise null.
+	 * Must be called while holding the lock of the relay strategy.
+	 * @param messageId The id of the message
+	 */
+	byte[] cachedMessage(long messageId) {
+		return this.retransmitBuffer.get(messageId);
+	}
+	
+	/**
+	 * Returns the neighbor with the given address, or null if there is none
+	 * @param address The address
+	 */
+	private Neighbor neighborAt(SocketAddress address) {
+		for (Neighbor neighbor : this.neighbors.values()) {
+			if (neighbor.address.equals(address)) {
+				return neighbor;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Returns the address of the neighbor after the given one, in the order of the neighbors.
+	 * Returns the first neighbor if the given address is not a neighbor, and null if there are no neighbors.
+	 * Must be called while holding the lock of the relay strategy.
+	 * @param address The address of the neighbor
+	 */
+	SocketAddress neighborAfter(SocketAddress address) {
+		SocketAddress first = null;
+		boolean found = false;
+		
+		for (Neighbor neighbor : this.neighbors.values()) {
+			if (found) {
+				return neighbor.address;
+			}
+			
+			if (first == null) {
+				first = neighbor.address;
+			}
+			
+			found = neighbor.address.equals(address);
+		}
+		
+		return first;
+	}
+	
+	/**
+	 * Sets if the neighbor with the given address gets messages directly, or only announcements of them.
+	 * Must be called while holding the lock of the relay strategy.
+	 * @param address The address of the neighbor
+	 * @param eager True if the neighbor gets the messages
+	 * @return True if the link changed
+	 */
+	boolean setEager(SocketAddress address, boolean eager) {
+		Neighbor neighbor = this.neighborAt(address);
+		if (neighbor == null || neighbor.eager == eager) {
+			return false;
+		}
+		
+		neighbor.eager = eager;
+		return true;
+	}
+	
+	/**
+	 * Returns the number of neighbors that get the messages directly
+	 */
+	public int numEagerNeighbors() {
+		synchronized (this.neighbors) {
+			int count = 0;
+			for (Neighbor neighbor : this.neighbors.values()) {
+				if (neighbor.eager) {
+					count++;
+				}
+			}
+			
+			return count;
+		}
+	}
+	
+	/**
+	 * Indicates if the given message has been received
+	 * @param messageId The id of the message
+	 */
+	boolean hasReceived(long messageId) {
+		return this.messageHandler.hasReceived(messageId);
+	}
+	
+	/**
+	 * Returns the message handler
+	 */
+	P2PMessageHandler getMessageHandler() {
+		return this.messageHandler;
+	}
+	
+	/**
+	 * Returns the lock that is held when the relay strategy is called
+	 */
+	Object relayLock() {
+		return this.neighbors;
+	}
+	
+	/**
+	 * Adds the given message to the batch of the given neighbor, sending the batch first if the message does not fit
+	 * @param neighbor The neighbor
+	 * @param message The encoded message, the position is restored afterwards
+	 */
+	private void addToBatch(Neighbor neighbor, ByteBuffer message) {
+		int position = message.position();
+		int length = message.remaining();
+		
+		//A message that does not fit in a batch is sent on its own
+		if (1 + 2 + length > this.maxBatchSize) {
+			ByteBuffer datagram = ByteBuffer.allocate(1 + length);
+			datagram.put(DatagramType.CHAT.getId());
+			datagram.put(message);
+			datagram.flip();
+			message.position(position);
+			this.sendData(datagram, neighbor);
+			return;
+		}
+		
+		if (neighbor.batch.position() + 2 + length > this.maxBatchSize) {
+			this.flush(neighbor);
+		}
+		
+		if (neighbor.numMessages == 0) {
+			neighbor.batch.put(DatagramType.BATCH.getId());
+		}
+		
+		neighbor.reserve(2 + length);
+		neighbor.batch.putShort((short)length);
+		neighbor.batch.put(message);
+		neighbor.numMessages++;
+		message.position(position);
+	}
+	
+	/**
+	 * Sends the batches of all neighbors
+	 */
+	private void flushAll() {
+		synchronized (this.neighbors) {
+			this.flushScheduled = false;
+			
+			for (Neighbor neighbor : this.neighbors.values()) {
+				this.flush(neighbor);
+			}
+		}
+	}
+	
+	/**
+	 * Sends the batch of the given neighbor, if it has any messages
+	 * @param neighbor The neighbor
+	 */
+	private void flush(Neighbor neighbor) {
+		if (neighbor.numMessages == 0) {
+			return;
+		}
+		
+		ByteBuffer batch = neighbor.batch;
+		batch.flip();
+		
+		//A single message is sent as a chat datagram, by replacing the second byte of its length with the type
+		if (neighbor.numMessages == 1) {
+			batch.put(2, DatagramType.CHAT.getId());
+			batch.position(2);
+		}
+		
+		this.sendData(batch, neighbor);
+		batch.clear();
+		neighbor.numMessages = 0;
+	}
+	
+	/**
+	 * Sends the given chat or batch datagram to the given neighbor, with forward error correction if it is enabled.
+	 * The parity is sent when the block is full, or when the block has waited for more datagrams long enough.
+	 * @param datagram The datagram
+	 * @param neighbor The neighbor
+	 */
+	private void sendData(ByteBuffer datagram, Neighbor neighbor) {
+		if (neighbor.fec == null || datagram.remaining() > this.maxBatchSize) {
+			this.sendPaced(datagram, neighbor);
+			return;
+		}
+		
+		this.fecBuffer.clear();
+		neighbor.fec.encode(datagram, this.fecBuffer);
+		this.fecBuffer.flip();
+		this.sendPaced(this.fecBuffer, neighbor);
+		
+		if (neighbor.fec.isFull()) {
+			this.sendParity(neighbor);
+		} else if (!this.paritiesScheduled) {
+			this.paritiesScheduled = true;
+			timer().schedule(this::flushParities, FEC_LINGER, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Sends the parity of the current block of the given neighbor, if it has any datagrams
+	 * @param neighbor The neighbor
+	 */
+	private void sendParity(Neighbor neighbor) {
+		if (neighbor.fec == null || !neighbor.fec.hasDatagrams()) {
+			return;
+		}
+		
+		this.fecBuffer.clear();
+		neighbor.fec.writeParity(this.fecBuffer);
+		this.fecBuffer.flip();
+		this.sendPaced(this.fecBuffer, neighbor);
+	}
+	
+	/**
+	 * Sends the given datagram to the given neighbor if its pacer has tokens, otherwise queues a copy of it
+	 * @param datagram The datagram, consumed
+	 * @param neighbor The neighbor
+	 */
+	private void sendPaced(ByteBuffer datagram, Neighbor neighbor) {
+		if (neighbor.pacer == null) {
+			this.send(datagram, neighbor.address);
+			return;
+		}
+		
+		long now = System.nanoTime();
+		if (neighbor.pacer.trySend(datagram.remaining(), now)) {
+			this.send(datagram, neighbor.address);
 			return;
 		}
 		
-		//Display the message
+		byte[] copy = new byte[datagram.remaining()];
+		datagram.get(copy);
+		
+		if (neighbor.pacer.enqueue(copy)) {
+			this.schedulePacing(neighbor.pacer.nanosUntilReady());
+		}
+	}
+	
+	/**
+	 * Schedules sending the queued datagrams, if it is not already scheduled
+	 * @param delay The delay in nanoseconds
+	 */
+	private void schedulePacing(long delay) {
+		if (!this.pacingScheduled) {
+			this.pacingScheduled = true;
+			timer().schedule(this::sendQueued, Math.max(delay, 100000), TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	/**
+	 * Sends the queued datagrams of all neighbors that the pacers allow, and schedules sending the rest
+	 */
+	private void sendQueued() {
+		synchronized (this.neighbors) {
+			this.pacingScheduled = false;
+			
+			long now = System.nanoTime();
+			long next = Long.MAX_VALUE;
+			
+			for (Neighbor neighbor : this.neighbors.values()) {
+				if (neighbor.pacer == null) {
+					continue;
+				}
+				
+				byte[] datagram;
+				while ((datagram = neighbor.pacer.poll(now)) != null) {
+					this.send(ByteBuffer.wrap(datagram), neighbor.address);
+				}
+				
+				if (neighbor.pacer.hasQueued()) {
+					next = Math.min(next, neighbor.pacer.nanosUntilReady());
+				}
+			}
+			
+			if (next != Long.MAX_VALUE) {
+				this.schedulePacing(next);
+			}
+		}
+	}
+	
+	/**
+	 * Decreases the rate to the given neighbor, as it has reported lost messages
+	 * @param address The address of the neighbor
+	 */
+	private void lossReported(SocketAddress address) {
+		Neighbor neighbor = this.neighborAt(address);
+		if (neighbor != null && neighbor.pacer != null) {
+			neighbor.pacer.lossReported(System.nanoTime());
+		}
+	}
+	
+	/**
+	 * Returns the metrics of the send queue of each neighbor, by user id. Empty if pacing is disabled.
+	 */
+	public Map<Integer, SendQueueMetrics> getSendQueueMetrics() {
+		Map<Integer, SendQueueMetrics> metrics = new HashMap<>();
+		synchronized (this.neighbors) {
+			for (Map.Entry<Integer, Neighbor> neighbor : this.neighbors.entrySet()) {
+				if (neighbor.getValue().pacer != null) {
+					metrics.put(neighbor.getKey(), neighbor.getValue().pacer.metrics());
+				}
+			}
+		}
+		
+		return metrics;
+	}
+	
+	/**
+	 * Sends the parities of the blocks of all neighbors
+	 */
+	private void flushParities() {
+		synchronized (this.neighbors) {
+			this.paritiesScheduled = false;
+			
+			for (Neighbor neighbor : this.neighbors.values()) {
+				this.sendParity(neighbor);
+			}
+		}
+	}
+	
+	/**
+	 * Sends the given datagram
+	 * @param datagram The datagram
+	 * @param address The address
+	 */
+	private void send(ByteBuffer datagram, SocketAddress address) {
+		try {
+			this.transport.send(datagram, address);
+		} catch (IOException e) {
+			if (this.connected) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the timer that sends the batches and runs the timeouts of the relay strategies
+	 */
+	static synchronized ScheduledExecutorService timer() {
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "p2p-timer");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		
+		return timer;
+	}
+	
+	/**
+	 * Displays the given message
+	 * @param message The message
+	 */
+	private void display(P2PMessage message) {
 		synchronized (this.chatMessageReceived) {
 			this.chatMessageReceived.received(new ChatMessage(
 				LocalDateTime.now(),
 				message.getSenderName(),
 				message.getMessage()));
 		}
-		
-		//Relay it to other clients
-		this.sendMessage(message);
+	}
+	
+	/**
+	 * Returns the number of datagrams received
+	 */
+	public long getNumDatagramsReceived() {
+		return this.metrics.getNumDatagrams();
+	}
+	
+	/**
+	 * Returns the metrics of the receive pipeline
+	 */
+	public PipelineMetrics getMetrics() {
+		return this.metrics;
+	}
+	
+	/**
+	 * Returns the number of messages waiting to be displayed
+	 */
+	int deliveryQueueDepth() {
+		return this.deliveries.size() + this.spill.size();
 	}
 	
 	/**
 	 * Closes the client
 	 */
 	public void close() {
+		this.flushAll();
+		this.flushParities();
+		this.flushAnnouncements();
 		this.connected = false;
+		
+		Thread deliveryThread = this.deliveryThread;
+		if (deliveryThread != null) {
+			LockSupport.unpark(deliveryThread);
+		}
+		
+		try {
+			this.transport.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * A neighbor and the messages waiting to be sent to it
+	 */
+	private class Neighbor {
+		public final InetSocketAddress address;
+		public int numLinks = 1;
+		public ByteBuffer batch = ByteBuffer.allocate(256);
+		public int numMessages = 0;
+		
+		//The forward error correction of the sent datagrams, null if disabled
+		public final FecEncoder fec = fecBlockSize > 0 ? new FecEncoder(fecBlockSize, maxBatchSize) : null;
+		
+		//Paces the sent datagrams, null if disabled
+		public final Pacer pacer = pacing ? new Pacer(System.nanoTime()) : null;
+		
+		//The time in nanoseconds each of the latest messages was sent again
+		public final Map<Long, Long> retransmitted = new LinkedHashMap<Long, Long>() {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+				return this.size() > RETRANSMIT_BUFFER_SIZE;
+			}
+		};
+		
+		//False if the neighbor only gets announcements of the messages
+		public boolean eager = true;
+		public long[] announcements = new long[0];
+		public int numAnnouncements = 0;
+		
+		public Neighbor(InetSocketAddress address) {
+			this.address = address;
+		}
+		
+		/**
+		 * Makes room for the given number of bytes in the batch
+		 * @param size The number of bytes
+		 */
+		public void reserve(int size) {
+			if (this.batch.remaining() < size) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.min(MAX_PACKET_SIZE, Math.max(2 * this.batch.capacity(), this.batch.position() + size)));
+				this.batch.flip();
+				larger.put(this.batch);
+				this.batch = larger;
+			}
+		}
+	}
+	
+	/**
+	 * A received message waiting to be displayed
+	 */
+	private static class Delivery {
+		public final byte[] message;
+		public final long receivedAt;
+		
+		public Delivery(byte[] message, long receivedAt) {
+			this.message = message;
+			this.receivedAt = receivedAt;
+		}
 	}
 }
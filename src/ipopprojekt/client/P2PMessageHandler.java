@@ -1,28 +1,88 @@
 package ipopprojekt.client;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import ipopprojekt.util.DuplicateFilter;
+import ipopprojekt.util.Reassembler;
 
 /**
- * Handles P2P messages
+ * Handles P2P messages.
+ * Messages larger than a fragment are split into fragments, which each get their own sequence number,
+ * so they are relayed, checked for duplicates and repaired like any other message.
+ * The fragments are put together again when the message is read.
  */
 public class P2PMessageHandler {
 	private final int userId;
 	private final String name;
-	private final Set<ReceivedMessage> receivedMessages = new HashSet<>();
+	private final DuplicateFilter receivedMessages;
+	private final Reassembler reassembler = new Reassembler(MAX_REASSEMBLY_BYTES, REASSEMBLY_TIMEOUT);
 	private int sequenceNumber = 0;
 	
+	/**
+	 * How much each received message moves the duplicate ratio
+	 */
+	public static final double DUPLICATE_RATIO_SMOOTHING = 0.01;
+	
+	private double duplicateRatio = 0;
+	
+	/**
+	 * The number of sequence numbers per sender that are remembered by default
+	 */
+	public static final int DEFAULT_WINDOW_SIZE = 1024;
+	
+	/**
+	 * The time in milliseconds after which an idle sender is forgotten by default
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 10 * 60 * 1000;
+	
+	/**
+	 * The largest number of bytes of a message in one fragment, so that a fragment fits in the MTU of most paths
+	 */
+	public static final int MAX_FRAGMENT_SIZE = 1200;
+	
+	/**
+	 * The largest number of fragments of a message, which must be smaller than the window of received sequence numbers
+	 */
+	public static final int MAX_FRAGMENTS = 512;
+	
+	/**
+	 * The time in milliseconds after which a message that is still missing fragments is discarded
+	 */
+	public static final long REASSEMBLY_TIMEOUT = 10 * 1000;
+	
+	/**
+	 * The largest number of bytes held by messages that are still missing fragments
+	 */
+	public static final long MAX_REASSEMBLY_BYTES = 4 * 1024 * 1024;
+	
 	/**
 	 * Creates a new message handler
 	 * @param userId The id of the user
 	 * @param name The name of the user
 	 */
 	public P2PMessageHandler(int userId, String name) {
+		this(userId, name, DEFAULT_WINDOW_SIZE, DEFAULT_IDLE_TIMEOUT);
+	}
+	
+	/**
+	 * Creates a new message handler
+	 * @param userId The id of the user
+	 * @param name The name of the user
+	 * @param windowSize The number of sequence numbers per sender to remember. Older messages are dropped.
+	 * @param idleTimeout The time in milliseconds after which a sender without messages is forgotten
+	 */
+	public P2PMessageHandler(int userId, String name, int windowSize, long idleTimeout) {
 		this.userId = userId;
 		this.name = name;
+		this.receivedMessages = new DuplicateFilter(windowSize, idleTimeout);
 	}
 	
 	/**
@@ -33,54 +93,86 @@ public class P2PMessageHandler {
 	}
 	
 	/**
-	 * Represents a received message
+	 * Creates a P2P message. A sequence number is used for each fragment of the message.
+	 * @param message The text message
+	 * @throws IllegalArgumentException If the message needs more than the largest number of fragments
 	 */
-	private static class ReceivedMessage {
-		public final int senderId;
-		public final int sequenceNumber;
-		
-		/**
-		 * Creates a new received message
-		 */
-		public ReceivedMessage(int senderId, int sequenceNumber) {
-			this.senderId = senderId;
-			this.sequenceNumber = sequenceNumber;
+	public P2PMessage createMessage(String message) {
+		int numFragments = numFragments(encodeContent(this.name, message).length);
+		if (numFragments > MAX_FRAGMENTS) {
+			throw new IllegalArgumentException("The message is too long");
 		}
 		
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + senderId;
-			result = prime * result + sequenceNumber;
-			return result;
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (obj == null)
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			ReceivedMessage other = (ReceivedMessage) obj;
-			if (senderId != other.senderId)
-				return false;
-			if (sequenceNumber != other.sequenceNumber)
-				return false;
-			return true;
+		synchronized (this) {
+			P2PMessage created = new P2PMessage(this.userId, this.sequenceNumber, this.name, message);
+			this.sequenceNumber += numFragments;
+			return created;
 		}
 	}
 	
 	/**
-	 * Creates a P2P message
+	 * Returns the number of fragments needed for the given number of bytes
+	 * @param size The number of bytes
+	 */
+	public static int numFragments(int size) {
+		return Math.max(1, (size + MAX_FRAGMENT_SIZE - 1) / MAX_FRAGMENT_SIZE);
+	}
+	
+	/**
+	 * Encodes the name of the sender and the text of a message.
+	 * The text is prefixed with its length as an int, as strings written by the data streams are limited to 64 KB.
+	 * @param senderName The name of the sender
 	 * @param message The text message
 	 */
-	public P2PMessage createMessage(String message) {
-		synchronized (this) {
-			return new P2PMessage(this.userId, this.sequenceNumber++, this.name, message);
+	private static byte[] encodeContent(String senderName, String message) {
+		byte[] text = message.getBytes(StandardCharsets.UTF_8);
+		
+		try (ByteArrayOutputStream stream = new ByteArrayOutputStream(2 + senderName.length() + 4 + text.length)) {
+			DataOutputStream dataStream = new DataOutputStream(stream);
+			dataStream.writeUTF(senderName);
+			dataStream.writeInt(text.length);
+			dataStream.write(text);
+			dataStream.flush();
+			return stream.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+	
+	/**
+	 * Encodes the given message, split into fragments if it is larger than a fragment.
+	 * Each fragment has the sequence number of the message plus its index.
+	 * @param message The message
+	 * @return The encoded fragments, in order
+	 */
+	public List<byte[]> encodeMessage(P2PMessage message) throws IOException {
+		byte[] content = encodeContent(message.getSenderName(), message.getMessage());
+		int numFragments = numFragments(content.length);
+		List<byte[]> fragments = new ArrayList<>(numFragments);
+		
+		for (int i = 0; i < numFragments; i++) {
+			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			DataOutputStream dataStream = new DataOutputStream(stream);
+			dataStream.writeInt(message.getSenderId());
+			dataStream.writeInt(message.getSequenceNumber() + i);
+			dataStream.writeShort(i);
+			dataStream.writeShort(numFragments);
+			
+			//A fragment carries the length of its part, a whole message is read up to the end of its text
+			if (numFragments == 1) {
+				dataStream.write(content);
+			} else {
+				int start = i * MAX_FRAGMENT_SIZE;
+				int end = Math.min(content.length, start + MAX_FRAGMENT_SIZE);
+				dataStream.writeShort(end - start);
+				dataStream.write(content, start, end - start);
+			}
+			
+			dataStream.flush();
+			fragments.add(stream.toByteArray());
 		}
+		
+		return fragments;
 	}
 	
 	/**
@@ -93,38 +185,204 @@ public class P2PMessageHandler {
 	}
 	
 	/**
-	 * Writes the given message to the given stream
+	 * Writes the given message to the given stream, as its fragments one after the other
 	 * @param stream The stream
 	 * @param message The message
 	 */
 	public void writeMessage(DataOutputStream stream, P2PMessage message) throws IOException {
-		stream.writeInt(message.getSenderId());
-		stream.writeInt(message.getSequenceNumber());	
-		stream.writeUTF(message.getSenderName());
-		stream.writeUTF(message.getMessage());
+		for (byte[] fragment : this.encodeMessage(message)) {
+			stream.write(fragment);
+		}
+		
 		stream.flush();
 	}
 	
 	/**
-	 * Reads the next message from the given stream. If the message has already been read, returns null.
+	 * Marks the given message as received
+	 * @param senderId The id of the sender
+	 * @param sequenceNumber The sequence number of the message
+	 * @return True if the message had not been received before
+	 */
+	public boolean markReceived(int senderId, int sequenceNumber) {
+		synchronized (this) {
+			boolean isNew = this.receivedMessages.markReceived(senderId, sequenceNumber, System.currentTimeMillis());
+			this.duplicateRatio = updateDuplicateRatio(this.duplicateRatio, !isNew);
+			return isNew;
+		}
+	}
+	
+	/**
+	 * Returns the recent ratio of received messages that had already been received, between 0 and 1.
+	 * The ratio is an exponential moving average over the received messages.
+	 */
+	public double getDuplicateRatio() {
+		synchronized (this) {
+			return this.duplicateRatio;
+		}
+	}
+	
+	/**
+	 * Returns the duplicate ratio after receiving a message
+	 * @param duplicateRatio The current ratio
+	 * @param isDuplicate Indicates if the message had already been received
+	 */
+	public static double updateDuplicateRatio(double duplicateRatio, boolean isDuplicate) {
+		return duplicateRatio + DUPLICATE_RATIO_SMOOTHING * ((isDuplicate ? 1 : 0) - duplicateRatio);
+	}
+	
+	/**
+	 * Indicates if the given message has been received
+	 * @param messageId The id of the message
+	 */
+	public boolean hasReceived(long messageId) {
+		synchronized (this) {
+			return this.receivedMessages.contains((int)(messageId >>> 32), (int)messageId);
+		}
+	}
+	
+	/**
+	 * Returns the id of the given message, which combines the sender and the sequence number
+	 * @param senderId The id of the sender
+	 * @param sequenceNumber The sequence number
+	 */
+	public static long messageId(int senderId, int sequenceNumber) {
+		return ((long)senderId << 32) | (sequenceNumber & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Reads a message or a fragment of a message from the given stream without checking if it has been received before.
+	 * The fragments are kept until the message is complete.
+	 * @param stream The input stream
+	 * @return The message, or null if fragments of it are missing
+	 */
+	public P2PMessage readMessage(DataInputStream stream) throws IOException {
+		return this.readMessage(stream, false);
+	}
+	
+	/**
+	 * Reads the next message or fragment of a message from the given stream.
+	 * If it has already been read, or if fragments of the message are missing, returns null.
 	 * @param stream The input stream
 	 * @return The message or null
 	 */
 	public P2PMessage nextMessage(DataInputStream stream) throws IOException {
+		return this.readMessage(stream, true);
+	}
+	
+	/**
+	 * Reads a message or a fragment of a message from the given stream
+	 * @param stream The input stream
+	 * @param checkReceived Indicates if the message or the fragment is dropped if it has already been received
+	 * @return The message, or null if it has already been received or fragments of it are missing
+	 */
+	private P2PMessage readMessage(DataInputStream stream, boolean checkReceived) throws IOException {
 		int senderId = stream.readInt();
 		int sequenceNumber = stream.readInt();
-		String senderName = stream.readUTF();
-		String message = stream.readUTF();
-		ReceivedMessage receivedMessage = new ReceivedMessage(senderId, sequenceNumber);
+		int index = stream.readUnsignedShort();
+		int numFragments = stream.readUnsignedShort();
 		
-		//Check if the message has already been received
-		synchronized (this) {
-			if (!this.receivedMessages.contains(receivedMessage)) {
-				this.receivedMessages.add(receivedMessage);
-				return new P2PMessage(senderId, sequenceNumber, senderName, message);
-			} else {
+		if (numFragments <= 1) {
+			String senderName = stream.readUTF();
+			String message = readText(stream);
+			
+			if (checkReceived && !this.markReceived(senderId, sequenceNumber)) {
 				return null;
 			}
+			
+			return new P2PMessage(senderId, sequenceNumber, senderName, message);
+		}
+		
+		byte[] fragment = new byte[stream.readUnsignedShort()];
+		stream.readFully(fragment);
+		
+		if (checkReceived && !this.markReceived(senderId, sequenceNumber)) {
+			return null;
+		}
+		
+		if (numFragments > MAX_FRAGMENTS) {
+			return null;
+		}
+		
+		int firstSequenceNumber = sequenceNumber - index;
+		byte[] content;
+		synchronized (this) {
+			content = this.reassembler.add(
+				messageId(senderId, firstSequenceNumber),
+				index,
+				numFragments,
+				fragment,
+				System.currentTimeMillis());
+		}
+		
+		if (content == null) {
+			return null;
+		}
+		
+		DataInputStream contentStream = new DataInputStream(new ByteArrayInputStream(content));
+		String senderName = contentStream.readUTF();
+		return new P2PMessage(senderId, firstSequenceNumber, senderName, readText(contentStream));
+	}
+	
+	/**
+	 * Reads a text prefixed with its length in bytes as an int
+	 * @param stream The input stream
+	 */
+	private static String readText(DataInputStream stream) throws IOException {
+		int length = stream.readInt();
+		if (length < 0 || length > MAX_FRAGMENTS * MAX_FRAGMENT_SIZE) {
+			throw new IOException("Invalid message length: " + length);
+		}
+		
+		byte[] text = new byte[length];
+		stream.readFully(text);
+		return new String(text, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Returns the number of messages discarded before all their fragments had been read
+	 */
+	public long numIncomplete() {
+		synchronized (this) {
+			return this.reassembler.numDiscarded();
+		}
+	}
+	
+	/**
+	 * Writes the given messages as a batch, where each message or fragment is prefixed with its length
+	 * @param stream The stream
+	 * @param messages The messages
+	 */
+	public void writeBatch(DataOutputStream stream, List<P2PMessage> messages) throws IOException {
+		for (P2PMessage message : messages) {
+			for (byte[] fragment : this.encodeMessage(message)) {
+				stream.writeShort(fragment.length);
+				stream.write(fragment);
+			}
+		}
+		
+		stream.flush();
+	}
+	
+	/**
+	 * Reads the messages of a batch from the given stream, until the end of the stream.
+	 * Messages that have already been read and messages that are missing fragments are skipped.
+	 * @param stream The input stream
+	 * @return The new messages
+	 */
+	public List<P2PMessage> nextMessages(DataInputStream stream) throws IOException {
+		List<P2PMessage> messages = new ArrayList<>();
+		
+		while (true) {
+			try {
+				stream.readUnsignedShort();
+			} catch (EOFException e) {
+				return messages;
+			}
+			
+			P2PMessage message = this.nextMessage(stream);
+			if (message != null) {
+				messages.add(message);
+			}
 		}
 	}
 }
@@ -0,0 +1,201 @@
+package ipopprojekt.client;
+
+import java.util.ArrayDeque;
+
+/**
+ * Paces the datagrams sent to a neighbor with a token bucket, so that bursts do not overflow the buffers of slow neighbors.
+ * The rate is adjusted with AIMD: it grows by a fixed amount per second, and is halved when the neighbor reports lost messages,
+ * at most once per decrease interval. Datagrams that have to wait for tokens are queued, up to a limit.
+ * Not thread safe, used while holding the lock of the neighbors of the client.
+ */
+public class Pacer {
+	/**
+	 * The rate in bytes per second that a new neighbor starts with
+	 */
+	public static final double INITIAL_RATE = 1024 * 1024;
+	
+	/**
+	 * The lowest rate in bytes per second
+	 */
+	public static final double MIN_RATE = 128 * 1024;
+	
+	/**
+	 * The highest rate in bytes per second
+	 */
+	public static final double MAX_RATE = 64 * 1024 * 1024;
+	
+	/**
+	 * How much the rate grows per second, in bytes per second
+	 */
+	public static final double ADDITIVE_INCREASE = 256 * 1024;
+	
+	/**
+	 * How much the rate is multiplied with when messages are lost
+	 */
+	public static final double MULTIPLICATIVE_DECREASE = 0.5;
+	
+	/**
+	 * The time in nanoseconds after a decrease during which reported losses do not decrease the rate again,
+	 * as they were most likely caused by datagrams sent before the decrease
+	 */
+	public static final long DECREASE_INTERVAL = 100 * 1000000L;
+	
+	/**
+	 * The number of bytes that can be sent at once after being idle
+	 */
+	public static final double BURST_SIZE = 16 * 1024;
+	
+	/**
+	 * The number of bytes that can wait to be sent, datagrams beyond that are dropped
+	 */
+	public static final int MAX_QUEUED_BYTES = 1024 * 1024;
+	
+	private double rate = INITIAL_RATE;
+	private double tokens = BURST_SIZE;
+	private long lastRefill;
+	private long lastDecrease;
+	
+	private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+	private int queuedBytes = 0;
+	
+	private long numSent = 0;
+	private long numQueued = 0;
+	private long numDropped = 0;
+	private long numDecreases = 0;
+	private int maxQueuedBytes = 0;
+	
+	/**
+	 * Creates a new pacer
+	 * @param now The current time in nanoseconds
+	 */
+	public Pacer(long now) {
+		this.lastRefill = now;
+		this.lastDecrease = now - DECREASE_INTERVAL;
+	}
+	
+	/**
+	 * Adds the tokens and the rate increase for the time since the last refill
+	 * @param now The current time in nanoseconds
+	 */
+	private void refill(long now) {
+		double seconds = (now - this.lastRefill) / 1E9;
+		if (seconds <= 0) {
+			return;
+		}
+		
+		this.lastRefill = now;
+		this.tokens = Math.min(BURST_SIZE, this.tokens + this.rate * seconds);
+		this.rate = Math.min(MAX_RATE, this.rate + ADDITIVE_INCREASE * seconds);
+	}
+	
+	/**
+	 * Takes the tokens for a datagram that is sent directly, if there are tokens and no queued datagrams.
+	 * A datagram can take more tokens than there are, the following datagrams then wait until the debt has been paid.
+	 * @param size The size of the datagram
+	 * @param now The current time in nanoseconds
+	 * @return True if the datagram can be sent
+	 */
+	public boolean trySend(int size, long now) {
+		this.refill(now);
+		if (!this.queue.isEmpty() || this.tokens < 0) {
+			return false;
+		}
+		
+		this.tokens -= size;
+		this.numSent++;
+		return true;
+	}
+	
+	/**
+	 * Queues a datagram that could not be sent directly
+	 * @param datagram The datagram
+	 * @return False if the queue is full and the datagram was dropped
+	 */
+	public boolean enqueue(byte[] datagram) {
+		if (this.queuedBytes + datagram.length > MAX_QUEUED_BYTES) {
+			this.numDropped++;
+			return false;
+		}
+		
+		this.queue.add(datagram);
+		this.queuedBytes += datagram.length;
+		this.maxQueuedBytes = Math.max(this.maxQueuedBytes, this.queuedBytes);
+		this.numQueued++;
+		return true;
+	}
+	
+	/**
+	 * Returns the next queued datagram if it can be sent now, otherwise null
+	 * @param now The current time in nanoseconds
+	 */
+	public byte[] poll(long now) {
+		this.refill(now);
+		if (this.queue.isEmpty() || this.tokens < 0) {
+			return null;
+		}
+		
+		byte[] datagram = this.queue.poll();
+		this.queuedBytes -= datagram.length;
+		this.tokens -= datagram.length;
+		this.numSent++;
+		return datagram;
+	}
+	
+	/**
+	 * Indicates if there are queued datagrams
+	 */
+	public boolean hasQueued() {
+		return !this.queue.isEmpty();
+	}
+	
+	/**
+	 * Returns the time in nanoseconds until the next datagram can be sent
+	 */
+	public long nanosUntilReady() {
+		return this.tokens >= 0 ? 0 : (long)Math.ceil(-this.tokens / this.rate * 1E9);
+	}
+	
+	/**
+	 * Returns the time in nanoseconds it takes to send the queued datagrams at the current rate
+	 */
+	public long queueDelay() {
+		return (long)((this.queuedBytes - Math.min(0, this.tokens)) / this.rate * 1E9);
+	}
+	
+	/**
+	 * Decreases the rate, as the neighbor has reported lost messages
+	 * @param now The current time in nanoseconds
+	 */
+	public void lossReported(long now) {
+		this.refill(now);
+		if (now - this.lastDecrease < DECREASE_INTERVAL) {
+			return;
+		}
+		
+		this.lastDecrease = now;
+		this.rate = Math.max(MIN_RATE, this.rate * MULTIPLICATIVE_DECREASE);
+		this.numDecreases++;
+	}
+	
+	/**
+	 * Returns the current rate in bytes per second
+	 */
+	public double getRate() {
+		return this.rate;
+	}
+	
+	/**
+	 * Returns the metrics of the send queue
+	 */
+	public SendQueueMetrics metrics() {
+		return new SendQueueMetrics(
+			this.rate,
+			this.queue.size(),
+			this.queuedBytes,
+			this.maxQueuedBytes,
+			this.numSent,
+			this.numQueued,
+			this.numDropped,
+			this.numDecreases);
+	}
+}
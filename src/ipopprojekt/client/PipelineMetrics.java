@@ -0,0 +1,157 @@
+package ipopprojekt.client;
+
+/**
+ * Metrics of the receive pipeline of a P2P client.
+ * The receive stage reads the datagrams, drops duplicates and relays new messages.
+ * The delivery stage decodes and displays the messages. The receive stage never waits for it, so a slow display never holds up the relaying.
+ * Each counter is written by one stage only and can be read by any thread.
+ */
+public class PipelineMetrics {
+	//Written by the receive stage
+	volatile long numDatagrams = 0;
+	volatile long numDuplicates = 0;
+	volatile long numRelayed = 0;
+	volatile long totalRelayNanos = 0;
+	volatile long numDropped = 0;
+	volatile long numRetransmitted = 0;
+	volatile long numRecovered = 0;
+	volatile long numMalformed = 0;
+	
+	//Written by the timer
+	volatile long numRequested = 0;
+	
+	//Written by the delivery stage
+	volatile long numDelivered = 0;
+	volatile long totalDeliveryNanos = 0;
+	volatile long maxDeliveryNanos = 0;
+	
+	private final P2PClient client;
+	
+	/**
+	 * Creates new metrics for the given client
+	 * @param client The client
+	 */
+	PipelineMetrics(P2PClient client) {
+		this.client = client;
+	}
+	
+	/**
+	 * Returns the number of received datagrams
+	 */
+	public long getNumDatagrams() {
+		return this.numDatagrams;
+	}
+	
+	/**
+	 * Returns the number of received messages that had already been received, including own messages
+	 */
+	public long getNumDuplicates() {
+		return this.numDuplicates;
+	}
+	
+	/**
+	 * Returns the number of new messages relayed to the neighbors
+	 */
+	public long getNumRelayed() {
+		return this.numRelayed;
+	}
+	
+	/**
+	 * Returns the average time in nanoseconds from receiving a datagram until its new messages have been relayed
+	 */
+	public long getAverageRelayLatency() {
+		long numRelayed = this.numRelayed;
+		return numRelayed == 0 ? 0 : this.totalRelayNanos / numRelayed;
+	}
+	
+	/**
+	 * Returns the number of messages waiting to be displayed
+	 */
+	public int getDeliveryQueueDepth() {
+		return this.client.deliveryQueueDepth();
+	}
+	
+	/**
+	 * Returns the number of messages that were relayed but not displayed, because the delivery queue and the spill list were full
+	 */
+	public long getNumDropped() {
+		return this.numDropped;
+	}
+	
+	/**
+	 * Returns the number of missing messages asked for, counting each attempt
+	 */
+	public long getNumRequested() {
+		return this.numRequested;
+	}
+	
+	/**
+	 * Returns the number of messages sent again because a neighbor asked for them
+	 */
+	public long getNumRetransmitted() {
+		return this.numRetransmitted;
+	}
+	
+	/**
+	 * Returns the number of lost datagrams rebuilt from parity datagrams
+	 */
+	public long getNumRecovered() {
+		return this.numRecovered;
+	}
+	
+	/**
+	 * Returns the number of datagrams dropped because they could not be decoded
+	 */
+	public long getNumMalformed() {
+		return this.numMalformed;
+	}
+	
+	/**
+	 * Returns the number of messages discarded because not all of their fragments arrived in time
+	 */
+	public long getNumIncomplete() {
+		return this.client.getMessageHandler().numIncomplete();
+	}
+	
+	/**
+	 * Returns the number of displayed messages
+	 */
+	public long getNumDelivered() {
+		return this.numDelivered;
+	}
+	
+	/**
+	 * Returns the average time in nanoseconds from receiving a message until it has been displayed
+	 */
+	public long getAverageDeliveryLatency() {
+		long numDelivered = this.numDelivered;
+		return numDelivered == 0 ? 0 : this.totalDeliveryNanos / numDelivered;
+	}
+	
+	/**
+	 * Returns the longest time in nanoseconds from receiving a message until it has been displayed
+	 */
+	public long getMaxDeliveryLatency() {
+		return this.maxDeliveryNanos;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format(
+			"datagrams %d, duplicates %d, relayed %d (%.1f us), delivered %d (%.1f us, max %.1f us), queued %d, dropped %d, requested %d, retransmitted %d, recovered %d, incomplete %d, malformed %d",
+			this.numDatagrams,
+			this.numDuplicates,
+			this.numRelayed,
+			this.getAverageRelayLatency() / 1E3,
+			this.numDelivered,
+			this.getAverageDeliveryLatency() / 1E3,
+			this.maxDeliveryNanos / 1E3,
+			this.getDeliveryQueueDepth(),
+			this.numDropped,
+			this.numRequested,
+			this.numRetransmitted,
+			this.numRecovered,
+			this.getNumIncomplete(),
+			this.numMalformed);
+	}
+}
@@ -0,0 +1,136 @@
+package ipopprojekt.client;
+
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import ipopprojekt.messages.DatagramType;
+
+/**
+ * Spreads the messages along a spanning tree, repaired with announcements, as in Plumtree (epidemic broadcast trees).
+ * All links start as eager. A client that receives a message it already has over an eager link makes the link lazy,
+ * and asks the sender to do the same, so that the following messages are only announced over it, and the eager links form a tree.
+ * If an announced message has not arrived within a timeout, the client grafts the announcer,
+ * which sends the message and makes the link eager again, so the tree heals when clients leave.
+ * Only grafts make links eager, as a link that carried a new message may already have been pruned by the other end.
+ */
+public class PlumtreeRelay implements RelayStrategy {
+	/**
+	 * The time in milliseconds to wait for an announced message before asking for it
+	 */
+	public static final long ANNOUNCEMENT_TIMEOUT = 100;
+	
+	/**
+	 * The time in milliseconds to wait for a message that has been asked for before asking the next announcer
+	 */
+	public static final long GRAFT_TIMEOUT = 50;
+	
+	private final P2PClient client;
+	
+	//The announced messages that have not been received
+	private final Map<Long, Missing> missing = new HashMap<>();
+	
+	/**
+	 * Creates a new strategy for the given client
+	 * @param client The client
+	 */
+	public PlumtreeRelay(P2PClient client) {
+		this.client = client;
+	}
+	
+	@Override
+	public void messageReceived(long messageId, SocketAddress sender, byte[] message) {
+		Missing missing = this.missing.remove(messageId);
+		if (missing != null) {
+			missing.timeout.cancel(false);
+		}
+	}
+	
+	@Override
+	public boolean shouldRelay(long messageId, SocketAddress sender) {
+		return true;
+	}
+	
+	@Override
+	public void duplicateReceived(long messageId, SocketAddress sender) {
+		//A lazy link has already been pruned, so pruning it again would only add control traffic
+		if (this.client.setEager(sender, false)) {
+			this.client.sendControl(DatagramType.PRUNE, 0, sender);
+		}
+	}
+	
+	@Override
+	public void announcementReceived(long messageId, SocketAddress sender) {
+		if (this.client.hasReceived(messageId)) {
+			return;
+		}
+		
+		Missing missing = this.missing.get(messageId);
+		if (missing == null) {
+			missing = new Missing();
+			missing.timeout = this.schedule(messageId, ANNOUNCEMENT_TIMEOUT);
+			this.missing.put(messageId, missing);
+		}
+		
+		missing.announcers.add(sender);
+	}
+	
+	@Override
+	public void graftReceived(long messageId, SocketAddress sender) {
+		this.client.setEager(sender, true);
+		
+		//Sent like the answers to NACKs, so it is paced and does not overtake the datagrams queued for the neighbor
+		byte[] message = this.client.cachedMessage(messageId);
+		if (message != null) {
+			this.client.retransmit(messageId, message, sender);
+		}
+	}
+	
+	@Override
+	public void pruneReceived(SocketAddress sender) {
+		this.client.setEager(sender, false);
+	}
+	
+	/**
+	 * Schedules a timeout for the given missing message
+	 * @param messageId The id of the message
+	 * @param delay The delay in milliseconds
+	 */
+	private ScheduledFuture<?> schedule(long messageId, long delay) {
+		return P2PClient.timer().schedule(() -> this.timeout(messageId), delay, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Asks the next announcer for the given message, as it has not arrived in time
+	 * @param messageId The id of the message
+	 */
+	private void timeout(long messageId) {
+		synchronized (this.client.relayLock()) {
+			Missing missing = this.missing.get(messageId);
+			if (missing == null) {
+				return;
+			}
+			
+			SocketAddress announcer = missing.announcers.poll();
+			if (announcer == null) {
+				this.missing.remove(messageId);
+				return;
+			}
+			
+			this.client.setEager(announcer, true);
+			this.client.sendControl(DatagramType.GRAFT, messageId, announcer);
+			missing.timeout = this.schedule(messageId, GRAFT_TIMEOUT);
+		}
+	}
+	
+	/**
+	 * An announced message that has not been received
+	 */
+	private static class Missing {
+		public final ArrayDeque<SocketAddress> announcers = new ArrayDeque<>();
+		public ScheduledFuture<?> timeout;
+	}
+}
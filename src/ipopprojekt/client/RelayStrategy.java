@@ -0,0 +1,77 @@
+package ipopprojekt.client;
+
+import java.net.SocketAddress;
+
+/**
+ * Decides how the chat messages are spread to the neighbors of a P2P client.
+ * A neighbor is either eager, and gets the messages, or lazy, and only gets announcements of them.
+ * The strategy is only called while holding the relay lock of the client.
+ */
+public interface RelayStrategy {
+	/**
+	 * The system property used to select the strategy
+	 */
+	String PROPERTY = "ipopprojekt.relay";
+	
+	/**
+	 * Marks that a new message has been received or sent, before it is relayed
+	 * @param messageId The id of the message
+	 * @param sender The address of the sender, or null for own messages
+	 * @param message The encoded message
+	 */
+	void messageReceived(long messageId, SocketAddress sender, byte[] message);
+	
+	/**
+	 * Decides if a new message is sent to an eager neighbor. Called once for each eager neighbor, after messageReceived.
+	 * @param messageId The id of the message
+	 * @param sender The address of the sender, or null for own messages
+	 */
+	boolean shouldRelay(long messageId, SocketAddress sender);
+	
+	/**
+	 * Marks that a message that had already been received was received again
+	 * @param messageId The id of the message
+	 * @param sender The address of the sender
+	 */
+	void duplicateReceived(long messageId, SocketAddress sender);
+	
+	/**
+	 * Marks that a message was announced
+	 * @param messageId The id of the message
+	 * @param sender The address of the sender
+	 */
+	void announcementReceived(long messageId, SocketAddress sender);
+	
+	/**
+	 * Marks that the sender asked for a message, and to get the messages directly from now on
+	 * @param messageId The id of the message
+	 * @param sender The address of the sender
+	 */
+	void graftReceived(long messageId, SocketAddress sender);
+	
+	/**
+	 * Marks that the sender asked to only get announcements from now on
+	 * @param sender The address of the sender
+	 */
+	void pruneReceived(SocketAddress sender);
+	
+	/**
+	 * Returns the strategy selected by the system property, or Plumtree if not set
+	 * @param client The client using the strategy
+	 */
+	static RelayStrategy fromSystemProperty(P2PClient client) {
+		String name = System.getProperty(PROPERTY, "plumtree");
+		
+		switch (name.toLowerCase()) {
+		case "flood":
+			return new FloodRelay();
+		case "plumtree":
+			return new PlumtreeRelay(client);
+		case "gossip":
+			return new GossipRelay(client.getMessageHandler(), GossipRelay.targetFromSystemProperty());
+		default:
+			System.err.println("Invalid relay strategy '" + name + "', valid are: flood, plumtree, gossip");
+			return new PlumtreeRelay(client);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package ipopprojekt.client;
+
+/**
+ * The metrics of the pacing of the datagrams sent to a neighbor, at one point in time
+ */
+public class SendQueueMetrics {
+	private final double rate;
+	private final int queuedDatagrams;
+	private final int queuedBytes;
+	private final int maxQueuedBytes;
+	private final long numSent;
+	private final long numQueued;
+	private final long numDropped;
+	private final long numDecreases;
+	
+	/**
+	 * Creates new metrics
+	 * @param rate The rate in bytes per second
+	 * @param queuedDatagrams The number of datagrams waiting to be sent
+	 * @param queuedBytes The number of bytes waiting to be sent
+	 * @param maxQueuedBytes The highest number of bytes that have been waiting
+	 * @param numSent The number of sent datagrams
+	 * @param numQueued The number of datagrams that had to wait
+	 * @param numDropped The number of datagrams dropped because the queue was full
+	 * @param numDecreases The number of times the rate has been decreased
+	 */
+	public SendQueueMetrics(
+		double rate,
+		int queuedDatagrams,
+		int queuedBytes,
+		int maxQueuedBytes,
+		long numSent,
+		long numQueued,
+		long numDropped,
+		long numDecreases) {
+		this.rate = rate;
+		this.queuedDatagrams = queuedDatagrams;
+		this.queuedBytes = queuedBytes;
+		this.maxQueuedBytes = maxQueuedBytes;
+		this.numSent = numSent;
+		this.numQueued = numQueued;
+		this.numDropped = numDropped;
+		this.numDecreases = numDecreases;
+	}
+	
+	/**
+	 * Returns the rate in bytes per second
+	 */
+	public double getRate() {
+		return this.rate;
+	}
+	
+	/**
+	 * Returns the number of datagrams waiting to be sent
+	 */
+	public int getQueuedDatagrams() {
+		return this.queuedDatagrams;
+	}
+	
+	/**
+	 * Returns the number of bytes waiting to be sent
+	 */
+	public int getQueuedBytes() {
+		return this.queuedBytes;
+	}
+	
+	/**
+	 * Returns the highest number of bytes that have been waiting to be sent
+	 */
+	public int getMaxQueuedBytes() {
+		return this.maxQueuedBytes;
+	}
+	
+	/**
+	 * Returns the number of sent datagrams
+	 */
+	public long getNumSent() {
+		return this.numSent;
+	}
+	
+	/**
+	 * Returns the number of datagrams that had to wait before being sent
+	 */
+	public long getNumQueued() {
+		return this.numQueued;
+	}
+	
+	/**
+	 * Returns the number of datagrams dropped because the queue was full
+	 */
+	public long getNumDropped() {
+		return this.numDropped;
+	}
+	
+	/**
+	 * Returns the number of times the rate has been decreased because of lost messages
+	 */
+	public long getNumDecreases() {
+		return this.numDecreases;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format(
+			"rate %.0f KB/s, queued %d (%d bytes, max %d), sent %d, delayed %d, dropped %d, decreases %d",
+			this.rate / 1024,
+			this.queuedDatagrams,
+			this.queuedBytes,
+			this.maxQueuedBytes,
+			this.numSent,
+			this.numQueued,
+			this.numDropped,
+			this.numDecreases);
+	}
+}
@@ -0,0 +1,38 @@
+package ipopprojekt.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends and receives datagrams over UDP
+ */
+public class UdpTransport implements DatagramTransport {
+	private final DatagramChannel channel;
+	
+	/**
+	 * Creates a new transport bound to the given port
+	 * @param port The port
+	 */
+	public UdpTransport(int port) throws IOException {
+		this.channel = DatagramChannel.open();
+		this.channel.bind(new InetSocketAddress(port));
+	}
+	
+	@Override
+	public SocketAddress receive(ByteBuffer buffer) throws IOException {
+		return this.channel.receive(buffer);
+	}
+	
+	@Override
+	public void send(ByteBuffer data, SocketAddress address) throws IOException {
+		this.channel.send(data, address);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+	}
+}
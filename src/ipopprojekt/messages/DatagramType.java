@@ -0,0 +1,72 @@
+package ipopprojekt.messages;
+
+/**
+ * The types of the datagrams sent between the clients. The type is the first byte of each datagram.
+ */
+public enum DatagramType {
+	CHAT((byte)0),
+	PING((byte)1),
+	PONG((byte)2),
+	/**
+	 * Several chat messages, each prefixed with its length as an unsigned short
+	 */
+	BATCH((byte)3),
+	/**
+	 * Announces messages by their ids, sent instead of the messages to neighbors that only get announcements
+	 */
+	IHAVE((byte)4),
+	/**
+	 * Asks for the messages with the given ids, and to get the messages of the sender directly from now on
+	 */
+	GRAFT((byte)5),
+	/**
+	 * Asks the receiver to only send announcements from now on, as the messages also arrive from elsewhere
+	 */
+	PRUNE((byte)6),
+	/**
+	 * Asks for the messages with the given ids again, as they have been lost
+	 */
+	NACK((byte)7),
+	/**
+	 * A chat or batch datagram in a block of forward error correction, prefixed with the block number and its index in the block
+	 */
+	FEC_DATA((byte)8),
+	/**
+	 * The XOR of the datagrams in a block of forward error correction, prefixed with the block number and their lengths
+	 */
+	FEC_PARITY((byte)9);
+	
+	private final byte id;
+	
+	DatagramType(byte id) {
+		this.id = id;
+	}
+	
+	/**
+	 * Returns the id of the type
+	 */
+	public byte getId() {
+		return this.id;
+	}
+	
+	/**
+	 * Constructs an object from the given id
+	 * @param id The id
+	 */
+	public static DatagramType fromByte(byte id) {
+		switch (id) {
+		case 0: return CHAT;
+		case 1: return PING;
+		case 2: return PONG;
+		case 3: return BATCH;
+		case 4: return IHAVE;
+		case 5: return GRAFT;
+		case 6: return PRUNE;
+		case 7: return NACK;
+		case 8: return FEC_DATA;
+		case 9: return FEC_PARITY;
+		}
+		
+		return null;
+	}
+}
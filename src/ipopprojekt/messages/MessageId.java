@@ -8,7 +8,14 @@ public enum MessageId {
 	CONNECT_CLIENT((byte)1),
 	ADD_NEIGHBORS((byte)2),
 	REMOVE_NEIGHBORS((byte)3),
-	SET_NUMBER_OF_ROOMS((byte)4);
+	SET_NUMBER_OF_ROOMS((byte)4),
+	PROBE_PEERS((byte)5),
+	LATENCY_REPORT((byte)6);
+	
+	/**
+	 * The maximum number of peers in a latency report
+	 */
+	public static final int MAX_REPORTED_PEERS = 1024;
 	
 	private final byte id;
 	
@@ -34,6 +41,8 @@ public enum MessageId {
 		case 2: return ADD_NEIGHBORS;
 		case 3: return REMOVE_NEIGHBORS;
 		case 4: return SET_NUMBER_OF_ROOMS;
+		case 5: return PROBE_PEERS;
+		case 6: return LATENCY_REPORT;
 		}
 		
 		return null;
@@ -0,0 +1,19 @@
+package ipopprojekt.server;
+
+/**
+ * The edges of a graph whose nodes are identified by dense indices
+ */
+interface Adjacency {
+	/**
+	 * Returns the number of edges from the given node
+	 * @param node The node
+	 */
+	int degree(int node);
+	
+	/**
+	 * Returns the end node of the given edge from the given node
+	 * @param node The node
+	 * @param position The position of the edge, less than the degree of the node
+	 */
+	int neighbor(int node, int position);
+}
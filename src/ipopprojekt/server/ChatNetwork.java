@@ -1,31 +1,125 @@
 package ipopprojekt.server;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
+import ipopprojekt.util.IntIntMap;
+import ipopprojekt.util.ReusableBitSet;
+
 /**
- * Represents a chat network
+ * Represents a chat network.
+ * The network is kept close to a random regular graph, where the degree is decided by a topology policy.
+ * A joining client splits random edges, so it gets as many in and out edges as the policy wants without changing
+ * the degrees of the other clients. When a client leaves, its predecessors are connected to its successors instead.
+ * Random regular graphs are expanders, so the number of hops between two clients grows with the logarithm of the size.
+ * The clients report the round trip times to some of their peers, which are used to prefer neighbors with low latency.
+ * The clients use each link in both directions. With a connectivity of 2 the links are kept so that no single client
+ * splits the network when it leaves, so a single leave is not repaired directly but by a later call to repair.
  */
 public class ChatNetwork {
-	private final Map<Integer, Set<Integer>> neighborList = new HashMap<>();
-	private final int maxNeighborsPerNode;
-	private final List<Integer> clients = new ArrayList<>();
+	/**
+	 * The system property used to set the connectivity of the chat rooms, 1 or 2
+	 */
+	public static final String CONNECTIVITY_PROPERTY = "ipopprojekt.connectivity";
+	
+	/**
+	 * The default connectivity of the chat rooms
+	 */
+	public static final int DEFAULT_CONNECTIVITY = 2;
+	
+	private final NetworkGraph graph;
+	private final TopologyPolicy policy;
 	private final Random random;
 	
+	//The number of clients that have to leave to split the network
+	private final int connectivity;
+	
+	//If the network is known to be connected and to have the connectivity, which is checked by repair
+	private boolean verified = false;
+	
+	//The neighbors of the clients that have left since the network was last made connected
+	private int[] repairSuccessors = new int[16];
+	private int[] repairPredecessors = new int[16];
+	private int numRepairSuccessors = 0;
+	private int numRepairPredecessors = 0;
+	
+	//The indices of the clients in the graph, in random order.
+	//The position of each client in the array is stored so that it can be removed in constant time
+	private int[] clients = new int[16];
+	private int[] clientPositions = new int[16];
+	private int numClients = 0;
+	
+	//The reported round trip times in microseconds for each client, keyed by the id of the peer.
+	//The times are symmetric, so they are stored for both of the clients.
+	private IntIntMap[] roundTripTimes = new IntIntMap[16];
+	private static final int UNKNOWN_TIME = -1;
+	
+	//Up to this many neighbors of removed clients are checked with a search each when the network is made connected
+	private static final int MAX_TARGETED_SEARCHES = 32;
+	
+	//A neighbor is only replaced by a peer that is at least this many times faster
+	private static final int REWIRE_FACTOR = 2;
+	
+	//The number of neighbors of each client that have been replaced by faster peers.
+	//At most half of the neighbors are replaced, as the random ones keep the number of hops low.
+	private int[] numRewired = new int[16];
+	
+	//Reused by the searches
+	private final ReusableBitSet searchVisited = new ReusableBitSet();
+	private final ReusableBitSet searchReverseVisited = new ReusableBitSet();
+	private int[] searchStack = new int[0];
+	private int[] searchReverseStack = new int[0];
+	
+	/**
+	 * Creates a new char network
+	 * @param policy The policy deciding the number of neighbors per node
+	 * @param connectivity The number of clients that have to leave to split the network, 1 or 2
+	 * @param seed The seed to use for generating random neighbors
+	 */
+	public ChatNetwork(TopologyPolicy policy, int connectivity, long seed) {
+		if (connectivity < 1 || connectivity > 2) {
+			throw new IllegalArgumentException("The connectivity must be 1 or 2");
+		}
+		
+		this.policy = policy;
+		this.connectivity = connectivity;
+		this.graph = new NetworkGraph(policy.targetDegree(1) * 2);
+		this.random = new Random(seed);
+	}
+	
+	/**
+	 * Creates a new char network, where every leave is repaired directly
+	 * @param policy The policy deciding the number of neighbors per node
+	 * @param seed The seed to use for generating random neighbors
+	 */
+	public ChatNetwork(TopologyPolicy policy, long seed) {
+		this(policy, 1, seed);
+	}
+	
+	/**
+	 * Creates a new char network
+	 * @param policy The policy deciding the number of neighbors per node
+	 */
+	public ChatNetwork(TopologyPolicy policy) {
+		this(policy, System.currentTimeMillis());
+	}
+	
 	/**
 	 * Creates a new char network
 	 * @param maxNeighborsPerNode The maximum number of neighbors per node
 	 * @param seed The seed to use for generating random neighbors
 	 */
 	public ChatNetwork(int maxNeighborsPerNode, long seed) {
-		this.maxNeighborsPerNode = maxNeighborsPerNode;
-		this.random = new Random(seed);
+		this(TopologyPolicy.fixed(maxNeighborsPerNode), seed);
 	}
 	
 	/**
@@ -41,11 +135,97 @@ public class ChatNetwork {
 	 * @param clientId The id of the client
 	 */
 	public Set<Integer> getNeighbors(int clientId) {
-		if (this.neighborList.containsKey(clientId)) {
-			return this.neighborList.get(clientId);
-		} else {
-			return new HashSet<>();
+		Set<Integer> neighbors = new HashSet<>();
+		int index = this.graph.indexOf(clientId);
+		
+		if (index != -1) {
+			int[] edges = this.graph.outEdges(index);
+			for (int i = 0; i < this.graph.outDegree(index); i++) {
+				neighbors.add(this.graph.clientId(edges[i]));
+			}
+		}
+		
+		return neighbors;
+	}
+	
+	/**
+	 * Returns the clients that have the given client as a neighbor, once for each link
+	 * @param clientId The id of the client
+	 */
+	public List<Integer> getPredecessors(int clientId) {
+		List<Integer> predecessors = new ArrayList<>();
+		int index = this.graph.indexOf(clientId);
+		
+		if (index != -1) {
+			int[] edges = this.graph.inEdges(index);
+			for (int i = 0; i < this.graph.inDegree(index); i++) {
+				predecessors.add(this.graph.clientId(edges[i]));
+			}
 		}
+		
+		return predecessors;
+	}
+	
+	/**
+	 * Returns the number of clients at each number of hops from the given client, following the edges of the network.
+	 * This is the number of relays a message sent by the client needs to reach the other clients.
+	 * @param clientId The id of the client
+	 * @return The number of clients at each distance, where index 0 is the client itself
+	 */
+	public int[] hopCounts(int clientId) {
+		int start = this.graph.indexOf(clientId);
+		if (start == -1) {
+			return new int[0];
+		}
+		
+		int[] counts = new int[8];
+		int numHops = 0;
+		
+		//Breadth first search, where the queue holds the nodes of one distance after each other
+		this.startSearch();
+		int head = 0;
+		int tail = 0;
+		this.searchVisited.add(start);
+		this.searchStack[tail++] = start;
+		
+		while (head < tail) {
+			int levelEnd = tail;
+			
+			if (numHops == counts.length) {
+				counts = Arrays.copyOf(counts, numHops * 2);
+			}
+			
+			counts[numHops++] = levelEnd - head;
+			
+			for (; head < levelEnd; head++) {
+				int current = this.searchStack[head];
+				
+				for (int i = 0; i < this.graph.outDegree(current); i++) {
+					int next = this.graph.outEdges(current)[i];
+					
+					if (this.searchVisited.add(next)) {
+						this.searchStack[tail++] = next;
+					}
+				}
+			}
+		}
+		
+		return Arrays.copyOf(counts, numHops);
+	}
+	
+	/**
+	 * Returns the estimated memory used by the network in bytes
+	 */
+	public long estimatedMemoryBytes() {
+		long bytes = this.graph.estimatedBytes() + 4L * this.clients.length + 4L * this.clientPositions.length;
+		bytes += 4L * this.roundTripTimes.length + 4L * this.numRewired.length;
+		for (IntIntMap times : this.roundTripTimes) {
+			if (times != null) {
+				bytes += times.estimatedBytes();
+			}
+		}
+		
+		return bytes;
 	}
 	
 	/**
@@ -72,14 +252,14 @@ public class ChatNetwork {
 			this.clientId = clientId;
 			this.type = type;
 		}
-
+		
 		/**
 		 * Returns the client id
 		 */
 		public int getClientId() {
 			return clientId;
 		}
-
+		
 		/**
 		 * Returns the change type
 		 */
@@ -95,7 +275,7 @@ public class ChatNetwork {
 			result = prime * result + ((type == null) ? 0 : type.hashCode());
 			return result;
 		}
-
+		
 		@Override
 		public boolean equals(Object obj) {
 			if (this == obj)
@@ -129,14 +309,14 @@ public class ChatNetwork {
 			this.clientId = clientId;
 			this.changes = changes;
 		}
-
+		
 		/**
 		 * Returns the client id
 		 */
 		public int getClientId() {
 			return clientId;
 		}
-
+		
 		/**
 		 * Returns the changes
 		 * @return
@@ -145,144 +325,533 @@ public class ChatNetwork {
 			return changes;
 		}
 	}
-			
+	
 	/**
-	 * Adds an edge in the given graph
-	 * @param graph The graph
-	 * @param from The start point
-	 * @param to The end point
+	 * Indicates if the network is connected
 	 */
-	private static void addEdge(Map<Integer, Set<Integer>> graph, int from, int to) {
-		Set<Integer> neighborList = null;
-		if (graph.containsKey(from)) {
-			neighborList = graph.get(from);
+	public boolean isConnected() {
+		if (this.numClients <= 1) {
+			return true;
+		}
+		
+		int v = this.clients[0];
+		
+		if (this.countReachable(this.graph, v) == this.numClients) {
+			//We now know that vertex v can reach every other vertex.
+			//Now check that all other vertex can reach v
+			return this.countReachable(this.graph.reverse(), v) == this.numClients;
 		} else {
-			neighborList = new HashSet<>();
-			graph.put(from, neighborList);
+			return false;
 		}
+	}
+	
+	/**
+	 * Starts a new search, which clears the visited set
+	 */
+	private void startSearch() {
+		int bound = this.graph.indexBound();
+		this.searchVisited.ensureCapacity(bound);
+		this.searchReverseVisited.ensureCapacity(bound);
+		this.searchVisited.clear();
+		this.searchReverseVisited.clear();
 		
-		neighborList.add(to);
+		if (this.searchStack.length < bound) {
+			this.searchStack = new int[Math.max(bound, this.searchStack.length * 2)];
+			this.searchReverseStack = new int[this.searchStack.length];
+		}
 	}
 	
 	/**
-	 * Creates a reversed graph
+	 * Counts the number of nodes reachable from the given node, using DFS with an explicit stack
+	 * @param graph The graph
+	 * @param start The node to start from
+	 * @return The number of reachable nodes, including the start node
 	 */
-	private Map<Integer, Set<Integer>> createReverseGraph() {
-		Map<Integer, Set<Integer>> reverseEdges = new HashMap<>();
-				
-		for (Map.Entry<Integer, Set<Integer>> current : neighborList.entrySet()) {
-			reverseEdges.put(current.getKey(), new HashSet<>());
+	private int countReachable(Adjacency graph, int start) {
+		this.startSearch();
+		int stackSize = 0;
+		int numVisited = 1;
+		this.searchVisited.add(start);
+		this.searchStack[stackSize++] = start;
+		
+		while (stackSize > 0) {
+			int current = this.searchStack[--stackSize];
 			
-			int from = current.getKey();
-			for (int to : current.getValue()) {
-				addEdge(reverseEdges, to, from);
+			for (int i = 0; i < graph.degree(current); i++) {
+				int next = graph.neighbor(current, i);
+				
+				if (this.searchVisited.add(next)) {
+					this.searchStack[stackSize++] = next;
+					numVisited++;
+				}
 			}
 		}
 		
-		return reverseEdges;
+		return numVisited;
 	}
 	
 	/**
-	 * Indicates if the network is connected
+	 * Swaps the clients at the given positions
+	 * @param first The first position
+	 * @param second The second position
 	 */
-	public boolean isConnected() {
-		if (this.clients.size() <= 1) {
-			return true;
+	private void swapClients(int first, int second) {
+		int firstIndex = this.clients[first];
+		int secondIndex = this.clients[second];
+		this.clients[first] = secondIndex;
+		this.clients[second] = firstIndex;
+		this.clientPositions[secondIndex] = first;
+		this.clientPositions[firstIndex] = second;
+	}
+	
+	/**
+	 * Picks distinct random clients for the given client using a partial Fisher-Yates shuffle of the clients.
+	 * Each client is considered at most once, so excluded clients never cause repeated draws.
+	 * @param client The index of the client
+	 * @param count The number of clients to pick
+	 * @param excluded The indices of the clients that can not be chosen
+	 * @param numExcluded The number of excluded clients
+	 * @param picked The array to store the indices of the picked clients in
+	 * @return The number of picked clients, less than count if there are not enough clients
+	 */
+	private int pickRandomClients(int client, int count, int[] excluded, int numExcluded, int[] picked) {
+		int numPicked = 0;
+		
+		for (int i = 0; i < this.numClients && numPicked < count; i++) {
+			this.swapClients(i, i + this.random.nextInt(this.numClients - i));
+			int candidate = this.clients[i];
+			
+			if (candidate != client && !NetworkGraph.contains(excluded, numExcluded, candidate)) {
+				picked[numPicked++] = candidate;
+			}
 		}
 		
-		Set<Integer> visited = new HashSet<>();
-		int v = this.clients.get(0);
-		this.visitDFS(this.neighborList, visited, v);
+		return numPicked;
+	}
+	
+	/**
+	 * Returns a random client in the network
+	 * @return The id of the client
+	 */
+	public int randomClientInNetwork() {
+		return this.graph.clientId(this.clients[this.random.nextInt(this.numClients)]);
+	}
+	
+	/**
+	 * Indicates if the given client exists in the network
+	 * @param clientId The id of the client
+	 */
+	public boolean exists(int clientId) {
+		return this.graph.indexOf(clientId) != -1;
+	}
+	
+	/**
+	 * Adds the given change to the changes of the given client.
+	 * A change that undoes an earlier change cancels it instead.
+	 * @param changes The changes
+	 * @param clientId The id of the client that needs to change
+	 * @param change The change
+	 */
+	private static void addChange(Map<Integer, Changes> changes, int clientId, Change change) {
+		Changes clientChanges = changes.get(clientId);
+		if (clientChanges == null) {
+			clientChanges = new Changes(clientId, new HashSet<>());
+			changes.put(clientId, clientChanges);
+		}
 		
-		if (visited.size() == this.clients.size()) {
-			//We now know that vertex v can reach every other vertex.
-			//Now check that all other vertex can reach v
-			visited.clear();
-			visitDFS(this.createReverseGraph(), visited, v);
-			return visited.size() == this.clients.size();
-		} else {
-			return false;
+		ChangeType opposite = change.getType() == ChangeType.ADD ? ChangeType.REMOVE : ChangeType.ADD;
+		if (!clientChanges.changes.remove(new Change(change.getClientId(), opposite))) {
+			clientChanges.changes.add(change);
 		}
 	}
 	
 	/**
-	 * Visits the neighbors of the current node using DFS
-	 * @param graph The current graph
-	 * @param visited The already visited
-	 * @param current The current
+	 * Adds an edge between the given nodes, and the change for it
+	 * @param from The start node
+	 * @param to The end node
+	 * @param changes The changes
 	 */
-	private void visitDFS(Map<Integer, Set<Integer>> graph, Set<Integer> visited, int current) {
-		if (visited.contains(current)) {
-			return;
+	private void addEdge(int from, int to, Map<Integer, Changes> changes) {
+		if (this.graph.addEdge(from, to)) {
+			addChange(changes, this.graph.clientId(from), new Change(this.graph.clientId(to), ChangeType.ADD));
+		}
+	}
+	
+	/**
+	 * Removes the edge between the given nodes, and adds the change for it
+	 * @param from The start node
+	 * @param to The end node
+	 * @param changes The changes
+	 */
+	private void removeEdge(int from, int to, Map<Integer, Changes> changes) {
+		if (this.graph.removeEdge(from, to)) {
+			addChange(changes, this.graph.clientId(from), new Change(this.graph.clientId(to), ChangeType.REMOVE));
 		}
+	}
+	
+	/**
+	 * Returns the number of neighbors each client should have, given the current size of the network
+	 */
+	private int targetDegree() {
+		return Math.max(0, Math.min(this.policy.targetDegree(this.numClients), this.numClients - 1));
+	}
+	
+	/**
+	 * Splits a random out edge of the given client, so that it goes through the new client instead.
+	 * If the client has no edge that can be split, the clients are connected to each other.
+	 * @param client The index of the client
+	 * @param newClient The index of the new client
+	 * @param changes The changes
+	 */
+	private void splitEdge(int client, int newClient, Map<Integer, Changes> changes) {
+		int degree = this.graph.outDegree(client);
+		int start = degree > 0 ? this.random.nextInt(degree) : 0;
 		
-		visited.add(current);
+		for (int i = 0; i < degree; i++) {
+			int next = this.graph.outEdges(client)[(start + i) % degree];
+			
+			if (next != newClient && !this.graph.hasEdge(newClient, next)) {
+				this.removeEdge(client, next, changes);
+				this.addEdge(client, newClient, changes);
+				this.addEdge(newClient, next, changes);
+				return;
+			}
+		}
 		
-		for (int neighbor : graph.get(current)) {
-			visitDFS(graph,visited, neighbor);
+		this.addEdge(client, newClient, changes);
+		this.addEdge(newClient, client, changes);
+	}
+	
+	/**
+	 * Adds random neighbors to the given client until it has as many as the policy wants.
+	 * Used to grow the degree of the clients when the network grows.
+	 * @param client The index of the client
+	 * @param changes The changes
+	 */
+	private void topUp(int client, Map<Integer, Changes> changes) {
+		int missing = this.targetDegree() - this.graph.outDegree(client);
+		
+		if (missing > 0) {
+			//Pick twice as many random candidates as needed, and use the ones with the lowest latency
+			int[] picked = new int[missing * 2];
+			int numPicked = this.pickRandomClients(
+				client,
+				missing * 2,
+				this.graph.outEdges(client),
+				this.graph.outDegree(client),
+				picked);
+			
+			this.sortByRoundTripTime(client, picked, numPicked);
+			for (int i = 0; i < Math.min(missing, numPicked); i++) {
+				this.addEdge(client, picked[i], changes);
+			}
 		}
 	}
 	
 	/**
-	 * Returns a random client for the given client
-	 * @param clientId The id of the client
-	 * @param neighbors The neighbors of the client
-	 * @return The random client or -1 if there are none
+	 * Sets the round trip time between the given clients
+	 * @param clientId The id of the client that measured the time
+	 * @param peerId The id of the peer
+	 * @param roundTripTime The round trip time in microseconds
+	 */
+	public void setRoundTripTime(int clientId, int peerId, int roundTripTime) {
+		int index = this.graph.indexOf(clientId);
+		int peerIndex = this.graph.indexOf(peerId);
+		
+		if (index == -1 || peerIndex == -1 || index == peerIndex || roundTripTime < 0) {
+			return;
+		}
+		
+		this.roundTripTimesOf(index).put(peerId, roundTripTime);
+		this.roundTripTimesOf(peerIndex).put(clientId, roundTripTime);
+	}
+	
+	/**
+	 * Returns the round trip times of the given client, creating them if needed
+	 * @param index The index of the client
 	 */
-	private int randomClient(int clientId, Set<Integer> neighbors) {
-		//Check that there can be any random clients
-		if (neighbors.size() == this.clients.size() - 1) {
-			return -1;
+	private IntIntMap roundTripTimesOf(int index) {
+		if (this.roundTripTimes[index] == null) {
+			this.roundTripTimes[index] = new IntIntMap(UNKNOWN_TIME);
 		}
 		
-		while (true) {
-			int id = this.clients.get(this.random.nextInt(this.clients.size()));
+		return this.roundTripTimes[index];
+	}
+	
+	/**
+	 * Returns the round trip time between the given clients, or Integer.MAX_VALUE if it is not known
+	 * @param index The index of the client
+	 * @param peerIndex The index of the peer
+	 */
+	private int roundTripTime(int index, int peerIndex) {
+		IntIntMap times = this.roundTripTimes[index];
+		int time = times != null ? times.get(this.graph.clientId(peerIndex)) : UNKNOWN_TIME;
+		return time == UNKNOWN_TIME ? Integer.MAX_VALUE : time;
+	}
+	
+	/**
+	 * Sorts the given clients by the round trip time to the given client. Clients with unknown times keep their order last.
+	 * @param client The index of the client
+	 * @param clients The indices of the clients
+	 * @param numClients The number of clients
+	 */
+	private void sortByRoundTripTime(int client, int[] clients, int numClients) {
+		//Insertion sort, as there are only a few clients
+		for (int i = 1; i < numClients; i++) {
+			int current = clients[i];
+			int time = this.roundTripTime(client, current);
+			int j = i - 1;
 			
-			if (id != clientId && !neighbors.contains(id)) {
-				return id;
+			for (; j >= 0 && this.roundTripTime(client, clients[j]) > time; j--) {
+				clients[j + 1] = clients[j];
 			}
+			
+			clients[j + 1] = current;
 		}
 	}
 	
 	/**
-	 * Returns a random client in the network
-	 * @return The id of the client
+	 * Returns random peers in the network for the given client, which the client should measure the round trip time to
+	 * @param clientId The id of the client
+	 * @param count The number of peers
+	 * @return The ids of the peers
 	 */
-	public int randomClientInNetwork() {
-		return this.clients.get(this.random.nextInt(this.clients.size()));
+	public int[] randomPeers(int clientId, int count) {
+		int index = this.graph.indexOf(clientId);
+		if (index == -1) {
+			return new int[0];
+		}
+		
+		int[] picked = new int[Math.min(count, this.numClients)];
+		int numPicked = this.pickRandomClients(index, picked.length, picked, 0, picked);
+		
+		int[] peers = new int[numPicked];
+		for (int i = 0; i < numPicked; i++) {
+			peers[i] = this.graph.clientId(picked[i]);
+		}
+		
+		return peers;
 	}
 	
 	/**
-	 * Indicates if the given client exists in the network
+	 * Replaces the slowest neighbor of the given client with a measured peer that is much faster.
+	 * The edge is only replaced if the network stays connected.
 	 * @param clientId The id of the client
+	 * @return The changes that need to be sent to the clients
 	 */
-	public boolean exists(int clientId) {
-		return this.neighborList.containsKey(clientId);
+	public List<Changes> rewire(int clientId) {
+		int index = this.graph.indexOf(clientId);
+		if (index == -1 || this.roundTripTimes[index] == null || this.numRewired[index] >= this.graph.outDegree(index) / 2) {
+			return new ArrayList<>();
+		}
+		
+		//Find the neighbor with the highest known round trip time
+		int slowest = -1;
+		int slowestTime = UNKNOWN_TIME;
+		for (int i = 0; i < this.graph.outDegree(index); i++) {
+			int neighbor = this.graph.outEdges(index)[i];
+			int time = this.roundTripTimes[index].get(this.graph.clientId(neighbor));
+			
+			if (time > slowestTime) {
+				slowest = neighbor;
+				slowestTime = time;
+			}
+		}
+		
+		//Find the fastest measured peer that is not already a neighbor
+		int fastest = -1;
+		int fastestTime = slowestTime / REWIRE_FACTOR;
+		for (int peerId : this.roundTripTimes[index].keys()) {
+			int peer = this.graph.indexOf(peerId);
+			int time = this.roundTripTimes[index].get(peerId);
+			
+			if (peer != -1 && time < fastestTime && !this.graph.hasEdge(index, peer)) {
+				fastest = peer;
+				fastestTime = time;
+			}
+		}
+		
+		if (slowest == -1 || fastest == -1) {
+			return new ArrayList<>();
+		}
+		
+		Map<Integer, Changes> changes = new HashMap<>();
+		
+		//The network stays connected if the client still reaches the old neighbor
+		this.graph.addEdge(index, fastest);
+		this.graph.removeEdge(index, slowest);
+		
+		if (this.reaches(index, slowest)) {
+			this.numRewired[index]++;
+			this.verified = false;
+			addChange(changes, clientId, new Change(this.graph.clientId(fastest), ChangeType.ADD));
+			addChange(changes, clientId, new Change(this.graph.clientId(slowest), ChangeType.REMOVE));
+		} else {
+			this.graph.addEdge(index, slowest);
+			this.graph.removeEdge(index, fastest);
+		}
+		
+		return new ArrayList<>(changes.values());
 	}
+	
+	/**
+	 * Indicates if there is a path between the given nodes.
+	 * Searches forward from the start and backward from the end at the same time, always expanding the smaller side.
+	 * The searches stop when they meet, or when one side has no more nodes to visit, which is cheap when that side is small.
+	 * @param from The start node
+	 * @param to The end node
+	 */
+	private boolean reaches(int from, int to) {
+		if (from == to) {
+			return true;
+		}
+		
+		this.startSearch();
+		int forwardHead = 0;
+		int forwardTail = 0;
+		int reverseHead = 0;
+		int reverseTail = 0;
+		this.searchVisited.add(from);
+		this.searchStack[forwardTail++] = from;
+		this.searchReverseVisited.add(to);
+		this.searchReverseStack[reverseTail++] = to;
+		
+		//The nodes are visited in breadth first order, so the searches meet close to the middle of the path
+		while (forwardHead < forwardTail && reverseHead < reverseTail) {
+			if (forwardTail - forwardHead <= reverseTail - reverseHead) {
+				int current = this.searchStack[forwardHead++];
+				
+				for (int i = 0; i < this.graph.outDegree(current); i++) {
+					int next = this.graph.outEdges(current)[i];
+					
+					if (this.searchReverseVisited.contains(next)) {
+						return true;
+					}
+					
+					if (this.searchVisited.add(next)) {
+						this.searchStack[forwardTail++] = next;
+					}
+				}
+			} else {
+				int current = this.searchReverseStack[reverseHead++];
+				
+				for (int i = 0; i < this.graph.inDegree(current); i++) {
+					int next = this.graph.inEdges(current)[i];
+					
+					if (this.searchVisited.contains(next)) {
+						return true;
+					}
+					
+					if (this.searchReverseVisited.add(next)) {
+						this.searchReverseStack[reverseTail++] = next;
+					}
+				}
+			}
+		}
 		
+		return false;
+	}
+	
 	/**
-	 * Makes the network connected again
+	 * Makes the network connected again after the clients that have left since it was last made connected.
+	 * As the network was connected before, every path between the remaining clients that went through
+	 * removed clients starts at a predecessor and ends at a successor of a removed client. So the network is connected
+	 * if some client reaches all successors and is reached by all predecessors, and an edge is added for each one that is not.
+	 * The other changes keep which clients reach each other, or only add paths.
+	 * A few neighbors are checked with a search each, many with one search of the whole network in each direction.
 	 * @param changes  The changes that needs to be made
 	 */
 	private void makeConnected(Map<Integer, Changes> changes) {
-		while (!this.isConnected()) {
-			int from = this.randomClientInNetwork();
+		int[] successors = this.repairSuccessors;
+		int[] predecessors = this.repairPredecessors;
+		int numSuccessors = this.keepRemaining(successors, this.numRepairSuccessors);
+		int numPredecessors = this.keepRemaining(predecessors, this.numRepairPredecessors);
+		this.numRepairSuccessors = 0;
+		this.numRepairPredecessors = 0;
+		
+		if (this.numClients == 0 || numSuccessors + numPredecessors == 0) {
+			return;
+		}
+		
+		int root = numSuccessors > 0 ? successors[0] : this.clients[0];
+		
+		if (numSuccessors + numPredecessors > MAX_TARGETED_SEARCHES) {
+			this.connectAll(false, root, successors, numSuccessors, changes);
+			this.connectAll(true, root, predecessors, numPredecessors, changes);
+			return;
+		}
+		
+		for (int i = 0; i < numSuccessors; i++) {
+			int successor = successors[i];
 			
-			//Check that there is any edge to add
-			if (this.neighborList.get(from).size() < this.clients.size() - 1) {
-				int to = this.randomClient(from, this.neighborList.get(from));
-				addEdge(this.neighborList, from, to);
+			if (!this.reaches(root, successor)) {
+				this.addEdge(root, successor, changes);
+			}
+		}
+		
+		for (int i = 0; i < numPredecessors; i++) {
+			int predecessor = predecessors[i];
+			
+			if (!this.reaches(predecessor, root)) {
+				this.addEdge(predecessor, root, changes);
+			}
+		}
+	}
+	
+	/**
+	 * Removes the clients that are no longer in the network from the given nodes, keeping the order of the rest
+	 * @param nodes The nodes
+	 * @param numNodes The number of nodes
+	 * @return The number of remaining nodes
+	 */
+	private int keepRemaining(int[] nodes, int numNodes) {
+		int numRemaining = 0;
+		for (int i = 0; i < numNodes; i++) {
+			if (this.graph.isUsed(nodes[i])) {
+				nodes[numRemaining++] = nodes[i];
+			}
+		}
+		
+		return numRemaining;
+	}
+	
+	/**
+	 * Makes the given targets reachable from the root in one search, adding an edge from the root to each target that is not.
+	 * The search continues from the targets that get an edge, so no edge is added for a target that is reached through another.
+	 * @param reversed If the edges are followed backwards, which makes the root reachable from the targets instead
+	 * @param root The root node
+	 * @param targets The target nodes
+	 * @param numTargets The number of targets
+	 * @param changes The changes
+	 */
+	private void connectAll(boolean reversed, int root, int[] targets, int numTargets, Map<Integer, Changes> changes) {
+		Adjacency graph = reversed ? this.graph.reverse() : this.graph;
+		this.startSearch();
+		int stackSize = 0;
+		this.searchVisited.add(root);
+		this.searchStack[stackSize++] = root;
+		
+		for (int i = 0; i <= numTargets; i++) {
+			while (stackSize > 0) {
+				int current = this.searchStack[--stackSize];
 				
-				Changes vertexChanges = null;
-				if (changes.containsKey(from)) {
-					vertexChanges = changes.get(from);
+				for (int j = 0; j < graph.degree(current); j++) {
+					int next = graph.neighbor(current, j);
+					
+					if (this.searchVisited.add(next)) {
+						this.searchStack[stackSize++] = next;
+					}
+				}
+			}
+			
+			if (i < numTargets && this.searchVisited.add(targets[i])) {
+				if (reversed) {
+					this.addEdge(targets[i], root, changes);
 				} else {
-					Set<Change> clientChanges = new HashSet<>();
-					vertexChanges = new Changes(from, clientChanges);
-					changes.put(from, vertexChanges);
+					this.addEdge(root, targets[i], changes);
 				}
 				
-				vertexChanges.changes.add(new Change(to, ChangeType.ADD));		
+				this.searchStack[stackSize++] = targets[i];
 			}
 		}
 	}
@@ -293,70 +862,316 @@ public class ChatNetwork {
 	 * @param The changes that need to be sent to the clients
 	 */
 	public List<Changes> addClient(int clientId) {
-		this.clients.add(clientId);
-		Set<Integer> clientList = new HashSet<>();
-		this.neighborList.put(clientId, clientList);
+		return this.update(Collections.singletonList(clientId), Collections.emptyList());
+	}
+	
+	/**
+	 * Removes the given client from the network
+	 * @param clientId The id of the client
+	 * @return The changes that need to be sent to the clients
+	 */
+	public List<Changes> removeClient(int clientId) {
+		return this.update(Collections.emptyList(), Collections.singletonList(clientId));
+	}
+	
+	/**
+	 * Removes and adds the given clients in one pass, where the network is made connected once for all the removed clients.
+	 * A single client leaving a network that repair has left without cut vertices does not split it, so it is left to the next repair.
+	 * The changes are merged, so a link that is both added and removed is left out.
+	 * The changes include the removed links of the removed clients, so that the other ends of the links can remove them too.
+	 * @param joining The ids of the clients to add
+	 * @param leaving The ids of the clients to remove, which are removed before the clients are added
+	 * @return The changes that need to be sent to the clients
+	 */
+	public List<Changes> update(Collection<Integer> joining, Collection<Integer> leaving) {
+		Map<Integer, Changes> changes = new HashMap<>();
+		int numLeft = 0;
 		
-		List<Changes> changes = new ArrayList<>();
+		for (int clientId : leaving) {
+			int index = this.graph.indexOf(clientId);
+			if (index == -1) {
+				continue;
+			}
+			
+			int outDegree = this.graph.outDegree(index);
+			int inDegree = this.graph.inDegree(index);
+			this.repairSuccessors = append(this.repairSuccessors, this.numRepairSuccessors, this.graph.outEdges(index), outDegree);
+			this.repairPredecessors = append(this.repairPredecessors, this.numRepairPredecessors, this.graph.inEdges(index), inDegree);
+			this.numRepairSuccessors += outDegree;
+			this.numRepairPredecessors += inDegree;
+			this.detachClient(index, changes);
+			numLeft++;
+		}
 		
-		if (this.clients.size() > 1) {	
-			Set<Change> clientChanges = new HashSet<>();
+		if (numLeft > 0) {
+			//Without cut vertices the network stays connected when a single client leaves, so the repair can wait
+			if (!this.verified || numLeft > 1) {
+				this.makeConnected(changes);
+			}
 			
-			//Start by adding maxNum random nodes for the client
-			for (int i = 0; i < Math.min(this.maxNeighborsPerNode, this.clients.size() - 1); i++) {
-				int rand = this.randomClient(clientId, clientList);
-				clientList.add(rand);
-				clientChanges.add(new Change(rand, ChangeType.ADD));
+			this.verified = false;
+		}
+		
+		//Adding clients by splitting edges keeps the network connected
+		for (int clientId : joining) {
+			this.insertClient(clientId, changes);
+			this.verified = false;
+		}
+		
+		return new ArrayList<>(changes.values());
+	}
+	
+	/**
+	 * Indicates if repair has to be called to give the network its connectivity
+	 */
+	public boolean needsRepair() {
+		return this.connectivity > 1 && !this.verified;
+	}
+	
+	/**
+	 * Makes the network connected again after the leaves that have not been repaired, and adds links until no single client
+	 * splits the network when it leaves. Meant to be called in the background after changes, off the path of the joins and leaves.
+	 * @return The changes that need to be sent to the clients
+	 */
+	public List<Changes> repair() {
+		Map<Integer, Changes> changes = new HashMap<>();
+		this.makeConnected(changes);
+		
+		if (this.connectivity > 1) {
+			this.findCutVertices(changes);
+			this.verified = true;
+		}
+		
+		return new ArrayList<>(changes.values());
+	}
+	
+	/**
+	 * Indicates if no single client splits the network when it leaves, following the links in both directions
+	 */
+	public boolean isTwoConnected() {
+		return !this.findCutVertices(null);
+	}
+	
+	/**
+	 * Finds the clients that split the network when they leave, following the links in both directions, and adds links so that none do.
+	 * A depth first search finds each client whose subtree only reaches the rest of the network through the parent of the client,
+	 * which is then linked to its grandparent. The subtrees of the root only reach each other through the root, so they are linked in a chain.
+	 * The network must be connected.
+	 * @param changes The changes, or null to only check if there are such clients
+	 * @return True if there were such clients
+	 */
+	private boolean findCutVertices(Map<Integer, Changes> changes) {
+		if (this.numClients < 3) {
+			return false;
+		}
+		
+		int bound = this.graph.indexBound();
+		int[] order = new int[bound];
+		int[] low = new int[bound];
+		int[] parent = new int[bound];
+		int[] position = new int[bound];
+		int[] stack = new int[bound];
+		int stackSize = 0;
+		int time = 0;
+		boolean found = false;
+		
+		int root = this.clients[0];
+		int previousSubtree = -1;
+		order[root] = ++time;
+		low[root] = order[root];
+		parent[root] = -1;
+		stack[stackSize++] = root;
+		
+		while (stackSize > 0) {
+			int current = stack[stackSize - 1];
+			int outDegree = this.graph.outDegree(current);
+			
+			//The out edges are followed first, then the in edges. Edges added to the clients on the stack are in edges, which come last.
+			if (position[current] < outDegree + this.graph.inDegree(current)) {
+				int edge = position[current]++;
+				int next = edge < outDegree ? this.graph.outEdges(current)[edge] : this.graph.inEdges(current)[edge - outDegree];
+				
+				if (order[next] == 0) {
+					order[next] = ++time;
+					low[next] = order[next];
+					parent[next] = current;
+					stack[stackSize++] = next;
+				} else {
+					low[current] = Math.min(low[current], order[next]);
+				}
+				
+				continue;
 			}
 			
-			changes.add(new Changes(clientId, clientChanges));
+			stackSize--;
+			int up = parent[current];
 			
-			//Then add clients that has the new client as a neighbor
-			Set<Integer> added = new HashSet<>();
-			for (int i = 0; i < Math.min(this.maxNeighborsPerNode, this.clients.size() - 1); i++) {
-				int rand = this.randomClient(clientId, added);
-				added.add(rand);
-				this.neighborList.get(rand).add(clientId);
+			if (up == root) {
+				if (previousSubtree != -1) {
+					found = true;
+					if (changes == null) {
+						return true;
+					}
+					
+					this.addEdge(current, previousSubtree, changes);
+				}
 				
-				changes.add(new Changes(rand, Collections.singleton(new Change(clientId, ChangeType.ADD))));
+				previousSubtree = current;
+			} else if (up != -1) {
+				if (low[current] >= order[up]) {
+					found = true;
+					if (changes == null) {
+						return true;
+					}
+					
+					this.addEdge(current, parent[up], changes);
+					low[current] = order[parent[up]];
+				}
+				
+				low[up] = Math.min(low[up], low[current]);
 			}
 		}
-				
-		return changes;
+		
+		return found;
 	}
 	
 	/**
-	 * Removes the given client from the network
+	 * Stores the given values after the given number of values of the given array, growing the array if needed
+	 * @param array The array
+	 * @param length The number of values in the array
+	 * @param values The values to store
+	 * @param numValues The number of values to store
+	 * @return The array holding the values
+	 */
+	private static int[] append(int[] array, int length, int[] values, int numValues) {
+		if (length + numValues > array.length) {
+			array = Arrays.copyOf(array, Math.max(length + numValues, array.length * 2));
+		}
+		
+		System.arraycopy(values, 0, array, length, numValues);
+		return array;
+	}
+	
+	/**
+	 * Adds the given client to the network by splitting edges of random clients
 	 * @param clientId The id of the client
-	 * @return The changes that need to be sent to the clients
+	 * @param changes The changes
 	 */
-	public List<Changes> removeClient(int clientId) {
-		Map<Integer, Changes> changes = new HashMap<>();
+	private void insertClient(int clientId, Map<Integer, Changes> changes) {
+		int index = this.graph.addNode(clientId);
 		
-		//Remove the client
-		this.clients.remove((Integer)clientId);
-		this.neighborList.remove(clientId);
+		if (this.numClients == this.clients.length) {
+			this.clients = Arrays.copyOf(this.clients, this.numClients * 2);
+		}
 		
-		//Now all connections to it
-		for (Map.Entry<Integer, Set<Integer>> current : this.neighborList.entrySet()) {
-			if (current.getValue().remove(clientId)) {
-				Set<Change> clientChanges = new HashSet<>();
-				clientChanges.add(new Change(clientId, ChangeType.REMOVE));
-				changes.put(current.getKey(), new Changes(current.getKey(), clientChanges));
+		if (index >= this.clientPositions.length) {
+			this.clientPositions = Arrays.copyOf(this.clientPositions, Math.max(index + 1, this.clientPositions.length * 2));
+			this.roundTripTimes = Arrays.copyOf(this.roundTripTimes, this.clientPositions.length);
+			this.numRewired = Arrays.copyOf(this.numRewired, this.clientPositions.length);
+		}
+		
+		this.numRewired[index] = 0;
+		
+		this.clients[this.numClients] = index;
+		this.clientPositions[index] = this.numClients;
+		this.numClients++;
+		
+		if (!changes.containsKey(clientId)) {
+			changes.put(clientId, new Changes(clientId, new HashSet<>()));
+		}
+		
+		if (this.numClients > 1) {
+			int numNeighbors = this.targetDegree();
+			int[] picked = new int[numNeighbors];
+			
+			//Split an edge of random clients, which keeps the network connected
+			int numPicked = this.pickRandomClients(index, numNeighbors, picked, 0, picked);
+			for (int i = 0; i < numPicked; i++) {
+				this.splitEdge(picked[i], index, changes);
 			}
+			
+			//Splitting edges does not change the degree of the existing clients, so grow it for a random client
+			//in case the policy wants more neighbors now that the network is larger
+			this.topUp(this.clients[this.random.nextInt(this.numClients)], changes);
 		}
+	}
+	
+	/**
+	 * Removes the given client from the network, and connects each of its predecessors to one of its successors.
+	 * The network can become unconnected, which has to be repaired afterwards.
+	 * @param index The index of the client
+	 * @param changes The changes
+	 */
+	private void detachClient(int index, Map<Integer, Changes> changes) {
+		int clientId = this.graph.clientId(index);
+		
+		//Remove the client by moving the last client to its position
+		this.swapClients(this.clientPositions[index], this.numClients - 1);
+		this.numClients--;
+		
+		if (this.roundTripTimes[index] != null) {
+			for (int peerId : this.roundTripTimes[index].keys()) {
+				int peer = this.graph.indexOf(peerId);
+				
+				if (peer != -1 && this.roundTripTimes[peer] != null) {
+					this.roundTripTimes[peer].remove(clientId);
+				}
+			}
 			
-		if (this.clients.size() > 0) {
-			//After removing the client, its possible that the network becomes unconnected.
-			//So add random connections until the network becomes connected again.	
-			this.makeConnected(changes);
+			this.roundTripTimes[index] = null;
 		}
 		
-		return new ArrayList<>(changes.values());
+		int numSuccessors = this.graph.outDegree(index);
+		int[] successors = Arrays.copyOf(this.graph.outEdges(index), numSuccessors);
+		int numPredecessors = this.graph.inDegree(index);
+		int[] predecessors = Arrays.copyOf(this.graph.inEdges(index), numPredecessors);
+		
+		//Removing the node also removes all connections to it
+		this.graph.removeNode(index);
+		
+		for (int i = 0; i < numSuccessors; i++) {
+			addChange(changes, clientId, new Change(this.graph.clientId(successors[i]), ChangeType.REMOVE));
+		}
+		
+		for (int i = 0; i < numPredecessors; i++) {
+			addChange(changes, this.graph.clientId(predecessors[i]), new Change(clientId, ChangeType.REMOVE));
+		}
+		
+		//Connect each predecessor to the successor with the lowest latency, which keeps their degrees the same.
+		//Successors without known times are used in a rotating order, to spread the edges over them.
+		int offset = numSuccessors > 0 ? this.random.nextInt(numSuccessors) : 0;
+		for (int i = 0; i < numPredecessors; i++) {
+			int predecessor = predecessors[i];
+			int best = -1;
+			int bestTime = 0;
+			
+			for (int j = 0; j < numSuccessors; j++) {
+				int successor = successors[(offset + i + j) % numSuccessors];
+				
+				if (predecessor != successor && !this.graph.hasEdge(predecessor, successor)) {
+					int time = this.roundTripTime(predecessor, successor);
+					
+					if (best == -1 || time < bestTime) {
+						best = successor;
+						bestTime = time;
+					}
+				}
+			}
+			
+			if (best != -1) {
+				this.addEdge(predecessor, best, changes);
+			}
+		}
 	}
 	
 	@Override
 	public String toString() {
-		return this.neighborList.toString();
+		Map<Integer, Set<Integer>> neighborList = new LinkedHashMap<>();
+		for (int i = 0; i < this.numClients; i++) {
+			int clientId = this.graph.clientId(this.clients[i]);
+			neighborList.put(clientId, this.getNeighbors(clientId));
+		}
+		
+		return neighborList.toString();
 	}
 }
@@ -1,8 +1,18 @@
 package ipopprojekt.server;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import ipopprojekt.messages.MessageId;
 import ipopprojekt.server.ChatNetwork.Change;
@@ -10,22 +20,105 @@ import ipopprojekt.server.ChatNetwork.Changes;
 
 /**
  * Represents a chat room.
+ * The joins, leaves and latency reports of a room are queued and handled one at a time by the thread of the room,
+ * so rooms never wait for each other and the state of a room is only used by its own thread.
+ * The joins and leaves that arrive while the room is busy are admitted together, optionally after waiting a short window for more,
+ * so that a storm of reconnecting clients makes the network connected once per batch, and each affected client gets one
+ * merged neighbor update. A quiet room admits a single join directly.
+ * The network is repaired in the background shortly after changes, so that a single leave does not split it and needs no repair of its own.
  */
 public class ChatRoom {
+	/**
+	 * The system property used to set the admission window in milliseconds
+	 */
+	public static final String ADMISSION_WINDOW_PROPERTY = "ipopprojekt.admissionWindow";
+	
+	/**
+	 * The default time in milliseconds joins and leaves are collected before they are admitted
+	 */
+	public static final long DEFAULT_ADMISSION_WINDOW = 0;
+	
+	/**
+	 * The admission window that admits each join and leave on its own
+	 */
+	public static final long NO_BATCHING = -1;
+	
 	private final int id;
-	private final List<Client> clients;
+	
+	//The clients in the room by their id
+	private final Map<Integer, Client> clients;
+	
+	//The number of clients, which can be read by any thread
+	private volatile int numClients = 0;
+	
+	//The joins and leaves waiting to be admitted, by the id of the client
+	private final long admissionWindow;
+	private final Map<Integer, Client> joining = new LinkedHashMap<>();
+	private final Map<Integer, Client> leaving = new LinkedHashMap<>();
+	private boolean admissionScheduled = false;
 	
 	private final ChatNetwork chatNetwork;
 	
+	//Handles the commands of the room in order
+	private final ScheduledExecutorService mailbox;
+	
+	//The number of random peers each client measures the round trip time to, in addition to its neighbors
+	private static final int NUM_PROBE_PEERS = 8;
+	
+	//The time in milliseconds the repair of the network waits for more changes
+	private static final long REPAIR_DELAY = 100;
+	private boolean repairScheduled = false;
+	
 	/**
-	 * Creates a new chat room.
+	 * Creates a new chat room, with the admission window of the system property
 	 * 
 	 * @param id The id of the chat room.
 	 */
 	public ChatRoom(int id) {
+		this(id, Long.getLong(ADMISSION_WINDOW_PROPERTY, DEFAULT_ADMISSION_WINDOW));
+	}
+	
+	/**
+	 * Creates a new chat room.
+	 * 
+	 * @param id The id of the chat room.
+	 * @param admissionWindow The time in milliseconds joins and leaves are collected before they are admitted.
+	 * If 0, they are admitted when the commands queued before them have been handled, and if NO_BATCHING, one at a time.
+	 */
+	public ChatRoom(int id, long admissionWindow) {
 		this.id = id;
-		this.clients = new ArrayList<>();
-		this.chatNetwork = new ChatNetwork(1);
+		this.admissionWindow = admissionWindow;
+		this.clients = new HashMap<>();
+		this.chatNetwork = new ChatNetwork(
+			TopologyPolicy.fromSystemProperty(),
+			Integer.getInteger(ChatNetwork.CONNECTIVITY_PROPERTY, ChatNetwork.DEFAULT_CONNECTIVITY),
+			System.currentTimeMillis());
+		this.mailbox = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "room-" + id);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Queues the given command to be run by the thread of the room. Commands to a closed room are dropped.
+	 * @param command The command
+	 */
+	private void submit(Runnable command) {
+		this.submit(command, 0);
+	}
+	
+	/**
+	 * Queues the given command to be run by the thread of the room after the given delay. Commands to a closed room are dropped.
+	 * @param command The command
+	 * @param delay The delay in milliseconds
+	 */
+	private void submit(Runnable command, long delay) {
+		try {
+			this.mailbox.schedule(command, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			//The room has been closed
+		}
 	}
 	
 	/**
@@ -36,72 +129,215 @@ public class ChatRoom {
 	}
 	
 	/**
-	 * Adds a client to the room.
+	 * Adds a client to the room. The client is added by the thread of the room.
 	 * 
 	 * @param client The client to add.
 	 */
 	public void addClient(Client client) {
-		clients.add(client);
+		this.submit(() -> this.join(client));
+	}
+	
+	/**
+	 * Adds a client to the joins waiting to be admitted
+	 * @param client The client
+	 */
+	private void join(Client client) {
+		this.joining.put(client.getId(), client);
+		this.scheduleAdmission();
+	}
+	
+	/**
+	 * Removes a client from the room. The client is removed by the thread of the room.
+	 * 
+	 * @param client The client to remove.
+	 */
+	public void removeClient(Client client) {
+		this.submit(() -> this.leave(client));
+	}
+	
+	/**
+	 * Adds a client to the leaves waiting to be admitted, if it is in the room.
+	 * A client that leaves before its join has been admitted is forgotten.
+	 * @param client The client
+	 */
+	private void leave(Client client) {
+		if (this.joining.remove(client.getId(), client)) {
+			return;
+		}
 		
-		//Add the client and distribute the changes
-		for (Changes changes : this.chatNetwork.addClient(client.getId())) {
-			List<Client> toAdd = new ArrayList<>();
-			List<Client> toRemove = new ArrayList<>();
+		if (this.inRoom(client)) {
+			this.leaving.put(client.getId(), client);
+			this.scheduleAdmission();
+		}
+	}
+	
+	/**
+	 * Admits the waiting joins and leaves after the commands that are already queued and the admission window
+	 */
+	private void scheduleAdmission() {
+		if (this.admissionWindow < 0) {
+			this.admit();
+		} else if (!this.admissionScheduled) {
+			this.admissionScheduled = true;
+			this.submit(this::admit, this.admissionWindow);
+		}
+	}
+	
+	/**
+	 * Admits the waiting joins and leaves together, and sends the changes to the affected clients
+	 */
+	private void admit() {
+		this.admissionScheduled = false;
+		if (this.joining.isEmpty() && this.leaving.isEmpty()) {
+			return;
+		}
+		
+		for (Client client : this.leaving.values()) {
+			System.out.println("Client: '" + client.toString() + "' removed");
+			this.clients.remove(client.getId());
+		}
+		
+		this.clients.putAll(this.joining);
+		this.numClients = this.clients.size();
+		
+		//The changes include the links of the clients that left, so the other ends of the links remove them too
+		this.sendChanges(this.chatNetwork.update(this.joining.keySet(), this.leaving.keySet()));
+		for (Client client : this.joining.values()) {
+			this.sendProbePeers(client);
+		}
+		
+		this.joining.clear();
+		this.leaving.clear();
+		this.scheduleRepair();
+	}
+	
+	/**
+	 * Repairs the network after the repair delay, if it needs it
+	 */
+	private void scheduleRepair() {
+		if (!this.repairScheduled && this.chatNetwork.needsRepair()) {
+			this.repairScheduled = true;
+			this.submit(this::repair, REPAIR_DELAY);
+		}
+	}
+	
+	/**
+	 * Repairs the network, and sends the changes to the affected clients
+	 */
+	private void repair() {
+		this.repairScheduled = false;
+		this.sendChanges(this.chatNetwork.repair());
+	}
+	
+	/**
+	 * Handles that the given client has reported the round trip times to some of its peers.
+	 * The client may get faster neighbors, and gets new random peers to measure. The report is handled by the thread of the room.
+	 * @param client The client
+	 * @param peerIds The ids of the peers
+	 * @param roundTripTimes The round trip times in microseconds
+	 */
+	public void latencyReported(Client client, int[] peerIds, int[] roundTripTimes) {
+		this.submit(() -> this.updateLatency(client, peerIds, roundTripTimes));
+	}
+	
+	/**
+	 * Records the given round trip times, and sends the changes to the affected clients
+	 * @param client The client
+	 * @param peerIds The ids of the peers
+	 * @param roundTripTimes The round trip times in microseconds
+	 */
+	private void updateLatency(Client client, int[] peerIds, int[] roundTripTimes) {
+		//The client can have left before the report was handled
+		if (!this.inRoom(client) || this.leaving.containsKey(client.getId())) {
+			return;
+		}
+		
+		for (int i = 0; i < peerIds.length; i++) {
+			this.chatNetwork.setRoundTripTime(client.getId(), peerIds[i], roundTripTimes[i]);
+		}
+		
+		this.sendChanges(this.chatNetwork.rewire(client.getId()));
+		this.sendProbePeers(client);
+		this.scheduleRepair();
+	}
+	
+	/**
+	 * Sends the given changes to the clients.
+	 * Both ends of a link are told about it, so that the clients can send to each other in both directions.
+	 * A client gets a neighbor once for each link between them.
+	 * The changes are queued by the clients, and merged with their other waiting changes.
+	 * @param changesList The changes
+	 */
+	private void sendChanges(List<Changes> changesList) {
+		Map<Integer, List<Integer>> toAdd = new LinkedHashMap<>();
+		Map<Integer, List<Integer>> toRemove = new LinkedHashMap<>();
+		
+		for (Changes changes : changesList) {
+			int clientId = changes.getClientId();
 			
 			for (Change change : changes.getChanges()) {
+				Map<Integer, List<Integer>> target;
 				switch (change.getType()) {
 				case ADD:
-					toAdd.add(this.getClient(change.getClientId()));
+					target = toAdd;
 					break;
 				case REMOVE:
-					toRemove.add(this.getClient(change.getClientId()));
+					target = toRemove;
 					break;
 				default:
-					break;
+					continue;
+				}
+				
+				target.computeIfAbsent(clientId, id -> new ArrayList<>()).add(change.getClientId());
+				target.computeIfAbsent(change.getClientId(), id -> new ArrayList<>()).add(clientId);
+			}
+		}
+		
+		for (Map.Entry<Integer, List<Integer>> entry : toAdd.entrySet()) {
+			Client client = this.getClient(entry.getKey());
+			if (client == null) {
+				continue;
+			}
+			
+			List<Client> neighbors = new ArrayList<>();
+			for (int neighborId : entry.getValue()) {
+				Client neighbor = this.getClient(neighborId);
+				if (neighbor != null) {
+					neighbors.add(neighbor);
 				}
 			}
 			
-			this.sendAddNeighbors(this.getClient(changes.getClientId()), toAdd);
-			this.sendRemoveNeighbors(this.getClient(changes.getClientId()), toRemove);
+			this.sendAddNeighbors(client, neighbors);
+		}
+		
+		for (Map.Entry<Integer, List<Integer>> entry : toRemove.entrySet()) {
+			Client client = this.getClient(entry.getKey());
+			if (client != null) {
+				this.sendRemoveNeighbors(client, entry.getValue());
+			}
 		}
 	}
 	
 	/**
-	 * Removes a client from the room.
-	 * 
-	 * @param client The client to remove.
+	 * Sends random peers to the given client, which the client measures the round trip time to
+	 * @param client The client
 	 */
-	public boolean removeClient(Client client) {
-		if (this.clients.contains(client)) {
-			System.out.println("Client: '" + client.toString() + "' removed");
-			
-			//Remove the client and distribute the changes
-			for (Changes changes : this.chatNetwork.removeClient(client.getId())) {
-				List<Client> toAdd = new ArrayList<>();
-				List<Client> toRemove = new ArrayList<>();
-				
-				for (Change change : changes.getChanges()) {
-					switch (change.getType()) {
-					case ADD:
-						toAdd.add(this.getClient(change.getClientId()));
-						break;
-					case REMOVE:
-						toRemove.add(this.getClient(change.getClientId()));
-						break;
-					default:
-						break;
-					}
-				}
-				
-				this.sendAddNeighbors(this.getClient(changes.getClientId()), toAdd);
-				this.sendRemoveNeighbors(this.getClient(changes.getClientId()), toRemove);
+	private void sendProbePeers(Client client) {
+		List<Client> peers = new ArrayList<>();
+		for (int peerId : this.chatNetwork.randomPeers(client.getId(), NUM_PROBE_PEERS)) {
+			peers.add(this.getClient(peerId));
+		}
+		
+		try (ByteArrayOutputStream message = new ByteArrayOutputStream()) {
+			if (peers.size() > 0) {
+				DataOutputStream stream = new DataOutputStream(message);
+				stream.writeByte(MessageId.PROBE_PEERS.getId());
+				this.writeNeighborList(stream, peers);
+				stream.flush();
+				client.send(message.toByteArray());
 			}
-			
-			this.clients.remove(client);
-			
-			return true;
-		} else {
-			return false;
+		} catch (IOException e) {
+			System.err.println("Could not send probe peers " + e);
 		}
 	}
 	
@@ -111,94 +347,82 @@ public class ChatRoom {
 	 * @param toAdd The clients to add
 	 */
 	private void sendAddNeighbors(Client client, List<Client> toAdd) {
-		try {
-			if (toAdd.size() > 0) {
-				client.getOutputStream().writeByte(MessageId.ADD_NEIGHBORS.getId());		
-				this.sendNeighborList(client, toAdd);				
-				client.getOutputStream().flush();
-			}
-		} catch (IOException e) {
-			System.err.println("Could not send addNeighbor " + e);
+		if (toAdd.size() > 0) {
+			client.addNeighbors(toAdd);
 		}
 	}
 	
 	/**
 	 * Sends what neighbors to remove for the given client
 	 * @param client The client
-	 * @param toRemove The clients to remove
+	 * @param toRemove The ids of the clients to remove
 	 */
-	private void sendRemoveNeighbors(Client client, List<Client> toRemove) {
-		try {
-			if (toRemove.size() > 0) {
-				client.getOutputStream().writeByte(MessageId.REMOVE_NEIGHBORS.getId());		
-				
-				client.getOutputStream().writeInt(toRemove.size());
-				for (Client receiver : toRemove) {
-					client.getOutputStream().writeInt(receiver.getId());
-				}
-				
-				client.getOutputStream().flush();
-			}
-		} catch (IOException e) {
-			System.err.println("Could not send addNeighbor " + e);
+	private void sendRemoveNeighbors(Client client, List<Integer> toRemove) {
+		if (toRemove.size() > 0) {
+			client.removeNeighbors(toRemove);
 		}
 	}
 	
 	/**
-	 * Sends the given neighbor list to the given client.
-	 * Note that this method does not set the type of the message.
-	 * @param client The client
+	 * Writes the given neighbor list to the given stream.
+	 * Note that this method does not write the type of the message.
+	 * @param stream The stream
 	 * @param neighborList The neighbor list
 	 */
-	private void sendNeighborList(Client client, List<Client> neighborList) {
-		try {
-			client.getOutputStream().writeInt(neighborList.size());
-			
-			for (Client receiver : neighborList) {
-				client.getOutputStream().writeInt(receiver.getId());
-				client.getOutputStream().writeUTF(receiver.getIP());
-				client.getOutputStream().writeInt(receiver.getPort());
-			}
-		} catch (IOException e) {
-			System.err.println("Could not send neighbor list: " + e);
+	private void writeNeighborList(DataOutputStream stream, List<Client> neighborList) throws IOException {
+		stream.writeInt(neighborList.size());
+		
+		for (Client receiver : neighborList) {
+			stream.writeInt(receiver.getId());
+			stream.writeUTF(receiver.getIP());
+			stream.writeInt(receiver.getPort());
 		}
 	}
 	
 	/**
-	 * Returns clients connected to the room.
+	 * Returns the number of clients in the room, including the joins and leaves admitted so far
+	 */
+	public int getNumClients() {
+		return this.numClients;
+	}
+	
+	/**
+	 * Returns clients connected to the room. Must be called by the thread of the room.
 	 */
-	public List<Client> getClients() {
-		return this.clients;
+	public Collection<Client> getClients() {
+		return this.clients.values();
 	}
 	
 	/**
-	 * Returns the client with the given id
+	 * Returns the client with the given id. Must be called by the thread of the room.
 	 * @param id The id of the client
 	 * @return The client or null
 	 */
 	public Client getClient(int id) {
-		for (Client client : this.clients) {
-			if (client.getId() == id) {
-				return client;
-			}
-		}
-		
-		return null;
+		return this.clients.get(id);
 	}
 	
 	/**
-	 * Checks whether a client is in the room or not.
+	 * Checks whether a client is in the room or not. Must be called by the thread of the room.
 	 */
 	public boolean inRoom(Client client) {
-		return clients.contains(client);
+		return this.clients.get(client.getId()) == client;
 	}
 	
 	/**
-	 * Closes a room.
+	 * Closes a room, after the commands that are already queued
 	 */
 	public void close() {
-		for (Client client : this.clients) {
-			client.close();
-		}
+		this.submit(() -> {
+			for (Client client : this.clients.values()) {
+				client.close();
+			}
+			
+			for (Client client : this.joining.values()) {
+				client.close();
+			}
+		});
+		
+		this.mailbox.shutdown();
 	}
 }
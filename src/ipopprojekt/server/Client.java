@@ -4,16 +4,26 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
 
 import ipopprojekt.messages.MessageId;
+import ipopprojekt.util.ByteBufferInputStream;
 
 /**
- * Represents a client for the central server
+ * Represents a client for the central server.
+ * The messages to the client are queued and written by the writer of the client, or by its event loop for non-blocking clients,
+ * so the server never waits for the client. A client that does not keep up with its messages is disconnected.
  */
 public class Client implements Runnable {
 	private final Socket socket;
+	private final SocketChannel channel;
 	private final Server server;
 	
 	private final int id;
@@ -22,6 +32,23 @@ public class Client implements Runnable {
 	
 	private int port = -1;
 	
+	//The room the client has joined, set once
+	private volatile ChatRoom room;
+	
+	//The messages waiting to be written
+	private final OutboundQueue outbound = new OutboundQueue();
+	
+	//Only used by the NIO transport
+	private ServerEventLoop eventLoop;
+	private SelectionKey selectionKey;
+	private ByteBuffer readBuffer;
+	private ByteBuffer writeBuffer;
+	
+	private static final int INITIAL_READ_BUFFER_SIZE = 256;
+	
+	//Larger than the largest valid message, a latency report with the maximum number of peers
+	private static final int MAX_MESSAGE_SIZE = 16 * 1024;
+	
 	/**
 	 * Creates an new client
 	 * @param socket The socket for the client
@@ -30,6 +57,20 @@ public class Client implements Runnable {
 	 */
 	public Client(Socket socket, Server server, int id) {
 		this.socket = socket;
+		this.channel = null;
+		this.server = server;
+		this.id = id;
+	}
+	
+	/**
+	 * Creates an new client that uses a non-blocking channel
+	 * @param channel The channel for the client
+	 * @param server The server that the client is associated with
+	 * @param id The user id
+	 */
+	public Client(SocketChannel channel, Server server, int id) {
+		this.socket = channel.socket();
+		this.channel = channel;
 		this.server = server;
 		this.id = id;
 	}
@@ -56,10 +97,25 @@ public class Client implements Runnable {
 	}
 	
 	/**
-	 * Returns the output stream
+	 * Returns the room the client has joined, or null if it has not joined a room
+	 */
+	public ChatRoom getRoom() {
+		return this.room;
+	}
+	
+	/**
+	 * Sets the room the client has joined
+	 * @param room The room
+	 */
+	void setRoom(ChatRoom room) {
+		this.room = room;
+	}
+	
+	/**
+	 * Returns the channel, or null if the client uses a blocking socket
 	 */
-	public DataOutputStream getOutputStream() {
-		return this.streamOut;
+	public SocketChannel getChannel() {
+		return this.channel;
 	}
 	
 	/**
@@ -74,23 +130,145 @@ public class Client implements Runnable {
 		while (this.isConnected()) {
 			//Handle commands
 			try {
-				byte messageID = this.streamIn.readByte();
+				this.handleMessage(this.streamIn);
+			} catch (IOException | RuntimeException e) {
+				this.disconnect();
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Writes the queued messages to the socket until the client is closed. Used by blocking clients only.
+	 */
+	public void writeLoop() {
+		try {
+			byte[] data;
+			while ((data = this.outbound.take()) != null) {
+				this.streamOut.write(data);
+				this.streamOut.flush();
+			}
+		} catch (InterruptedException | IOException e) {
+			//The reader removes the client when the socket is closed
+			this.close();
+		}
+	}
+	
+	/**
+	 * Queues the given message
+	 * @param message The encoded message, including its id
+	 */
+	public void send(byte[] message) {
+		this.queued(this.outbound.add(message, System.currentTimeMillis()));
+	}
+	
+	/**
+	 * Queues adding the given clients as neighbors, merged with the other waiting neighbor changes
+	 * @param neighbors The clients to add
+	 */
+	public void addNeighbors(List<Client> neighbors) {
+		long now = System.currentTimeMillis();
+		boolean accepted = true;
+		
+		for (Client neighbor : neighbors) {
+			accepted &= this.outbound.addNeighbor(neighbor.getId(), neighbor.getIP(), neighbor.getPort(), now);
+		}
+		
+		this.queued(accepted);
+	}
+	
+	/**
+	 * Queues removing the given neighbors, merged with the other waiting neighbor changes
+	 * @param neighborIds The ids of the neighbors to remove
+	 */
+	public void removeNeighbors(List<Integer> neighborIds) {
+		long now = System.currentTimeMillis();
+		boolean accepted = true;
+		
+		for (int neighborId : neighborIds) {
+			accepted &= this.outbound.removeNeighbor(neighborId, now);
+		}
+		
+		this.queued(accepted);
+	}
+	
+	/**
+	 * Wakes the event loop to write the queued messages, or disconnects the client if it is too slow
+	 * @param accepted False if the client was too slow for the messages to be queued
+	 */
+	private void queued(boolean accepted) {
+		if (!accepted) {
+			this.disconnectSlow();
+		} else if (this.eventLoop != null) {
+			this.eventLoop.requestWrite(this);
+		}
+	}
+	
+	/**
+	 * Disconnects the client because it does not keep up with its messages.
+	 * The client is removed by its reader or event loop, as the caller can be in the middle of changing the room.
+	 */
+	private void disconnectSlow() {
+		if (!this.outbound.close()) {
+			return;
+		}
+		
+		System.out.println("Client: '" + this.toString() + "' is too slow, disconnecting");
+		if (this.eventLoop != null) {
+			this.eventLoop.requestDisconnect(this);
+		} else {
+			this.close();
+		}
+	}
+	
+	/**
+	 * Removes the client from the server and closes the connection
+	 */
+	void disconnect() {
+		this.server.removeClient(this);
+		this.close();
+	}
+	
+	/**
+	 * Reads and handles the next message from the given stream
+	 * @param stream The stream
+	 * @throws IOException If an IO exception happens, or the message is not valid
+	 */
+	private void handleMessage(DataInputStream stream) throws IOException {
+		byte messageID = stream.readByte();
+		MessageId id = MessageId.fromByte(messageID);
+		if (id == null) {
+			throw new ProtocolException("Unknown message id " + messageID);
+		}
+		
+		switch (id) {
+		case CONNECT_CLIENT:
+			{
+				int port = stream.readInt();
+				int room = stream.readInt();
+				this.port = port;
+				this.server.clientConnected(this, room);
+			}
+			break;
+		case LATENCY_REPORT:
+			{
+				int num = stream.readInt();
+				if (num < 0 || num > MessageId.MAX_REPORTED_PEERS) {
+					throw new ProtocolException("Invalid number of reported peers " + num);
+				}
 				
-				switch (MessageId.fromByte(messageID)) {
-				case CONNECT_CLIENT:
-					{
-						this.port = this.streamIn.readInt();
-						int room = this.streamIn.readInt();
-						this.server.clientConnected(this, room);
-					}
-					break;
-				default:
-					break;
+				int[] peerIds = new int[num];
+				int[] roundTripTimes = new int[num];
+				for (int i = 0; i < num; i++) {
+					peerIds[i] = stream.readInt();
+					roundTripTimes[i] = stream.readInt();
 				}
-			} catch (IOException e) {
-				this.server.removeClient(this);
-				break;
+				
+				this.server.latencyReported(this, peerIds, roundTripTimes);
 			}
+			break;
+		default:
+			break;
 		}
 	}
 	
@@ -103,11 +281,111 @@ public class Client implements Runnable {
 		this.streamOut = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
 	}
 	
+	/**
+	 * Opens the client on the given event loop. Used instead of open() for non-blocking clients.
+	 * @param eventLoop The event loop that handles the IO of the client
+	 */
+	public void open(ServerEventLoop eventLoop) {
+		this.eventLoop = eventLoop;
+		this.readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Marks that the client has been registered at the given key
+	 * @param selectionKey The key
+	 */
+	void registered(SelectionKey selectionKey) {
+		this.selectionKey = selectionKey;
+	}
+	
+	/**
+	 * Reads the available data from the channel and handles the complete messages in it.
+	 * Called by the event loop when the channel is readable.
+	 */
+	void readable() {
+		try {
+			if (!this.readBuffer.hasRemaining()) {
+				if (this.readBuffer.capacity() >= MAX_MESSAGE_SIZE) {
+					throw new ProtocolException("Message larger than " + MAX_MESSAGE_SIZE + " bytes");
+				}
+				
+				ByteBuffer newBuffer = ByteBuffer.allocate(this.readBuffer.capacity() * 2);
+				this.readBuffer.flip();
+				newBuffer.put(this.readBuffer);
+				this.readBuffer = newBuffer;
+			}
+			
+			if (this.channel.read(this.readBuffer) < 0) {
+				throw new EOFException();
+			}
+			
+			this.readBuffer.flip();
+			DataInputStream stream = new DataInputStream(new ByteBufferInputStream(this.readBuffer));
+			
+			while (this.readBuffer.hasRemaining()) {
+				//A message can be split over several reads, so rewind if it is not complete
+				this.readBuffer.mark();
+				
+				try {
+					this.handleMessage(stream);
+				} catch (EOFException e) {
+					this.readBuffer.reset();
+					break;
+				}
+			}
+			
+			this.readBuffer.compact();
+		} catch (IOException e) {
+			this.disconnect();
+		}
+	}
+	
+	/**
+	 * Writes the queued messages to the channel. The messages queued while the channel was full are written together.
+	 * Called by the event loop when the channel is writable.
+	 */
+	void writable() {
+		try {
+			while (true) {
+				if (this.writeBuffer == null || !this.writeBuffer.hasRemaining()) {
+					byte[] data = this.outbound.drain();
+					if (data == null) {
+						break;
+					}
+					
+					this.writeBuffer = ByteBuffer.wrap(data);
+				}
+				
+				this.channel.write(this.writeBuffer);
+				
+				if (this.writeBuffer.hasRemaining()) {
+					//The socket buffer is full, wait until it becomes writable again
+					return;
+				}
+			}
+			
+			if (this.selectionKey.isValid()) {
+				this.selectionKey.interestOps(SelectionKey.OP_READ);
+			}
+		} catch (IOException e) {
+			this.disconnect();
+		}
+	}
+	
+	/**
+	 * Indicates if the client has data waiting to be written
+	 */
+	boolean hasPendingWrites() {
+		return (this.writeBuffer != null && this.writeBuffer.hasRemaining()) || !this.outbound.isEmpty();
+	}
+	
 	/**
 	 * Closes the connection to the client
 	 * @throws IOException If an IO exception happens
 	 */
 	public void close() {
+		this.outbound.close();
+		
 		try {
 			if (this.socket != null) {
 				this.socket.close();
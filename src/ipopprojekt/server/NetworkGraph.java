@@ -0,0 +1,307 @@
+package ipopprojekt.server;
+
+import java.util.Arrays;
+
+import ipopprojekt.util.IntIntMap;
+
+/**
+ * A directed graph over clients stored using primitive arrays.
+ * Each client is mapped to a dense index, and the edges are stored as arrays of indices.
+ * Both the out edges and the in edges of each node are stored, so the edges of a node can be removed without scanning the graph.
+ * The indices of removed clients are reused by new clients.
+ */
+class NetworkGraph implements Adjacency {
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int FREE = -1;
+	
+	private final IntIntMap indices = new IntIntMap(FREE);
+	private final int initialDegreeCapacity;
+	
+	private int[] clientIds = new int[INITIAL_CAPACITY];
+	private int[][] outEdges = new int[INITIAL_CAPACITY][];
+	private int[] outDegrees = new int[INITIAL_CAPACITY];
+	private int[][] inEdges = new int[INITIAL_CAPACITY][];
+	private int[] inDegrees = new int[INITIAL_CAPACITY];
+	private final Adjacency reverse = new ReverseAdjacency();
+	private int numIndices = 0;
+	
+	private int[] freeIndices = new int[INITIAL_CAPACITY];
+	private int numFree = 0;
+	
+	private static final int[] NO_EDGES = new int[0];
+	
+	/**
+	 * Creates a new graph
+	 * @param initialDegreeCapacity The number of edges per node to allocate space for up front
+	 */
+	public NetworkGraph(int initialDegreeCapacity) {
+		this.initialDegreeCapacity = Math.max(1, initialDegreeCapacity);
+	}
+	
+	/**
+	 * Returns the number of nodes
+	 */
+	public int size() {
+		return this.indices.size();
+	}
+	
+	/**
+	 * Returns the upper bound (exclusive) of the used indices
+	 */
+	public int indexBound() {
+		return this.numIndices;
+	}
+	
+	/**
+	 * Returns the index of the given client, or -1 if the client is not in the graph
+	 * @param clientId The id of the client
+	 */
+	public int indexOf(int clientId) {
+		return this.indices.get(clientId);
+	}
+	
+	/**
+	 * Returns the id of the client at the given index
+	 * @param index The index
+	 */
+	public int clientId(int index) {
+		return this.clientIds[index];
+	}
+	
+	/**
+	 * Indicates if the given index is used by a client
+	 * @param index The index
+	 */
+	public boolean isUsed(int index) {
+		return index < this.numIndices && this.clientIds[index] != FREE;
+	}
+	
+	/**
+	 * Adds the given client to the graph
+	 * @param clientId The id of the client
+	 * @return The index of the client
+	 */
+	public int addNode(int clientId) {
+		int index;
+		if (this.numFree > 0) {
+			index = this.freeIndices[--this.numFree];
+		} else {
+			index = this.numIndices++;
+			
+			if (index == this.clientIds.length) {
+				int capacity = this.clientIds.length * 2;
+				this.clientIds = Arrays.copyOf(this.clientIds, capacity);
+				this.outEdges = Arrays.copyOf(this.outEdges, capacity);
+				this.outDegrees = Arrays.copyOf(this.outDegrees, capacity);
+				this.inEdges = Arrays.copyOf(this.inEdges, capacity);
+				this.inDegrees = Arrays.copyOf(this.inDegrees, capacity);
+			}
+		}
+		
+		this.clientIds[index] = clientId;
+		this.outEdges[index] = NO_EDGES;
+		this.outDegrees[index] = 0;
+		this.inEdges[index] = NO_EDGES;
+		this.inDegrees[index] = 0;
+		this.indices.put(clientId, index);
+		return index;
+	}
+	
+	/**
+	 * Removes the node at the given index together with all its edges
+	 * @param index The index
+	 */
+	public void removeNode(int index) {
+		while (this.outDegrees[index] > 0) {
+			this.removeEdge(index, this.outEdges[index][this.outDegrees[index] - 1]);
+		}
+		
+		while (this.inDegrees[index] > 0) {
+			this.removeEdge(this.inEdges[index][this.inDegrees[index] - 1], index);
+		}
+		
+		this.indices.remove(this.clientIds[index]);
+		this.clientIds[index] = FREE;
+		this.outEdges[index] = null;
+		this.inEdges[index] = null;
+		
+		if (this.numFree == this.freeIndices.length) {
+			this.freeIndices = Arrays.copyOf(this.freeIndices, this.numFree * 2);
+		}
+		
+		this.freeIndices[this.numFree++] = index;
+	}
+	
+	/**
+	 * Returns the number of out edges of the given node
+	 * @param index The index of the node
+	 */
+	public int outDegree(int index) {
+		return this.outDegrees[index];
+	}
+	
+	/**
+	 * Returns the out edges of the given node. Only the first outDegree(index) entries are valid.
+	 * @param index The index of the node
+	 */
+	public int[] outEdges(int index) {
+		return this.outEdges[index];
+	}
+	
+	/**
+	 * Returns the number of in edges of the given node
+	 * @param index The index of the node
+	 */
+	public int inDegree(int index) {
+		return this.inDegrees[index];
+	}
+	
+	/**
+	 * Returns the start nodes of the in edges of the given node. Only the first inDegree(index) entries are valid.
+	 * @param index The index of the node
+	 */
+	public int[] inEdges(int index) {
+		return this.inEdges[index];
+	}
+	
+	/**
+	 * Returns a view of the graph with the edges reversed
+	 */
+	public Adjacency reverse() {
+		return this.reverse;
+	}
+	
+	@Override
+	public int degree(int node) {
+		return this.outDegrees[node];
+	}
+	
+	@Override
+	public int neighbor(int node, int position) {
+		return this.outEdges[node][position];
+	}
+	
+	/**
+	 * Indicates if there is an edge between the given nodes
+	 * @param from The start node
+	 * @param to The end node
+	 */
+	public boolean hasEdge(int from, int to) {
+		return contains(this.outEdges[from], this.outDegrees[from], to);
+	}
+	
+	/**
+	 * Adds an edge between the given nodes
+	 * @param from The start node
+	 * @param to The end node
+	 * @return True if the edge was added, false if it already existed
+	 */
+	public boolean addEdge(int from, int to) {
+		if (this.hasEdge(from, to)) {
+			return false;
+		}
+		
+		this.outEdges[from] = append(this.outEdges[from], this.outDegrees[from]++, to);
+		this.inEdges[to] = append(this.inEdges[to], this.inDegrees[to]++, from);
+		return true;
+	}
+	
+	/**
+	 * Stores the given value at the given position of the given edge array, growing the array if needed
+	 * @param edges The edges
+	 * @param position The position
+	 * @param value The value
+	 * @return The array holding the edges
+	 */
+	private int[] append(int[] edges, int position, int value) {
+		if (position == edges.length) {
+			edges = Arrays.copyOf(edges, Math.max(this.initialDegreeCapacity, position * 2));
+		}
+		
+		edges[position] = value;
+		return edges;
+	}
+	
+	/**
+	 * Removes the edge between the given nodes
+	 * @param from The start node
+	 * @param to The end node
+	 * @return True if the edge was removed, false if it did not exist
+	 */
+	public boolean removeEdge(int from, int to) {
+		int[] edges = this.outEdges[from];
+		int position = find(edges, this.outDegrees[from], to);
+		
+		if (position == -1) {
+			return false;
+		}
+		
+		//The order of the edges does not matter, so move the last edge to the free position
+		edges[position] = edges[--this.outDegrees[from]];
+		
+		int[] reverseEdges = this.inEdges[to];
+		reverseEdges[find(reverseEdges, this.inDegrees[to], from)] = reverseEdges[--this.inDegrees[to]];
+		return true;
+	}
+	
+	/**
+	 * Indicates if the given value is in the first size entries of the given array
+	 * @param array The array
+	 * @param size The number of used entries
+	 * @param value The value
+	 */
+	static boolean contains(int[] array, int size, int value) {
+		return find(array, size, value) != -1;
+	}
+	
+	/**
+	 * Returns the position of the given value in the first size entries of the given array, or -1
+	 * @param array The array
+	 * @param size The number of used entries
+	 * @param value The value
+	 */
+	private static int find(int[] array, int size, int value) {
+		for (int i = 0; i < size; i++) {
+			if (array[i] == value) {
+				return i;
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Returns the estimated size of the graph in bytes
+	 */
+	public long estimatedBytes() {
+		long bytes = this.indices.estimatedBytes();
+		bytes += 4L * this.clientIds.length + 4L * this.freeIndices.length;
+		bytes += 4L * this.outDegrees.length + 4L * this.inDegrees.length;
+		
+		//The references to the edge arrays and the arrays themselves
+		bytes += 4L * this.outEdges.length + 4L * this.inEdges.length;
+		for (int i = 0; i < this.numIndices; i++) {
+			if (this.outEdges[i] != null) {
+				bytes += 16 + 4L * this.outEdges[i].length;
+				bytes += 16 + 4L * this.inEdges[i].length;
+			}
+		}
+		
+		return bytes;
+	}
+	
+	/**
+	 * The in edges of the graph, seen as the out edges of the reversed graph
+	 */
+	private class ReverseAdjacency implements Adjacency {
+		@Override
+		public int degree(int node) {
+			return inDegrees[node];
+		}
+		
+		@Override
+		public int neighbor(int node, int position) {
+			return inEdges[node][position];
+		}
+	}
+}
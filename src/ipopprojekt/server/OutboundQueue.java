@@ -0,0 +1,295 @@
+package ipopprojekt.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ipopprojekt.messages.MessageId;
+
+/**
+ * The messages waiting to be written to a client, so that the server never waits for a slow client.
+ * Neighbor changes that are waiting are merged into one message with the neighbors to add and one with the neighbors to remove,
+ * where a neighbor that is both added and removed is left out. Other messages keep their order relative to the neighbor changes.
+ * The queue is bounded: a client whose messages wait too long or take up too much memory is too slow, and should be disconnected.
+ */
+public class OutboundQueue {
+	/**
+	 * The default largest number of bytes waiting to be written
+	 */
+	public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+	
+	/**
+	 * The default longest time in milliseconds the oldest message can wait to be written
+	 */
+	public static final long DEFAULT_MAX_DELAY = 10 * 1000;
+	
+	private final int maxBytes;
+	private final long maxDelay;
+	
+	private final List<byte[]> messages = new ArrayList<>();
+	
+	//The number of links added to each neighbor since the last message, negative if removed
+	private final Map<Integer, NeighborChange> neighborChanges = new LinkedHashMap<>();
+	
+	private int numBytes = 0;
+	private int numNeighborBytes = 0;
+	private long oldest = 0;
+	private boolean closed = false;
+	
+	/**
+	 * Creates a new queue with the default bounds
+	 */
+	public OutboundQueue() {
+		this(DEFAULT_MAX_BYTES, DEFAULT_MAX_DELAY);
+	}
+	
+	/**
+	 * Creates a new queue
+	 * @param maxBytes The largest number of bytes waiting to be written
+	 * @param maxDelay The longest time in milliseconds the oldest message can wait to be written
+	 */
+	public OutboundQueue(int maxBytes, long maxDelay) {
+		this.maxBytes = maxBytes;
+		this.maxDelay = maxDelay;
+	}
+	
+	/**
+	 * Adds the given message
+	 * @param message The encoded message, including its id
+	 * @param now The current time in milliseconds
+	 * @return False if the client is too slow, in which case the message is not added. Messages to a closed queue are dropped.
+	 */
+	public synchronized boolean add(byte[] message, long now) {
+		if (this.closed) {
+			return true;
+		}
+		
+		if (!this.accept(message.length, now)) {
+			return false;
+		}
+		
+		this.sealNeighborChanges();
+		this.messages.add(message);
+		this.numBytes += message.length;
+		this.notifyAll();
+		return true;
+	}
+	
+	/**
+	 * Adds a link to the given neighbor
+	 * @param neighborId The id of the neighbor
+	 * @param ip The IP of the neighbor
+	 * @param port The port of the neighbor
+	 * @param now The current time in milliseconds
+	 * @return False if the client is too slow, in which case the change is not added
+	 */
+	public synchronized boolean addNeighbor(int neighborId, String ip, int port, long now) {
+		return this.changeNeighbor(neighborId, ip, port, 1, 4 + 2 + ip.length() + 4, now);
+	}
+	
+	/**
+	 * Removes a link to the given neighbor
+	 * @param neighborId The id of the neighbor
+	 * @param now The current time in milliseconds
+	 * @return False if the client is too slow, in which case the change is not added
+	 */
+	public synchronized boolean removeNeighbor(int neighborId, long now) {
+		return this.changeNeighbor(neighborId, null, 0, -1, 4, now);
+	}
+	
+	/**
+	 * Changes the number of links to the given neighbor
+	 * @param neighborId The id of the neighbor
+	 * @param ip The IP of the neighbor, or null if a link is removed
+	 * @param port The port of the neighbor
+	 * @param numLinks The number of links to add, negative to remove
+	 * @param size The number of bytes the change takes up at most
+	 * @param now The current time in milliseconds
+	 * @return False if the client is too slow
+	 */
+	private boolean changeNeighbor(int neighborId, String ip, int port, int numLinks, int size, long now) {
+		if (this.closed) {
+			return true;
+		}
+		
+		if (!this.accept(size, now)) {
+			return false;
+		}
+		
+		NeighborChange change = this.neighborChanges.get(neighborId);
+		if (change == null) {
+			change = new NeighborChange();
+			this.neighborChanges.put(neighborId, change);
+		}
+		
+		if (ip != null) {
+			change.ip = ip;
+			change.port = port;
+		}
+		
+		change.numLinks += numLinks;
+		this.numBytes += size;
+		this.numNeighborBytes += size;
+		this.notifyAll();
+		return true;
+	}
+	
+	/**
+	 * Checks if the given number of bytes can be added, and if the queue was empty starts measuring how long it waits
+	 * @param size The number of bytes
+	 * @param now The current time in milliseconds
+	 * @return False if the client is too slow
+	 */
+	private boolean accept(int size, long now) {
+		if (this.isEmpty()) {
+			this.oldest = now;
+			return size <= this.maxBytes;
+		}
+		
+		return this.numBytes + size <= this.maxBytes && now - this.oldest <= this.maxDelay;
+	}
+	
+	/**
+	 * Encodes the waiting neighbor changes as messages
+	 */
+	private void sealNeighborChanges() {
+		if (this.neighborChanges.isEmpty()) {
+			return;
+		}
+		
+		try {
+			ByteArrayOutputStream added = new ByteArrayOutputStream();
+			ByteArrayOutputStream removed = new ByteArrayOutputStream();
+			DataOutputStream addedStream = new DataOutputStream(added);
+			DataOutputStream removedStream = new DataOutputStream(removed);
+			int numAdded = 0;
+			int numRemoved = 0;
+			
+			//A neighbor is listed once for each link
+			for (Map.Entry<Integer, NeighborChange> entry : this.neighborChanges.entrySet()) {
+				NeighborChange change = entry.getValue();
+				for (int i = 0; i < change.numLinks; i++) {
+					addedStream.writeInt(entry.getKey());
+					addedStream.writeUTF(change.ip);
+					addedStream.writeInt(change.port);
+					numAdded++;
+				}
+				
+				for (int i = 0; i < -change.numLinks; i++) {
+					removedStream.writeInt(entry.getKey());
+					numRemoved++;
+				}
+			}
+			
+			this.numBytes -= this.numNeighborBytes;
+			this.numNeighborBytes = 0;
+			this.neighborChanges.clear();
+			
+			if (numAdded > 0) {
+				this.addSealed(MessageId.ADD_NEIGHBORS, numAdded, added);
+			}
+			
+			if (numRemoved > 0) {
+				this.addSealed(MessageId.REMOVE_NEIGHBORS, numRemoved, removed);
+			}
+		} catch (IOException e) {
+			//Cannot happen when writing to memory
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Adds a message with a list of neighbors
+	 * @param id The id of the message
+	 * @param numNeighbors The number of neighbors in the list
+	 * @param neighbors The encoded neighbors
+	 */
+	private void addSealed(MessageId id, int numNeighbors, ByteArrayOutputStream neighbors) throws IOException {
+		ByteArrayOutputStream message = new ByteArrayOutputStream(1 + 4 + neighbors.size());
+		DataOutputStream stream = new DataOutputStream(message);
+		stream.writeByte(id.getId());
+		stream.writeInt(numNeighbors);
+		neighbors.writeTo(stream);
+		stream.flush();
+		
+		this.messages.add(message.toByteArray());
+		this.numBytes += message.size();
+	}
+	
+	/**
+	 * Removes all waiting messages
+	 * @return The messages joined together, or null if there are none
+	 */
+	public synchronized byte[] drain() {
+		this.sealNeighborChanges();
+		if (this.messages.isEmpty()) {
+			return null;
+		}
+		
+		byte[] data = new byte[this.numBytes];
+		int position = 0;
+		for (byte[] message : this.messages) {
+			System.arraycopy(message, 0, data, position, message.length);
+			position += message.length;
+		}
+		
+		this.messages.clear();
+		this.numBytes = 0;
+		return data;
+	}
+	
+	/**
+	 * Waits until there are messages, and removes them
+	 * @return The messages joined together, or null if the queue has been closed
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public synchronized byte[] take() throws InterruptedException {
+		while (this.isEmpty() && !this.closed) {
+			this.wait();
+		}
+		
+		return this.closed ? null : this.drain();
+	}
+	
+	/**
+	 * Indicates if no messages are waiting
+	 */
+	public synchronized boolean isEmpty() {
+		return this.messages.isEmpty() && this.neighborChanges.isEmpty();
+	}
+	
+	/**
+	 * Returns the number of bytes waiting to be written
+	 */
+	public synchronized int numBytes() {
+		return this.numBytes;
+	}
+	
+	/**
+	 * Closes the queue, dropping the waiting messages. Messages added afterwards are dropped as well.
+	 * @return True if the queue was open
+	 */
+	public synchronized boolean close() {
+		boolean wasOpen = !this.closed;
+		this.closed = true;
+		this.messages.clear();
+		this.neighborChanges.clear();
+		this.numBytes = 0;
+		this.numNeighborBytes = 0;
+		this.notifyAll();
+		return wasOpen;
+	}
+	
+	/**
+	 * The change in the links to a neighbor
+	 */
+	private static class NeighborChange {
+		public String ip;
+		public int port;
+		public int numLinks = 0;
+	}
+}
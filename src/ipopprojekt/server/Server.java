@@ -1,12 +1,17 @@
 package ipopprojekt.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import ipopprojekt.messages.MessageId;
+import ipopprojekt.util.ExecutionBackend;
 
 /**
  * The central server that handles all connections
@@ -14,7 +19,13 @@ import ipopprojekt.messages.MessageId;
  */
 public class Server implements Runnable {
 	private final int port;
+	private final TransportMode transportMode;
+	private final ExecutionBackend executionBackend;
 	private ServerSocket serverSocket;
+	private ServerSocketChannel serverChannel;
+	
+	private final ServerEventLoop[] eventLoops;
+	private int nextEventLoop = 0;
 	
 	private int nextID = 0;
 	
@@ -27,10 +38,30 @@ public class Server implements Runnable {
 	 * @param port The port
 	 */
 	public Server(int port) {
+		this(port, TransportMode.BLOCKING, 0, ExecutionBackend.fromSystemProperty());
+	}
+	
+	/**
+	 * Creates a new server that listens on the given port
+	 * @param port The port
+	 * @param transportMode How the connections to the clients are handled
+	 * @param numEventLoops The number of event loops used by the NIO transport
+	 * @param executionBackend How the accept loop and the blocking client loops are executed
+	 * @throws IllegalArgumentException If the blocking transport is used with a bounded number of threads
+	 */
+	public Server(int port, TransportMode transportMode, int numEventLoops, ExecutionBackend executionBackend) {
+		//Each blocking client holds two threads for as long as it is connected, so a bounded pool would stop accepting clients once full
+		if (transportMode == TransportMode.BLOCKING && executionBackend.isBounded()) {
+			throw new IllegalArgumentException("The blocking transport needs two threads per client and can not use a bounded pool, use the nio transport instead");
+		}
+		
 		this.port = port;
-		this.chatRooms = new ArrayList<>();
+		this.transportMode = transportMode;
+		this.executionBackend = executionBackend;
+		this.eventLoops = new ServerEventLoop[transportMode == TransportMode.NIO ? Math.max(1, numEventLoops) : 0];
+		this.chatRooms = new CopyOnWriteArrayList<>();
 	}
-
+	
 	/**
 	 * Indicates if the server is running
 	 */
@@ -43,8 +74,13 @@ public class Server implements Runnable {
 		while (this.isRunning) {
 			try	{
 				// Waits for an client to connect
-				Socket clientSocket = this.serverSocket.accept();
-				this.addClient(clientSocket);
+				if (this.transportMode == TransportMode.NIO) {
+					SocketChannel clientChannel = this.serverChannel.accept();
+					this.addClient(clientChannel);
+				} else {
+					Socket clientSocket = this.serverSocket.accept();
+					this.addClient(clientSocket);
+				}
 			} catch (IOException e) {
 				//When we close the server, the serverSocket.accept() throws an exception, 
 				// so ignore this exception if the server isn't running
@@ -64,15 +100,28 @@ public class Server implements Runnable {
 			try	{
 				System.out.println("Starting server at port: " + port + "...");
 				
-				this.serverSocket = new ServerSocket(this.port);
+				if (this.transportMode == TransportMode.NIO) {
+					//The accepting is done using blocking IO, only the clients are non-blocking
+					this.serverChannel = ServerSocketChannel.open();
+					this.serverChannel.bind(new InetSocketAddress(this.port));
+					this.serverSocket = this.serverChannel.socket();
+					
+					for (int i = 0; i < this.eventLoops.length; i++) {
+						this.eventLoops[i] = new ServerEventLoop();
+						Thread eventLoopThread = new Thread(this.eventLoops[i], "event-loop-" + i);
+						eventLoopThread.start();
+					}
+				} else {
+					this.serverSocket = new ServerSocket(this.port);
+				}
 				
 				System.out.println("Server started: " + this.serverSocket.getLocalSocketAddress());
 				System.out.println("Waiting for clients...");
 				
-				Thread clientConnectionThread = new Thread(this);
-				clientConnectionThread.start();
-				
+				//Must be set before the accept thread starts, otherwise it could exit directly
 				this.isRunning = true;
+				
+				this.executionBackend.execute(this, "server-accept");
 			} catch (IOException e) {
 				System.err.println("Server start error: " + e);
 			}
@@ -91,14 +140,18 @@ public class Server implements Runnable {
 			try {
 				this.serverSocket.close();
 				
-				synchronized (this.chatRooms) {
-					//Close the connection to all sockets
-					for (ChatRoom room : chatRooms) {
-						room.close();
+				for (ServerEventLoop eventLoop : this.eventLoops) {
+					if (eventLoop != null) {
+						eventLoop.stop();
 					}
 				}
-			} catch (IOException e) {
 				
+				//Close the connection to all sockets
+				for (ChatRoom room : chatRooms) {
+					room.close();
+				}
+			} catch (IOException e) {
+			
 			} finally {
 				chatRooms.clear();
 			}
@@ -123,9 +176,9 @@ public class Server implements Runnable {
 			//Open the IO streams
 			newClient.open();
 			
-			//Create the client thread
-			Thread clientThread = new Thread(newClient);
-			clientThread.start();
+			//Start handling the client, and writing the messages to it
+			this.executionBackend.execute(newClient, "client-" + newClient.getId());
+			this.executionBackend.execute(newClient::writeLoop, "client-writer-" + newClient.getId());
 			
 			//Send the id to the client
 			this.sendClientId(newClient);
@@ -140,21 +193,48 @@ public class Server implements Runnable {
 	}
 	
 	/**
-	 * Removes the given client from the list of clients
+	 * Adds an new client that uses non-blocking IO
+	 * @param clientChannel The channel for the client
+	 */
+	public void addClient(SocketChannel clientChannel) {
+		Client newClient = new Client(clientChannel, this, nextID++);
+		
+		try	{
+			clientChannel.configureBlocking(false);
+			clientChannel.socket().setTcpNoDelay(true);
+			
+			//Distribute the clients evenly among the event loops
+			ServerEventLoop eventLoop = this.eventLoops[this.nextEventLoop];
+			this.nextEventLoop = (this.nextEventLoop + 1) % this.eventLoops.length;
+			
+			newClient.open(eventLoop);
+			
+			//The messages are queued until the client has been registered
+			this.sendClientId(newClient);
+			this.sendRooms(newClient);
+			eventLoop.register(newClient);
+			
+			System.out.println("Client accepted: " + clientChannel.getRemoteAddress());
+		} catch(IOException e) {
+			System.err.println("Error opening client: " + e);
+			newClient.close();
+		}
+	}
+	
+	/**
+	 * Removes the given client from its room. The room removes the client on its own thread.
 	 * @param client The client
-	 * @return True if the client was removed else false
+	 * @return True if the client was in a room else false
 	 */
 	public boolean removeClient(Client client) {
 		if (client == null) {
 			return false;
 		}
 		
-		synchronized (this.chatRooms) {
-			ChatRoom room = findRoom(client);
-			
-			if (room != null) {
-				return room.removeClient(client);
-			}
+		ChatRoom room = client.getRoom();
+		if (room != null) {
+			room.removeClient(client);
+			return true;
 		}
 		
 		return false;
@@ -165,13 +245,7 @@ public class Server implements Runnable {
 	 * @param client The client
 	 */
 	private void sendClientId(Client client) {
-		try {
-			client.getOutputStream().writeByte(MessageId.SET_USER_ID.getId());
-			client.getOutputStream().writeInt(client.getId());
-			client.getOutputStream().flush();
-		} catch (IOException e) {
-			System.err.println("Could not send client id: " + e);
-		}
+		client.send(encodeInt(MessageId.SET_USER_ID, client.getId()));
 	}
 	
 	/**
@@ -179,13 +253,16 @@ public class Server implements Runnable {
 	 * @param client The client
 	 */
 	private void sendRooms(Client client) {
-		try {
-			client.getOutputStream().writeByte(MessageId.SET_NUMBER_OF_ROOMS.getId());
-			client.getOutputStream().writeInt(chatRooms.size());
-			client.getOutputStream().flush();
-		} catch (IOException e) {
-			System.err.println("Could not send rooms: " + e);
-		}
+		client.send(encodeInt(MessageId.SET_NUMBER_OF_ROOMS, chatRooms.size()));
+	}
+	
+	/**
+	 * Encodes a message that holds a single int
+	 * @param id The id of the message
+	 * @param value The value
+	 */
+	private static byte[] encodeInt(MessageId id, int value) {
+		return ByteBuffer.allocate(5).put(id.getId()).putInt(value).array();
 	}
 	
 	/**
@@ -194,36 +271,35 @@ public class Server implements Runnable {
 	 * @param chatRoom The chat room to join.
 	 */
 	public void clientConnected(Client client, int chatRoom) {
-		synchronized (chatRooms) {
-			if (chatRoom > 0 && chatRoom <= chatRooms.size()) {
-				ChatRoom room = chatRooms.get(chatRoom - 1);
-				room.addClient(client);
-			} else {
-				System.err.println("Invalid room: " + chatRoom);
-				
-				client.close();
-			}
+		//A client can only join one room
+		if (chatRoom > 0 && chatRoom <= chatRooms.size() && client.getRoom() == null) {
+			ChatRoom room = chatRooms.get(chatRoom - 1);
+			client.setRoom(room);
+			room.addClient(client);
+		} else {
+			System.err.println("Invalid room: " + chatRoom);
+			
+			client.close();
 		}
 	}
 	
 	/**
-	 * Finds what room a client is in.
-	 * 
+	 * Handles that the given client has reported the round trip times to some of its peers
 	 * @param client The client
-	 * @return The room the client is in.
+	 * @param peerIds The ids of the peers
+	 * @param roundTripTimes The round trip times in microseconds
 	 */
-	private ChatRoom findRoom(Client client) {
-		for (ChatRoom room : chatRooms) {
-			if (room.inRoom(client)) {
-				return room;
-			}
+	public void latencyReported(Client client, int[] peerIds, int[] roundTripTimes) {
+		ChatRoom room = client.getRoom();
+		if (room != null) {
+			room.latencyReported(client, peerIds, roundTripTimes);
 		}
-		
-		return null;
 	}
 	
 	public static void main(String[] args) {
 		int port = 4711;
+		TransportMode transportMode = TransportMode.BLOCKING;
+		int numEventLoops = Runtime.getRuntime().availableProcessors();
 		
 		if (args.length > 0) {
 			try {
@@ -234,7 +310,31 @@ public class Server implements Runnable {
 			}
 		}
 		
-		Server server = new Server(port);
+		if (args.length > 1) {
+			transportMode = TransportMode.fromName(args[1]);
+			
+			if (transportMode == null) {
+				System.out.println("Invalid transport mode, valid modes are: blocking, nio");
+				return;
+			}
+		}
+		
+		if (args.length > 2) {
+			try {
+				numEventLoops = Integer.parseInt(args[2]);
+			} catch (NumberFormatException e) {
+				System.out.println("Invalid number of event loops");
+				return;
+			}
+		}
+		
+		Server server;
+		try {
+			server = new Server(port, transportMode, numEventLoops, ExecutionBackend.fromSystemProperty());
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			return;
+		}
 		
 		server.addRoom();
 		server.addRoom();
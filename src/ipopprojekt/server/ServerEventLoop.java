@@ -0,0 +1,168 @@
+package ipopprojekt.server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An event loop that handles the IO of non-blocking clients using a selector
+ */
+public class ServerEventLoop implements Runnable {
+	private final Selector selector;
+	private final Queue<Client> pendingRegistrations = new ConcurrentLinkedQueue<>();
+	private final Queue<Client> pendingWrites = new ConcurrentLinkedQueue<>();
+	private final Queue<Client> pendingDisconnects = new ConcurrentLinkedQueue<>();
+	private volatile boolean isRunning = true;
+	
+	/**
+	 * Creates a new event loop
+	 * @throws IOException If the selector could not be opened
+	 */
+	public ServerEventLoop() throws IOException {
+		this.selector = Selector.open();
+	}
+	
+	/**
+	 * Registers the given client at the event loop
+	 * @param client The client
+	 */
+	public void register(Client client) {
+		this.pendingRegistrations.add(client);
+		this.selector.wakeup();
+	}
+	
+	/**
+	 * Marks that the given client has data that needs to be written
+	 * @param client The client
+	 */
+	public void requestWrite(Client client) {
+		this.pendingWrites.add(client);
+		this.selector.wakeup();
+	}
+	
+	/**
+	 * Marks that the given client should be removed from the server and closed
+	 * @param client The client
+	 */
+	public void requestDisconnect(Client client) {
+		this.pendingDisconnects.add(client);
+		this.selector.wakeup();
+	}
+	
+	/**
+	 * Returns the number of clients handled by the event loop
+	 */
+	public int numClients() {
+		return this.selector.keys().size();
+	}
+	
+	@Override
+	public void run() {
+		while (this.isRunning) {
+			try {
+				this.selector.select();
+			} catch (IOException e) {
+				System.err.println("Event loop select error: " + e);
+				break;
+			}
+			
+			this.registerPending();
+			this.updateWriteInterest();
+			this.disconnectPending();
+			
+			Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				
+				Client client = (Client)key.attachment();
+				
+				try {
+					if (key.isValid() && key.isReadable()) {
+						client.readable();
+					}
+					
+					if (key.isValid() && key.isWritable()) {
+						client.writable();
+					}
+				} catch (CancelledKeyException e) {
+					//The client was closed while handling the key
+				} catch (RuntimeException e) {
+					//A failing client must not stop the loop for the other clients
+					System.err.println("Client error: " + e);
+					client.disconnect();
+				}
+			}
+		}
+		
+		this.closeSelector();
+	}
+	
+	/**
+	 * Registers the clients that are waiting to be registered
+	 */
+	private void registerPending() {
+		Client client;
+		while ((client = this.pendingRegistrations.poll()) != null) {
+			try {
+				int interest = SelectionKey.OP_READ;
+				if (client.hasPendingWrites()) {
+					interest |= SelectionKey.OP_WRITE;
+				}
+				
+				client.registered(client.getChannel().register(this.selector, interest, client));
+			} catch (ClosedChannelException e) {
+				//The client disconnected before it was registered
+			}
+		}
+	}
+	
+	/**
+	 * Enables write interest for the clients that have data to write
+	 */
+	private void updateWriteInterest() {
+		Client client;
+		while ((client = this.pendingWrites.poll()) != null) {
+			SelectionKey key = client.getChannel().keyFor(this.selector);
+			
+			//Clients that are not registered yet gets their interest set when registered
+			if (key != null && key.isValid()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			}
+		}
+	}
+	
+	/**
+	 * Disconnects the clients that are waiting to be disconnected
+	 */
+	private void disconnectPending() {
+		Client client;
+		while ((client = this.pendingDisconnects.poll()) != null) {
+			client.disconnect();
+		}
+	}
+	
+	/**
+	 * Closes the selector
+	 */
+	private void closeSelector() {
+		try {
+			this.selector.close();
+		} catch (IOException e) {
+			System.err.println("Could not close selector: " + e);
+		}
+	}
+	
+	/**
+	 * Stops the event loop
+	 */
+	public void stop() {
+		this.isRunning = false;
+		this.selector.wakeup();
+	}
+}
@@ -0,0 +1,59 @@
+package ipopprojekt.server;
+
+/**
+ * Decides the number of neighbors each client in a chat network should have
+ */
+public interface TopologyPolicy {
+	/**
+	 * The system property used to set a fixed degree for the chat rooms
+	 */
+	public static final String DEGREE_PROPERTY = "ipopprojekt.degree";
+	
+	/**
+	 * Returns the number of neighbors each client should have
+	 * @param numClients The number of clients in the network
+	 */
+	int targetDegree(int numClients);
+	
+	/**
+	 * Returns a policy where each client has the given number of neighbors
+	 * @param degree The number of neighbors
+	 */
+	public static TopologyPolicy fixed(int degree) {
+		if (degree < 1) {
+			throw new IllegalArgumentException("The degree must be at least 1");
+		}
+		
+		return numClients -> degree;
+	}
+	
+	/**
+	 * Returns a policy where the number of neighbors grows with the logarithm of the size of the network,
+	 * which keeps the diameter of the network logarithmic as it grows
+	 * @param minDegree The minimum number of neighbors
+	 * @param maxDegree The maximum number of neighbors
+	 */
+	public static TopologyPolicy logarithmic(int minDegree, int maxDegree) {
+		if (minDegree < 1 || maxDegree < minDegree) {
+			throw new IllegalArgumentException("Invalid degree range");
+		}
+		
+		return numClients -> {
+			int log = 32 - Integer.numberOfLeadingZeros(Math.max(numClients, 1));
+			return Math.max(minDegree, Math.min(maxDegree, log));
+		};
+	}
+	
+	/**
+	 * Returns a fixed policy if the degree system property is set, else a logarithmic policy
+	 */
+	public static TopologyPolicy fromSystemProperty() {
+		Integer degree = Integer.getInteger(DEGREE_PROPERTY);
+		
+		if (degree != null && degree >= 1) {
+			return fixed(degree);
+		}
+		
+		return logarithmic(2, 16);
+	}
+}
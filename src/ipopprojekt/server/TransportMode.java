@@ -0,0 +1,31 @@
+package ipopprojekt.server;
+
+/**
+ * The ways the server can handle the connections to the clients
+ */
+public enum TransportMode {
+	/**
+	 * Each client is handled by its own thread using blocking IO
+	 */
+	BLOCKING,
+	
+	/**
+	 * The clients are handled by a few event loops using non-blocking IO
+	 */
+	NIO;
+	
+	/**
+	 * Returns the transport mode with the given name
+	 * @param name The name of the mode
+	 * @return The mode or null
+	 */
+	public static TransportMode fromName(String name) {
+		for (TransportMode mode : values()) {
+			if (mode.name().equalsIgnoreCase(name)) {
+				return mode;
+			}
+		}
+		
+		return null;
+	}
+}
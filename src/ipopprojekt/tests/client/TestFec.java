@@ -0,0 +1,103 @@
+package ipopprojekt.tests.client;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import ipopprojekt.client.FecDecoder;
+import ipopprojekt.client.FecEncoder;
+import ipopprojekt.messages.DatagramType;
+
+import org.junit.Test;
+
+/**
+ * Tests the FecEncoder and the FecDecoder
+ */
+public class TestFec {
+	/**
+	 * Encodes the given datagrams as one block
+	 * @param encoder The encoder
+	 * @param datagrams The datagrams
+	 * @return The encoded datagrams followed by the parity
+	 */
+	private static List<ByteBuffer> encodeBlock(FecEncoder encoder, byte[]... datagrams) {
+		List<ByteBuffer> encoded = new ArrayList<>();
+		for (byte[] datagram : datagrams) {
+			ByteBuffer out = ByteBuffer.allocate(1024);
+			encoder.encode(ByteBuffer.wrap(datagram), out);
+			out.flip();
+			encoded.add(out);
+		}
+		
+		ByteBuffer parity = ByteBuffer.allocate(1024);
+		encoder.writeParity(parity);
+		parity.flip();
+		encoded.add(parity);
+		return encoded;
+	}
+	
+	/**
+	 * Passes the given encoded datagram to the decoder
+	 * @param decoder The decoder
+	 * @param encoded The encoded datagram
+	 * @return The rebuilt datagram, or null
+	 */
+	private static byte[] decode(FecDecoder decoder, ByteBuffer encoded) {
+		byte type = encoded.get();
+		if (type == DatagramType.FEC_PARITY.getId()) {
+			return decoder.parityReceived(encoded);
+		}
+		
+		assertEquals(DatagramType.FEC_DATA.getId(), type);
+		int block = encoded.getInt();
+		int index = encoded.get();
+		return decoder.dataReceived(block, index, encoded);
+	}
+	
+	/**
+	 * Tests that a lost datagram of any length is rebuilt, whether the parity arrives before or after the other datagrams
+	 */
+	@Test
+	public void testRecoversOneLoss() {
+		byte[][] datagrams = { "first".getBytes(), "the second one".getBytes(), "3".getBytes() };
+		FecEncoder encoder = new FecEncoder(3, 1024);
+		
+		for (int lost = 0; lost < datagrams.length; lost++) {
+			List<ByteBuffer> encoded = encodeBlock(encoder, datagrams);
+			assertFalse(encoder.hasDatagrams());
+			
+			FecDecoder decoder = new FecDecoder();
+			assertNull(decode(decoder, encoded.get(3)));
+			
+			byte[] recovered = null;
+			for (int i = 0; i < datagrams.length; i++) {
+				if (i != lost) {
+					recovered = decode(decoder, encoded.get(i));
+				}
+			}
+			
+			assertArrayEquals(datagrams[lost], recovered);
+		}
+	}
+	
+	/**
+	 * Tests that nothing is rebuilt when two datagrams of a block are lost, or when none is
+	 */
+	@Test
+	public void testNoRecovery() {
+		FecEncoder encoder = new FecEncoder(4, 1024);
+		List<ByteBuffer> encoded = encodeBlock(encoder, "a".getBytes(), "b".getBytes(), "c".getBytes(), "d".getBytes());
+		
+		FecDecoder decoder = new FecDecoder();
+		assertNull(decode(decoder, encoded.get(0)));
+		assertNull(decode(decoder, encoded.get(1)));
+		assertNull(decode(decoder, encoded.get(4)));
+		
+		encoded = encodeBlock(encoder, "e".getBytes(), "f".getBytes());
+		assertNull(decode(decoder, encoded.get(0)));
+		assertNull(decode(decoder, encoded.get(1)));
+		assertNull(decode(decoder, encoded.get(2)));
+	}
+}
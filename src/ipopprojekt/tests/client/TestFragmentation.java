@@ -0,0 +1,112 @@
+package ipopprojekt.tests.client;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import ipopprojekt.client.InMemoryNetwork;
+import ipopprojekt.client.P2PClient;
+import ipopprojekt.util.ExecutionBackend;
+
+import org.junit.Test;
+
+/**
+ * Tests sending messages larger than a datagram, with clients connected through an in-memory network that loses datagrams
+ */
+public class TestFragmentation {
+	private static final int NUM_CLIENTS = 4;
+	private static final long TIMEOUT_MS = 10000;
+	
+	private final InMemoryNetwork network = new InMemoryNetwork(4711);
+	private final P2PClient[] clients = new P2PClient[NUM_CLIENTS];
+	private final List<List<String>> received = new CopyOnWriteArrayList<>();
+	
+	/**
+	 * Returns the address of the given client
+	 * @param clientId The id of the client
+	 */
+	private static InetSocketAddress address(int clientId) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), 42000 + clientId);
+	}
+	
+	/**
+	 * Creates the clients connected in a line
+	 */
+	private void createLine() {
+		for (int i = 0; i < NUM_CLIENTS; i++) {
+			List<String> messages = new CopyOnWriteArrayList<>();
+			this.received.add(messages);
+			this.clients[i] = new P2PClient(
+				this.network.bind(address(i)),
+				i,
+				"Client " + i,
+				message -> messages.add(message.getMessage()),
+				ExecutionBackend.PLATFORM_THREADS);
+		}
+		
+		for (int i = 1; i < NUM_CLIENTS; i++) {
+			this.clients[i - 1].addNeighbor(i, address(i));
+			this.clients[i].addNeighbor(i - 1, address(i - 1));
+		}
+	}
+	
+	/**
+	 * Waits until all clients except the writer have received the given number of messages
+	 * @param numMessages The number of messages
+	 */
+	private void waitForMessages(int numMessages) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		for (int i = 1; i < NUM_CLIENTS; i++) {
+			while (this.received.get(i).size() < numMessages) {
+				assertTrue(
+					"Client " + i + " got " + this.received.get(i).size() + " messages",
+					System.currentTimeMillis() < deadline);
+				Thread.sleep(1);
+			}
+		}
+	}
+	
+	/**
+	 * Tests that a message of several hundred kilobytes arrives intact although a tenth of the datagrams are lost
+	 */
+	@Test
+	public void testLargeMessage() throws InterruptedException {
+		this.createLine();
+		
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200000; i++) {
+			text.append(i % 100 == 0 ? '\n' : (char)('a' + i % 26));
+		}
+		
+		try {
+			this.clients[0].send("First message");
+			this.waitForMessages(1);
+			
+			this.network.setLossRate(0.1);
+			this.clients[0].send(text.toString());
+			
+			//The last message reveals the fragments lost at the end
+			Thread.sleep(200);
+			this.network.setLossRate(0);
+			this.clients[0].send("Last message");
+			
+			this.waitForMessages(3);
+			
+			//The large message can be complete after the last message, as its lost fragments are repaired
+			for (int i = 1; i < NUM_CLIENTS; i++) {
+				assertTrue(this.received.get(i).contains(text.toString()));
+				assertTrue(this.received.get(i).contains("Last message"));
+				assertEquals(0, this.clients[i].getMetrics().getNumIncomplete());
+			}
+		} finally {
+			for (P2PClient client : this.clients) {
+				if (client != null) {
+					client.close();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package ipopprojekt.tests.client;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import ipopprojekt.client.InMemoryNetwork;
+import ipopprojekt.client.P2PClient;
+import ipopprojekt.util.ExecutionBackend;
+
+import org.junit.Test;
+
+/**
+ * Tests the GapRepair, with clients connected through an in-memory network that loses datagrams
+ */
+public class TestGapRepair {
+	private static final int NUM_CLIENTS = 6;
+	private static final long TIMEOUT_MS = 10000;
+	
+	private final InMemoryNetwork network = new InMemoryNetwork(1337);
+	private final P2PClient[] clients = new P2PClient[NUM_CLIENTS];
+	private final AtomicIntegerArray numReceived = new AtomicIntegerArray(NUM_CLIENTS);
+	
+	/**
+	 * Returns the address of the given client
+	 * @param clientId The id of the client
+	 */
+	private static InetSocketAddress address(int clientId) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), 41000 + clientId);
+	}
+	
+	/**
+	 * Creates the clients connected in a line, so each message has only one path and every lost datagram loses messages
+	 */
+	private void createLine() {
+		for (int i = 0; i < NUM_CLIENTS; i++) {
+			int clientId = i;
+			this.clients[i] = new P2PClient(
+				this.network.bind(address(i)),
+				i,
+				"Client " + i,
+				message -> this.numReceived.incrementAndGet(clientId),
+				ExecutionBackend.PLATFORM_THREADS);
+		}
+		
+		for (int i = 1; i < NUM_CLIENTS; i++) {
+			this.clients[i - 1].addNeighbor(i, address(i));
+			this.clients[i].addNeighbor(i - 1, address(i - 1));
+		}
+	}
+	
+	/**
+	 * Waits until all clients except the writer have received the given number of messages
+	 * @param numMessages The number of messages
+	 */
+	private void waitForMessages(int numMessages) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		for (int i = 1; i < NUM_CLIENTS; i++) {
+			while (this.numReceived.get(i) < numMessages) {
+				assertTrue(
+					"Client " + i + " got " + this.numReceived.get(i) + " messages",
+					System.currentTimeMillis() < deadline);
+				Thread.sleep(1);
+			}
+		}
+	}
+	
+	/**
+	 * Closes the clients
+	 */
+	private void closeClients() {
+		for (P2PClient client : this.clients) {
+			if (client != null) {
+				client.close();
+			}
+		}
+	}
+	
+	/**
+	 * Tests that all messages arrive although a tenth of the datagrams are lost
+	 */
+	@Test
+	public void testRepairsLostMessages() throws InterruptedException {
+		this.createLine();
+		
+		try {
+			//Messages sent before the first one a client gets from a writer are not asked for
+			this.clients[0].send("First message");
+			this.waitForMessages(1);
+			
+			int numMessages = 300;
+			this.network.setLossRate(0.1);
+			
+			for (int i = 0; i < numMessages; i++) {
+				this.clients[0].send("Message " + i);
+				Thread.sleep(1);
+			}
+			
+			//The last message reveals the messages lost at the end
+			Thread.sleep(200);
+			this.network.setLossRate(0);
+			this.clients[0].send("Last message");
+			
+			this.waitForMessages(numMessages + 2);
+			
+			long numRequested = 0;
+			for (P2PClient client : this.clients) {
+				numRequested += client.getMetrics().getNumRequested();
+			}
+			
+			assertTrue(numRequested > 0);
+			
+			//Nothing is delivered twice
+			Thread.sleep(200);
+			for (int i = 1; i < NUM_CLIENTS; i++) {
+				assertEquals(numMessages + 2, this.numReceived.get(i));
+			}
+		} finally {
+			this.closeClients();
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package ipopprojekt.tests.client;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ipopprojekt.client.DatagramTransport;
+import ipopprojekt.client.GapRepair;
+import ipopprojekt.client.InMemoryNetwork;
+import ipopprojekt.client.P2PClient;
+import ipopprojekt.client.P2PMessageHandler;
+import ipopprojekt.messages.DatagramType;
+import ipopprojekt.util.ExecutionBackend;
+
+import org.junit.Test;
+
+/**
+ * Tests how the P2PClient handles datagrams from the network
+ */
+public class TestP2PClient {
+	private static final long TIMEOUT_MS = 10000;
+	
+	private final InMemoryNetwork network = new InMemoryNetwork(1337);
+	
+	/**
+	 * Returns the address of the given client
+	 * @param clientId The id of the client
+	 */
+	private static InetSocketAddress address(int clientId) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), 43000 + clientId);
+	}
+	
+	/**
+	 * Waits until the given counter has reached the given value
+	 * @param counter The counter
+	 * @param value The value
+	 */
+	private static void waitFor(AtomicInteger counter, int value) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (counter.get() < value) {
+			assertTrue("Got " + counter.get() + " messages", System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+	}
+	
+	/**
+	 * Sends a ping from the given transport to the given client and waits for the pong.
+	 * As the client handles its datagrams in order, the datagrams sent before the ping have then been handled.
+	 * @param transport The transport
+	 * @param address The address of the client
+	 * @return The number of other datagrams received before the pong
+	 */
+	private static int ping(DatagramTransport transport, InetSocketAddress address) throws Exception {
+		ByteBuffer ping = ByteBuffer.allocate(9);
+		ping.put(DatagramType.PING.getId());
+		ping.putLong(0);
+		ping.flip();
+		transport.send(ping, address);
+		
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		int numReceived = -1;
+		do {
+			buffer.clear();
+			transport.receive(buffer);
+			numReceived++;
+		} while (buffer.get(0) != DatagramType.PONG.getId());
+		
+		return numReceived;
+	}
+	
+	/**
+	 * Sends a NACK for the given messages of the given writer
+	 * @param transport The transport to send from
+	 * @param address The address of the writer
+	 * @param writerId The id of the writer
+	 * @param numMessages The number of messages, starting from the first
+	 */
+	private static void sendNack(DatagramTransport transport, InetSocketAddress address, int writerId, int numMessages) throws Exception {
+		ByteBuffer nack = ByteBuffer.allocate(1 + 8 * numMessages);
+		nack.put(DatagramType.NACK.getId());
+		for (int i = 0; i < numMessages; i++) {
+			nack.putLong(P2PMessageHandler.messageId(writerId, i));
+		}
+		
+		nack.flip();
+		transport.send(nack, address);
+	}
+	
+	/**
+	 * Tests that a NACK from an address that is not a neighbor is not answered
+	 */
+	@Test
+	public void testNackFromStranger() throws Exception {
+		DatagramTransport neighbor = this.network.bind(address(0));
+		P2PClient writer = new P2PClient(
+			this.network.bind(address(1)),
+			1,
+			"Writer",
+			message -> { },
+			ExecutionBackend.PLATFORM_THREADS);
+		DatagramTransport stranger = this.network.bind(address(2));
+		
+		try {
+			writer.addNeighbor(0, address(0));
+			writer.send("Hello");
+			
+			sendNack(stranger, address(1), 1, 1);
+			ping(stranger, address(1));
+			assertEquals(0, writer.getMetrics().getNumRetransmitted());
+		} finally {
+			stranger.close();
+			writer.close();
+			neighbor.close();
+		}
+	}
+	
+	/**
+	 * Tests that a graft from an address that is not a neighbor is not answered
+	 */
+	@Test
+	public void testGraftFromStranger() throws Exception {
+		DatagramTransport neighbor = this.network.bind(address(0));
+		P2PClient writer = new P2PClient(
+			this.network.bind(address(1)),
+			1,
+			"Writer",
+			message -> { },
+			ExecutionBackend.PLATFORM_THREADS);
+		DatagramTransport stranger = this.network.bind(address(2));
+		
+		try {
+			writer.addNeighbor(0, address(0));
+			writer.send("Hello");
+			
+			ByteBuffer graft = ByteBuffer.allocate(9);
+			graft.put(DatagramType.GRAFT.getId());
+			graft.putLong(P2PMessageHandler.messageId(1, 0));
+			graft.flip();
+			stranger.send(graft, address(1));
+			assertEquals(0, ping(stranger, address(1)));
+		} finally {
+			stranger.close();
+			writer.close();
+			neighbor.close();
+		}
+	}
+	
+	/**
+	 * Tests that a graft from a neighbor is answered like a NACK, and not again while the answer can still be queued
+	 */
+	@Test
+	public void testGraftFromNeighbor() throws Exception {
+		DatagramTransport neighbor = this.network.bind(address(0));
+		P2PClient writer = new P2PClient(
+			this.network.bind(address(1)),
+			1,
+			"Writer",
+			message -> { },
+			ExecutionBackend.PLATFORM_THREADS);
+		
+		try {
+			writer.addNeighbor(0, address(0));
+			writer.send("Hello");
+			
+			ByteBuffer graft = ByteBuffer.allocate(9);
+			graft.put(DatagramType.GRAFT.getId());
+			graft.putLong(P2PMessageHandler.messageId(1, 0));
+			for (int i = 0; i < 2; i++) {
+				graft.rewind();
+				neighbor.send(graft, address(1));
+			}
+			
+			ping(neighbor, address(1));
+			assertEquals(1, writer.getMetrics().getNumRetransmitted());
+		} finally {
+			writer.close();
+			neighbor.close();
+		}
+	}
+	
+	/**
+	 * Tests that only part of a large NACK is answered
+	 */
+	@Test
+	public void testLargeNack() throws Exception {
+		DatagramTransport neighbor = this.network.bind(address(0));
+		P2PClient writer = new P2PClient(
+			this.network.bind(address(1)),
+			1,
+			"Writer",
+			message -> { },
+			ExecutionBackend.PLATFORM_THREADS);
+		
+		try {
+			writer.addNeighbor(0, address(0));
+			for (int i = 0; i < 2 * GapRepair.MAX_NACK_SIZE; i++) {
+				writer.send("Hello " + i);
+			}
+			
+			sendNack(neighbor, address(1), 1, 2 * GapRepair.MAX_NACK_SIZE);
+			ping(neighbor, address(1));
+			assertEquals(GapRepair.MAX_NACK_SIZE, writer.getMetrics().getNumRetransmitted());
+		} finally {
+			writer.close();
+			neighbor.close();
+		}
+	}
+	
+	/**
+	 * Tests that a client relays all messages while its display is stuck, and displays them all once it continues
+	 */
+	@Test
+	public void testStuckDisplay() throws Exception {
+		int numMessages = P2PClient.DELIVERY_QUEUE_SIZE + 200;
+		CountDownLatch displaying = new CountDownLatch(1);
+		AtomicInteger numDisplayed = new AtomicInteger();
+		AtomicInteger numRelayed = new AtomicInteger();
+		P2PClient writer = new P2PClient(
+			this.network.bind(address(0)),
+			0,
+			"Writer",
+			message -> { },
+			ExecutionBackend.PLATFORM_THREADS);
+		P2PClient stuck = new P2PClient(
+			this.network.bind(address(1)),
+			1,
+			"Stuck",
+			message -> {
+				try {
+					displaying.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				
+				numDisplayed.incrementAndGet();
+			},
+			ExecutionBackend.PLATFORM_THREADS);
+		P2PClient last = new P2PClient(
+			this.network.bind(address(2)),
+			2,
+			"Last",
+			message -> numRelayed.incrementAndGet(),
+			ExecutionBackend.PLATFORM_THREADS);
+		
+		try {
+			writer.addNeighbor(1, address(1));
+			stuck.addNeighbor(0, address(0));
+			stuck.addNeighbor(2, address(2));
+			last.addNeighbor(1, address(1));
+			
+			for (int i = 0; i < numMessages; i++) {
+				writer.send("Hello " + i);
+			}
+			
+			waitFor(numRelayed, numMessages);
+			assertEquals(0, numDisplayed.get());
+			
+			displaying.countDown();
+			waitFor(numDisplayed, numMessages);
+			assertEquals(0, stuck.getMetrics().getNumDropped());
+		} finally {
+			last.close();
+			stuck.close();
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Tests that truncated datagrams are dropped without stopping the client from receiving
+	 */
+	@Test
+	public void testTruncatedDatagrams() throws Exception {
+		AtomicInteger numReceived = new AtomicInteger();
+		P2PClient receiver = new P2PClient(
+			this.network.bind(address(0)),
+			0,
+			"Receiver",
+			message -> numReceived.incrementAndGet(),
+			ExecutionBackend.PLATFORM_THREADS);
+		P2PClient writer = new P2PClient(
+			this.network.bind(address(1)),
+			1,
+			"Writer",
+			message -> { },
+			ExecutionBackend.PLATFORM_THREADS);
+		DatagramTransport attacker = this.network.bind(address(2));
+		
+		try {
+			receiver.addNeighbor(1, address(1));
+			writer.addNeighbor(0, address(0));
+			
+			byte[][] datagrams = {
+				{ DatagramType.PING.getId() },
+				{ DatagramType.PONG.getId(), 0, 0, 0, 1 },
+				{ DatagramType.CHAT.getId(), 0, 0 },
+				{ DatagramType.FEC_PARITY.getId(), 1 } };
+			for (byte[] datagram : datagrams) {
+				attacker.send(ByteBuffer.wrap(datagram), address(0));
+			}
+			
+			writer.send("Hello");
+			waitFor(numReceived, 1);
+		} finally {
+			attacker.close();
+			writer.close();
+			receiver.close();
+		}
+	}
+}
@@ -7,6 +7,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 
 import ipopprojekt.client.P2PMessage;
 import ipopprojekt.client.P2PMessageHandler;
@@ -69,7 +73,7 @@ public class TestP2PMessageHandler {
 			e.printStackTrace();
 		}
 	}
-
+	
 	/**
 	 * Tests reading a already received message
 	 */
@@ -87,7 +91,7 @@ public class TestP2PMessageHandler {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-				
+		
 		try (DataInputStream stream = fromBackingStream(backingStream)) {
 			P2PMessage msg = recieverHandler.nextMessage(stream);
 			assertNotNull(msg);
@@ -103,7 +107,7 @@ public class TestP2PMessageHandler {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-				
+		
 		try (DataInputStream stream = fromBackingStream(backingStream)) {
 			P2PMessage msg = recieverHandler.nextMessage(stream);
 			assertNull(msg);
@@ -111,4 +115,109 @@ public class TestP2PMessageHandler {
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * Tests reading a batch of messages, where one of the messages has already been received
+	 */
+	@Test
+	public void testBatch() throws IOException {
+		P2PMessageHandler senderHandler = new P2PMessageHandler(1, "Client 1");
+		P2PMessageHandler recieverHandler = new P2PMessageHandler(2, "Client 2");
+		
+		P2PMessage first = senderHandler.createMessage("First");
+		P2PMessage second = senderHandler.createMessage("Second");
+		P2PMessage third = senderHandler.createMessage("Third");
+		
+		ByteArrayOutputStream backingStream = new ByteArrayOutputStream();
+		try (DataOutputStream stream = new DataOutputStream(backingStream)) {
+			senderHandler.writeMessage(stream, second);
+		}
+		
+		try (DataInputStream stream = fromBackingStream(backingStream)) {
+			assertNotNull(recieverHandler.nextMessage(stream));
+		}
+		
+		backingStream = new ByteArrayOutputStream();
+		try (DataOutputStream stream = new DataOutputStream(backingStream)) {
+			senderHandler.writeBatch(stream, Arrays.asList(first, second, third));
+		}
+		
+		try (DataInputStream stream = fromBackingStream(backingStream)) {
+			List<P2PMessage> messages = recieverHandler.nextMessages(stream);
+			assertEquals(2, messages.size());
+			assertEquals("First", messages.get(0).getMessage());
+			assertEquals("Third", messages.get(1).getMessage());
+		}
+	}
+	
+	/**
+	 * Tests that the duplicate ratio follows the received messages
+	 */
+	@Test
+	public void testDuplicateRatio() {
+		P2PMessageHandler handler = new P2PMessageHandler(2, "Client 2");
+		assertEquals(0, handler.getDuplicateRatio(), 0);
+		
+		for (int i = 0; i < 2000; i++) {
+			assertTrue(handler.markReceived(1, i));
+			assertFalse(handler.markReceived(1, i));
+			assertFalse(handler.markReceived(1, i));
+		}
+		
+		assertEquals(2.0 / 3, handler.getDuplicateRatio(), 0.02);
+		
+		for (int i = 2000; i < 4000; i++) {
+			assertTrue(handler.markReceived(1, i));
+		}
+		
+		assertEquals(0, handler.getDuplicateRatio(), 0.01);
+	}
+	
+	/**
+	 * Tests that a large message is split into fragments that can be read in any order
+	 */
+	@Test
+	public void testFragments() throws IOException {
+		P2PMessageHandler senderHandler = new P2PMessageHandler(1, "Client 1");
+		P2PMessageHandler recieverHandler = new P2PMessageHandler(2, "Client 2");
+		
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			text.append(i % 7 == 0 ? '\u00e5' : (char)('a' + i % 26));
+		}
+		
+		//Longer than a string written by a data stream can be
+		for (int i = 0; i < 2; i++) {
+			text.append(text.toString());
+		}
+		
+		P2PMessage message = senderHandler.createMessage(text.toString());
+		P2PMessage next = senderHandler.createMessage("Next");
+		List<byte[]> fragments = senderHandler.encodeMessage(message);
+		
+		assertTrue(fragments.size() > 1);
+		assertEquals(message.getSequenceNumber() + fragments.size(), next.getSequenceNumber());
+		
+		Collections.shuffle(fragments, new Random(1337));
+		for (int i = 0; i < fragments.size(); i++) {
+			assertTrue(fragments.get(i).length <= P2PMessageHandler.MAX_FRAGMENT_SIZE + 14);
+			
+			try (DataInputStream stream = new DataInputStream(new ByteArrayInputStream(fragments.get(i)))) {
+				P2PMessage received = recieverHandler.nextMessage(stream);
+				
+				if (i < fragments.size() - 1) {
+					assertNull(received);
+				} else {
+					assertEquals(message, received);
+				}
+			}
+			
+			//Fragments that have already been read are dropped
+			try (DataInputStream stream = new DataInputStream(new ByteArrayInputStream(fragments.get(i)))) {
+				assertNull(recieverHandler.nextMessage(stream));
+			}
+		}
+		
+		assertEquals(0, recieverHandler.numIncomplete());
+	}
 }
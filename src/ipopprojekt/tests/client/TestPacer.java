@@ -0,0 +1,87 @@
+package ipopprojekt.tests.client;
+
+import static org.junit.Assert.*;
+
+import ipopprojekt.client.Pacer;
+
+import org.junit.Test;
+
+/**
+ * Tests the Pacer
+ */
+public class TestPacer {
+	private static final long MS = 1000000L;
+	
+	/**
+	 * Tests that a burst is sent directly, and that the datagrams after it wait for tokens in order
+	 */
+	@Test
+	public void testTokenBucket() {
+		Pacer pacer = new Pacer(0);
+		int size = 1024;
+		int numDirect = 0;
+		
+		while (pacer.trySend(size, 0)) {
+			numDirect++;
+		}
+		
+		//The last datagram of the burst takes more tokens than there are
+		assertEquals((int)(Pacer.BURST_SIZE / size) + 1, numDirect);
+		
+		byte[] first = new byte[size];
+		byte[] second = new byte[size];
+		assertTrue(pacer.enqueue(first));
+		assertTrue(pacer.enqueue(second));
+		assertNull(pacer.poll(0));
+		assertTrue(pacer.nanosUntilReady() > 0);
+		
+		//A new datagram must not overtake the queued ones
+		long later = 10 * MS;
+		assertFalse(pacer.trySend(size, later));
+		assertSame(first, pacer.poll(later));
+		assertSame(second, pacer.poll(later));
+		assertFalse(pacer.hasQueued());
+		assertEquals(2, pacer.metrics().getNumQueued());
+	}
+	
+	/**
+	 * Tests that the rate is halved on loss at most once per interval, and grows back over time
+	 */
+	@Test
+	public void testAimd() {
+		Pacer pacer = new Pacer(0);
+		
+		pacer.lossReported(0);
+		assertEquals(Pacer.INITIAL_RATE * Pacer.MULTIPLICATIVE_DECREASE, pacer.getRate(), 1);
+		
+		pacer.lossReported(Pacer.DECREASE_INTERVAL / 2);
+		assertEquals(1, pacer.metrics().getNumDecreases());
+		
+		for (int i = 0; i < 20; i++) {
+			pacer.lossReported((i + 1) * Pacer.DECREASE_INTERVAL);
+		}
+		
+		assertTrue(pacer.getRate() < Pacer.MIN_RATE + Pacer.ADDITIVE_INCREASE * 2.2);
+		
+		double rate = pacer.getRate();
+		pacer.trySend(1, 20 * Pacer.DECREASE_INTERVAL + 1000 * MS);
+		assertEquals(rate + Pacer.ADDITIVE_INCREASE, pacer.getRate(), 1);
+	}
+	
+	/**
+	 * Tests that datagrams are dropped when the queue is full
+	 */
+	@Test
+	public void testQueueLimit() {
+		Pacer pacer = new Pacer(0);
+		byte[] datagram = new byte[Pacer.MAX_QUEUED_BYTES / 4];
+		
+		for (int i = 0; i < 4; i++) {
+			assertTrue(pacer.enqueue(datagram));
+		}
+		
+		assertFalse(pacer.enqueue(datagram));
+		assertEquals(1, pacer.metrics().getNumDropped());
+		assertEquals(Pacer.MAX_QUEUED_BYTES, pacer.metrics().getQueuedBytes());
+	}
+}
@@ -0,0 +1,205 @@
+package ipopprojekt.tests.client;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import ipopprojekt.client.InMemoryNetwork;
+import ipopprojekt.client.P2PClient;
+import ipopprojekt.server.ChatNetwork;
+import ipopprojekt.server.ChatNetwork.Change;
+import ipopprojekt.server.ChatNetwork.ChangeType;
+import ipopprojekt.server.ChatNetwork.Changes;
+import ipopprojekt.server.TopologyPolicy;
+import ipopprojekt.util.ExecutionBackend;
+
+import org.junit.Test;
+
+/**
+ * Tests the PlumtreeRelay, with clients connected through an in-memory network
+ */
+public class TestPlumtreeRelay {
+	private static final int NUM_CLIENTS = 30;
+	private static final long TIMEOUT_MS = 10000;
+	
+	private final InMemoryNetwork network = new InMemoryNetwork();
+	private final ChatNetwork topology = new ChatNetwork(TopologyPolicy.fixed(3), 1337);
+	private final P2PClient[] clients = new P2PClient[NUM_CLIENTS];
+	private final AtomicIntegerArray numReceived = new AtomicIntegerArray(NUM_CLIENTS);
+	
+	/**
+	 * Returns the address of the given client
+	 * @param clientId The id of the client
+	 */
+	private static InetSocketAddress address(int clientId) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), 40000 + clientId);
+	}
+	
+	/**
+	 * Creates the clients and connects them like the server does, with both ends of each link knowing about it
+	 */
+	private void createClients() {
+		for (int i = 0; i < NUM_CLIENTS; i++) {
+			int clientId = i;
+			this.clients[i] = new P2PClient(
+				this.network.bind(address(i)),
+				i,
+				"Client " + i,
+				message -> this.numReceived.incrementAndGet(clientId),
+				ExecutionBackend.PLATFORM_THREADS);
+			
+			this.applyChanges(this.topology.addClient(i));
+		}
+	}
+	
+	/**
+	 * Applies the given changes to both ends of each link
+	 * @param changesList The changes
+	 */
+	private void applyChanges(List<Changes> changesList) {
+		for (Changes changes : changesList) {
+			int clientId = changes.getClientId();
+			
+			for (Change change : changes.getChanges()) {
+				int neighborId = change.getClientId();
+				
+				if (change.getType() == ChangeType.ADD) {
+					this.clients[clientId].addNeighbor(neighborId, address(neighborId));
+					this.clients[neighborId].addNeighbor(clientId, address(clientId));
+				} else {
+					this.clients[clientId].removeNeighbor(neighborId);
+					this.clients[neighborId].removeNeighbor(clientId);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Sends a message from the given client, and waits until all other clients that are left have received it
+	 * @param sender The sender
+	 */
+	private void sendAndWait(int sender) throws InterruptedException {
+		int[] expected = new int[NUM_CLIENTS];
+		for (int i = 0; i < NUM_CLIENTS; i++) {
+			expected[i] = this.numReceived.get(i) + (i == sender || this.clients[i] == null ? 0 : 1);
+		}
+		
+		this.clients[sender].send("Message from " + sender);
+		
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		for (int i = 0; i < NUM_CLIENTS; i++) {
+			while (this.numReceived.get(i) < expected[i]) {
+				assertTrue("Client " + i + " did not get the message", System.currentTimeMillis() < deadline);
+				Thread.sleep(1);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of chat messages received by all clients, including duplicates
+	 */
+	private long numTransmissions() {
+		long total = 0;
+		for (P2PClient client : this.clients) {
+			if (client != null) {
+				total += client.getMetrics().getNumRelayed() + client.getMetrics().getNumDuplicates();
+			}
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Closes the clients
+	 */
+	private void closeClients() {
+		for (P2PClient client : this.clients) {
+			if (client != null) {
+				client.close();
+			}
+		}
+	}
+	
+	/**
+	 * Tests that the messages are sent along a tree once the duplicate links have been pruned
+	 */
+	@Test
+	public void testConvergesToTree() throws InterruptedException {
+		this.createClients();
+		
+		try {
+			for (int i = 0; i < 20; i++) {
+				this.sendAndWait(i % NUM_CLIENTS);
+			}
+			
+			//Wait for the last prunes
+			Thread.sleep(100);
+			
+			long start = this.numTransmissions();
+			for (int i = 0; i < 10; i++) {
+				this.sendAndWait((7 * i) % NUM_CLIENTS);
+			}
+			
+			Thread.sleep(100);
+			long transmissions = this.numTransmissions() - start;
+			//Flooding would send each message over every link in both directions
+			assertTrue("Too many transmissions: " + transmissions, transmissions <= 10 * (NUM_CLIENTS - 1) * 3 / 2);
+		} finally {
+			this.closeClients();
+		}
+	}
+	
+	/**
+	 * Tests that the tree heals when clients leave
+	 */
+	@Test
+	public void testHealsAfterLeave() throws InterruptedException {
+		this.createClients();
+		
+		try {
+			for (int i = 0; i < 20; i++) {
+				this.sendAndWait(i % NUM_CLIENTS);
+			}
+			
+			//Remove some clients, like the server does
+			for (int clientId = 3; clientId < NUM_CLIENTS; clientId += 7) {
+				List<Changes> changes = this.topology.removeClient(clientId);
+				this.clients[clientId].close();
+				this.clients[clientId] = null;
+				
+				//Both ends of a link are told about it, and the changes include the links of the removed client
+				for (Changes clientChanges : changes) {
+					for (Change change : clientChanges.getChanges()) {
+						int from = clientChanges.getClientId();
+						int to = change.getClientId();
+						
+						if (change.getType() == ChangeType.ADD) {
+							this.clients[from].addNeighbor(to, address(to));
+							this.clients[to].addNeighbor(from, address(from));
+						} else {
+							if (this.clients[from] != null) {
+								this.clients[from].removeNeighbor(to);
+							}
+							
+							if (this.clients[to] != null) {
+								this.clients[to].removeNeighbor(from);
+							}
+						}
+					}
+				}
+			}
+			
+			for (int i = 0; i < 20; i++) {
+				int sender = i % NUM_CLIENTS;
+				if (this.clients[sender] != null) {
+					this.sendAndWait(sender);
+				}
+			}
+		} finally {
+			this.closeClients();
+		}
+	}
+}
@@ -1,7 +1,21 @@
 package ipopprojekt.tests.server;
 
 import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
 import ipopprojekt.server.ChatNetwork;
+import ipopprojekt.server.ChatNetwork.Change;
+import ipopprojekt.server.ChatNetwork.ChangeType;
+import ipopprojekt.server.ChatNetwork.Changes;
+import ipopprojekt.server.TopologyPolicy;
 import org.junit.Test;
 
 /**
@@ -34,7 +48,7 @@ public class TestChatNetwork {
 		}
 		
 		assertTrue(network.isConnected());
-
+		
 		for (int i = 0; i < 150; i++) {
 			int clientId = network.randomClientInNetwork();
 			network.removeClient(clientId);
@@ -56,7 +70,7 @@ public class TestChatNetwork {
 		}
 		
 		assertTrue(network.isConnected());
-
+		
 		for (int i = 0; i < 10; i++) {
 			int clientId = network.randomClientInNetwork();
 			network.removeClient(clientId);
@@ -65,6 +79,39 @@ public class TestChatNetwork {
 		}
 	}
 	
+	/**
+	 * Tests that the network remains connected when most of the clients leave
+	 */
+	@Test
+	public void testConnectedIfManyLeave() {
+		ChatNetwork network = new ChatNetwork(1, 4711);
+		
+		for (int i = 0; i < 2000; i++) {
+			network.addClient(i);
+		}
+		
+		for (int i = 0; i < 1990; i++) {
+			int clientId = network.randomClientInNetwork();
+			network.removeClient(clientId);
+			assertTrue(network.isConnected());
+			assertFalse(network.exists(clientId));
+		}
+	}
+	
+	/**
+	 * Tests that checking if a large network is connected does not overflow the stack
+	 */
+	@Test
+	public void testLargeNetworkConnected() {
+		ChatNetwork network = new ChatNetwork(1, 1337);
+		
+		for (int i = 0; i < 200000; i++) {
+			network.addClient(i);
+		}
+		
+		assertTrue(network.isConnected());
+	}
+	
 	/**
 	 * Tests a sample network
 	 */
@@ -77,8 +124,417 @@ public class TestChatNetwork {
 		assertTrue(network.isConnected());
 		network.addClient(2);
 		assertTrue(network.isConnected());
-				
+		
 		network.removeClient(1);
 		assertTrue(network.isConnected());
 	}
+	
+	/**
+	 * Tests that the clients get the number of neighbors decided by the policy
+	 */
+	@Test
+	public void testFixedDegree() {
+		ChatNetwork network = new ChatNetwork(TopologyPolicy.fixed(4), 1337);
+		
+		for (int i = 0; i < 1000; i++) {
+			network.addClient(i);
+		}
+		
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(4, network.getNeighbors(i).size());
+		}
+	}
+	
+	/**
+	 * Tests that the number of hops stays small with the logarithmic policy
+	 */
+	@Test
+	public void testLogarithmicHops() {
+		ChatNetwork network = new ChatNetwork(TopologyPolicy.logarithmic(2, 16), 1337);
+		
+		for (int i = 0; i < 10000; i++) {
+			network.addClient(i);
+		}
+		
+		for (int i = 0; i < 2000; i++) {
+			network.removeClient(network.randomClientInNetwork());
+		}
+		
+		assertTrue(network.isConnected());
+		
+		int clientId = network.randomClientInNetwork();
+		int[] hopCounts = network.hopCounts(clientId);
+		assertEquals(1, hopCounts[0]);
+		assertTrue(hopCounts.length - 1 <= 10);
+		
+		int numReached = 0;
+		for (int count : hopCounts) {
+			numReached += count;
+		}
+		
+		assertEquals(8000, numReached);
+	}
+	
+	/**
+	 * Applies the given changes to the given neighbor lists
+	 * @param neighbors The neighbor lists
+	 * @param changes The changes
+	 */
+	private void applyChanges(Map<Integer, Set<Integer>> neighbors, List<Changes> changes) {
+		for (Changes clientChanges : changes) {
+			Set<Integer> clientNeighbors = neighbors.get(clientChanges.getClientId());
+			
+			for (Change change : clientChanges.getChanges()) {
+				if (change.getType() == ChangeType.ADD) {
+					assertTrue(clientNeighbors.add(change.getClientId()));
+				} else {
+					assertTrue(clientNeighbors.remove(change.getClientId()));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Tests that applying the changes gives the neighbors in the network
+	 */
+	@Test
+	public void testChangesMatchNeighbors() {
+		ChatNetwork network = new ChatNetwork(TopologyPolicy.logarithmic(2, 16), 1337);
+		Map<Integer, Set<Integer>> neighbors = new HashMap<>();
+		
+		for (int i = 0; i < 2000; i++) {
+			neighbors.put(i, new HashSet<>());
+			this.applyChanges(neighbors, network.addClient(i));
+			
+			if (i % 3 == 2) {
+				int clientId = network.randomClientInNetwork();
+				this.applyChanges(neighbors, network.removeClient(clientId));
+				neighbors.remove(clientId);
+			}
+		}
+		
+		for (Map.Entry<Integer, Set<Integer>> entry : neighbors.entrySet()) {
+			assertEquals(network.getNeighbors(entry.getKey()), entry.getValue());
+		}
+	}
+	
+	/**
+	 * Tests that batches of joins and leaves keep the network connected, and that the changes give the neighbors in the network
+	 */
+	@Test
+	public void testBatchUpdate() {
+		ChatNetwork network = new ChatNetwork(TopologyPolicy.logarithmic(2, 16), 1337);
+		Map<Integer, Set<Integer>> neighbors = new HashMap<>();
+		Random random = new Random(1337);
+		List<Integer> joining = new ArrayList<>();
+		int nextId = 0;
+		
+		for (int i = 0; i < 1000; i++) {
+			joining.add(nextId++);
+		}
+		
+		for (int round = 0; round < 20; round++) {
+			//Batches of different sizes, where some use a search per neighbor and some search the whole network
+			Set<Integer> leaving = new HashSet<>();
+			int numLeaving = round == 0 ? 0 : random.nextInt(round % 2 == 0 ? 4 : 500);
+			while (leaving.size() < numLeaving) {
+				leaving.add(network.randomClientInNetwork());
+			}
+			
+			for (int clientId : joining) {
+				neighbors.put(clientId, new HashSet<>());
+			}
+			
+			this.applyChanges(neighbors, network.update(joining, leaving));
+			for (int clientId : leaving) {
+				assertFalse(network.exists(clientId));
+				neighbors.remove(clientId);
+			}
+			
+			assertTrue(network.isConnected());
+			
+			joining = new ArrayList<>();
+			for (int i = random.nextInt(500); i > 0; i--) {
+				joining.add(nextId++);
+			}
+		}
+		
+		for (Map.Entry<Integer, Set<Integer>> entry : neighbors.entrySet()) {
+			assertEquals(network.getNeighbors(entry.getKey()), entry.getValue());
+		}
+	}
+	
+	/**
+	 * Indicates if all the clients are linked to each other, following the links in both directions
+	 * @param neighbors The neighbors of each client
+	 */
+	private boolean isLinked(Map<Integer, Set<Integer>> neighbors) {
+		Map<Integer, Set<Integer>> links = new HashMap<>();
+		for (Map.Entry<Integer, Set<Integer>> entry : neighbors.entrySet()) {
+			links.computeIfAbsent(entry.getKey(), id -> new HashSet<>()).addAll(entry.getValue());
+			for (int neighbor : entry.getValue()) {
+				links.computeIfAbsent(neighbor, id -> new HashSet<>()).add(entry.getKey());
+			}
+		}
+		
+		Set<Integer> visited = new HashSet<>();
+		List<Integer> stack = new ArrayList<>();
+		int start = neighbors.keySet().iterator().next();
+		visited.add(start);
+		stack.add(start);
+		
+		while (!stack.isEmpty()) {
+			for (int next : links.get(stack.remove(stack.size() - 1))) {
+				if (visited.add(next)) {
+					stack.add(next);
+				}
+			}
+		}
+		
+		return visited.size() == neighbors.size();
+	}
+	
+	/**
+	 * Tests that a repaired network has no client that splits it, so that a single leave needs no repair of its own
+	 */
+	@Test
+	public void testSingleLeaveKeepsConnected() {
+		ChatNetwork network = new ChatNetwork(TopologyPolicy.fixed(2), 2, 1337);
+		Map<Integer, Set<Integer>> neighbors = new HashMap<>();
+		int nextId = 0;
+		
+		for (; nextId < 500; nextId++) {
+			neighbors.put(nextId, new HashSet<>());
+			this.applyChanges(neighbors, network.addClient(nextId));
+		}
+		
+		for (int i = 0; i < 200; i++) {
+			this.applyChanges(neighbors, network.repair());
+			assertFalse(network.needsRepair());
+			assertTrue(network.isConnected());
+			assertTrue(network.isTwoConnected());
+			
+			int clientId = network.randomClientInNetwork();
+			this.applyChanges(neighbors, network.removeClient(clientId));
+			neighbors.remove(clientId);
+			assertTrue(network.needsRepair());
+			assertTrue(this.isLinked(neighbors));
+			
+			neighbors.put(nextId, new HashSet<>());
+			this.applyChanges(neighbors, network.addClient(nextId++));
+		}
+		
+		for (Map.Entry<Integer, Set<Integer>> entry : neighbors.entrySet()) {
+			assertEquals(network.getNeighbors(entry.getKey()), entry.getValue());
+		}
+	}
+	
+	/**
+	 * Tests that a slow neighbor is replaced by a faster peer
+	 */
+	@Test
+	public void testRewireToFasterPeer() {
+		ChatNetwork network = new ChatNetwork(TopologyPolicy.fixed(4), 1337);
+		for (int i = 0; i < 100; i++) {
+			network.addClient(i);
+		}
+		
+		//Make all the neighbors of the client slow, and a peer that is not a neighbor fast
+		Set<Integer> neighbors = network.getNeighbors(0);
+		for (int neighbor : neighbors) {
+			network.setRoundTripTime(0, neighbor, 100000);
+		}
+		
+		int peer = 1;
+		while (neighbors.contains(peer)) {
+			peer++;
+		}
+		
+		network.setRoundTripTime(0, peer, 1000);
+		network.rewire(0);
+		
+		assertTrue(network.getNeighbors(0).contains(peer));
+		assertEquals(4, network.getNeighbors(0).size());
+		assertTrue(network.isConnected());
+		
+		//Only half of the neighbors can be replaced
+		network.rewire(0);
+		network.rewire(0);
+		assertTrue(network.isConnected());
+		
+		int numSlow = 0;
+		for (int neighbor : network.getNeighbors(0)) {
+			if (neighbors.contains(neighbor)) {
+				numSlow++;
+			}
+		}
+		
+		assertTrue(numSlow >= 2);
+	}
+	
+	/**
+	 * Returns the given peers as a set, checking that there are no repeated peers
+	 * @param peers The peers
+	 */
+	private Set<Integer> distinctPeers(int[] peers) {
+		Set<Integer> distinct = new HashSet<>();
+		for (int peer : peers) {
+			assertTrue("Peer " + peer + " picked twice", distinct.add(peer));
+		}
+		
+		return distinct;
+	}
+	
+	/**
+	 * Tests that a joining client is linked from as many distinct clients as it should have neighbors,
+	 * also when there are only just enough clients to pick from
+	 */
+	@Test
+	public void testPicksDistinctNeighbors() {
+		int maxNeighbors = 4;
+		
+		for (int seed = 0; seed < 50; seed++) {
+			ChatNetwork network = new ChatNetwork(maxNeighbors, seed);
+			
+			for (int clientId = 0; clientId <= maxNeighbors; clientId++) {
+				network.addClient(clientId);
+				
+				//Each picked client splits one of its links to go through the new client
+				int numPredecessors = 0;
+				for (int other = 0; other < clientId; other++) {
+					if (network.getNeighbors(other).contains(clientId)) {
+						numPredecessors++;
+					}
+				}
+				
+				assertEquals(Math.min(maxNeighbors, clientId), numPredecessors);
+			}
+			
+			for (int clientId = 0; clientId <= maxNeighbors; clientId++) {
+				Set<Integer> peers = this.distinctPeers(network.randomPeers(clientId, maxNeighbors));
+				assertEquals(maxNeighbors, peers.size());
+				assertFalse(peers.contains(clientId));
+			}
+		}
+	}
+	
+	/**
+	 * Tests that the clients that can be picked are exactly the clients in the network while clients leave,
+	 * so no removed client is left behind in the sampled clients
+	 */
+	@Test
+	public void testRemovalKeepsSampledClients() {
+		ChatNetwork network = new ChatNetwork(3, 4711);
+		Set<Integer> remaining = new HashSet<>();
+		
+		for (int i = 0; i < 50; i++) {
+			network.addClient(i);
+			remaining.add(i);
+		}
+		
+		while (remaining.size() > 1) {
+			int clientId = network.randomClientInNetwork();
+			assertTrue(remaining.remove(clientId));
+			network.removeClient(clientId);
+			
+			for (int peer : remaining) {
+				Set<Integer> others = new HashSet<>(remaining);
+				others.remove(peer);
+				assertEquals(others, this.distinctPeers(network.randomPeers(peer, remaining.size())));
+			}
+		}
+		
+		//The last client is also the last in the sampled clients
+		int last = remaining.iterator().next();
+		assertEquals(last, network.randomClientInNetwork());
+		network.removeClient(last);
+		assertFalse(network.exists(last));
+		
+		network.addClient(100);
+		assertEquals(100, network.randomClientInNetwork());
+		assertEquals(0, network.randomPeers(100, 10).length);
+	}
+	
+	/**
+	 * Checks that the predecessors of each client are exactly the clients that have it as a neighbor
+	 * @param network The network
+	 * @param clientIds The clients in the network
+	 */
+	private void assertPredecessorsMatchNeighbors(ChatNetwork network, Set<Integer> clientIds) {
+		Map<Integer, List<Integer>> expected = new HashMap<>();
+		for (int clientId : clientIds) {
+			expected.put(clientId, new ArrayList<>());
+		}
+		
+		for (int clientId : clientIds) {
+			for (int neighbor : network.getNeighbors(clientId)) {
+				assertTrue("Neighbor " + neighbor + " is not in the network", clientIds.contains(neighbor));
+				expected.get(neighbor).add(clientId);
+			}
+		}
+		
+		for (int clientId : clientIds) {
+			List<Integer> predecessors = network.getPredecessors(clientId);
+			Collections.sort(predecessors);
+			Collections.sort(expected.get(clientId));
+			assertEquals("Predecessors of " + clientId, expected.get(clientId), predecessors);
+		}
+	}
+	
+	/**
+	 * Tests that the predecessors kept by the network stay the reverse of the neighbors through joins, leaves,
+	 * batches, rewires and repairs
+	 */
+	@Test
+	public void testPredecessorsMatchNeighbors() {
+		ChatNetwork network = new ChatNetwork(TopologyPolicy.logarithmic(2, 16), 2, 1337);
+		Random random = new Random(1337);
+		Set<Integer> clientIds = new HashSet<>();
+		int nextId = 0;
+		
+		for (int step = 0; step < 400; step++) {
+			int operation = clientIds.size() < 20 ? 0 : random.nextInt(6);
+			
+			if (operation == 0 || operation == 1) {
+				network.addClient(nextId);
+				clientIds.add(nextId++);
+			} else if (operation == 2) {
+				int clientId = network.randomClientInNetwork();
+				network.removeClient(clientId);
+				clientIds.remove(clientId);
+			} else if (operation == 3) {
+				List<Integer> joining = new ArrayList<>();
+				for (int i = random.nextInt(20); i > 0; i--) {
+					joining.add(nextId++);
+				}
+				
+				Set<Integer> leaving = new HashSet<>();
+				for (int i = random.nextInt(10); i > 0; i--) {
+					leaving.add(network.randomClientInNetwork());
+				}
+				
+				network.update(joining, leaving);
+				clientIds.addAll(joining);
+				clientIds.removeAll(leaving);
+			} else if (operation == 4) {
+				//Make one neighbor slow and a peer fast, so the client has a reason to rewire
+				int clientId = network.randomClientInNetwork();
+				for (int neighbor : network.getNeighbors(clientId)) {
+					network.setRoundTripTime(clientId, neighbor, 100000);
+				}
+				
+				for (int peer : network.randomPeers(clientId, 4)) {
+					network.setRoundTripTime(clientId, peer, 1000 + random.nextInt(1000));
+				}
+				
+				network.rewire(clientId);
+			} else {
+				network.repair();
+			}
+			
+			this.assertPredecessorsMatchNeighbors(network, clientIds);
+		}
+		
+		assertTrue(network.isConnected());
+	}
 }
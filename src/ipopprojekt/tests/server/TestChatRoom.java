@@ -0,0 +1,204 @@
+package ipopprojekt.tests.server;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import ipopprojekt.messages.MessageId;
+import ipopprojekt.server.ChatRoom;
+import ipopprojekt.server.Client;
+import ipopprojekt.server.Server;
+
+import org.junit.Test;
+
+/**
+ * Tests that a chat room handles the joins, leaves and latency reports of its clients in the order they were queued
+ */
+public class TestChatRoom {
+	private static final int PORT = 42101;
+	
+	//The server is never started, the clients only need it to exist
+	private final Server server = new Server(PORT);
+	
+	//The streams the messages to each client are read from
+	private final Map<Client, DataInputStream> streams = new HashMap<>();
+	
+	/**
+	 * Creates a client connected over the loopback interface, whose messages are written by its own writer
+	 * @param listener The socket the client is accepted from
+	 * @param id The id of the client
+	 */
+	private Client connect(ServerSocket listener, int id) throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+		socket.setSoTimeout(5000);
+		
+		Client client = new Client(listener.accept(), this.server, id);
+		client.open();
+		
+		Thread writer = new Thread(client::writeLoop, "client-writer-" + id);
+		writer.setDaemon(true);
+		writer.start();
+		
+		this.streams.put(client, new DataInputStream(socket.getInputStream()));
+		return client;
+	}
+	
+	/**
+	 * Reads the next message to the given client, and returns its id
+	 * @param client The client
+	 */
+	private MessageId readMessage(Client client) throws IOException {
+		DataInputStream stream = this.streams.get(client);
+		MessageId id = MessageId.fromByte(stream.readByte());
+		assertNotNull(id);
+		
+		switch (id) {
+		case SET_USER_ID:
+		case SET_NUMBER_OF_ROOMS:
+			stream.readInt();
+			break;
+		case ADD_NEIGHBORS:
+		case PROBE_PEERS:
+			for (int i = stream.readInt(); i > 0; i--) {
+				stream.readInt();
+				stream.readUTF();
+				stream.readInt();
+			}
+			break;
+		case REMOVE_NEIGHBORS:
+			for (int i = stream.readInt(); i > 0; i--) {
+				stream.readInt();
+			}
+			break;
+		default:
+			fail("Unexpected message " + id);
+		}
+		
+		return id;
+	}
+	
+	/**
+	 * Reads the messages to the given client until one with the given id
+	 * @param client The client
+	 * @param id The id of the message
+	 */
+	private void readUntil(Client client, MessageId id) throws IOException {
+		while (this.readMessage(client) != id) {
+			//Skip the messages before
+		}
+	}
+	
+	/**
+	 * Checks that the connection to the given client is closed, after the messages that were sent before
+	 * @param client The client
+	 */
+	private void assertClosed(Client client) throws IOException {
+		DataInputStream stream = this.streams.get(client);
+		while (stream.read() != -1) {
+			//Skip the messages before
+		}
+	}
+	
+	/**
+	 * Tests that a leave queued right after a join of the same client is handled after the join
+	 */
+	@Test
+	public void testLeaveAfterJoin() throws IOException {
+		try (ServerSocket listener = new ServerSocket(0)) {
+			ChatRoom room = new ChatRoom(0, ChatRoom.NO_BATCHING);
+			Client left = this.connect(listener, 1);
+			Client stayed = this.connect(listener, 2);
+			
+			room.addClient(left);
+			room.removeClient(left);
+			room.addClient(stayed);
+			
+			//Closing the room closes the clients in it, once the commands before have been handled
+			room.close();
+			this.assertClosed(stayed);
+			assertEquals(1, room.getNumClients());
+			assertTrue(left.isConnected());
+			left.close();
+		}
+	}
+	
+	/**
+	 * Tests that a latency report of a client whose leave is waiting to be admitted gets no answer
+	 */
+	@Test
+	public void testLatencyReportAfterLeave() throws IOException {
+		try (ServerSocket listener = new ServerSocket(0)) {
+			ChatRoom room = new ChatRoom(0, 200);
+			Client left = this.connect(listener, 1);
+			Client stayed = this.connect(listener, 2);
+			
+			room.addClient(left);
+			room.addClient(stayed);
+			this.readUntil(left, MessageId.PROBE_PEERS);
+			
+			room.removeClient(left);
+			room.latencyReported(left, new int[] { stayed.getId() }, new int[] { 100 });
+			
+			//The leave is admitted after the report has been handled
+			this.readUntil(stayed, MessageId.REMOVE_NEIGHBORS);
+			
+			//The messages to a client keep their order, so any answer to the report arrives before this one
+			left.send(new byte[] { MessageId.SET_USER_ID.getId(), 0, 0, 0, 7 });
+			MessageId id;
+			while ((id = this.readMessage(left)) != MessageId.SET_USER_ID) {
+				assertTrue(id != MessageId.PROBE_PEERS);
+			}
+			
+			room.close();
+			left.close();
+		}
+	}
+	
+	/**
+	 * Tests that closing a room closes the clients whose joins were queued before
+	 */
+	@Test
+	public void testCloseAfterQueuedJoins() throws IOException {
+		try (ServerSocket listener = new ServerSocket(0)) {
+			ChatRoom room = new ChatRoom(0, ChatRoom.DEFAULT_ADMISSION_WINDOW);
+			Client first = this.connect(listener, 1);
+			Client second = this.connect(listener, 2);
+			
+			room.addClient(first);
+			room.addClient(second);
+			room.close();
+			
+			this.assertClosed(first);
+			this.assertClosed(second);
+		}
+	}
+	
+	/**
+	 * Tests that a client that has joined a room is disconnected when it joins again, and stays in its room
+	 */
+	@Test
+	public void testSecondJoinRefused() throws IOException {
+		try (ServerSocket listener = new ServerSocket(0)) {
+			this.server.addRoom();
+			this.server.addRoom();
+			Client client = this.connect(listener, 1);
+			
+			this.server.clientConnected(client, 1);
+			ChatRoom room = client.getRoom();
+			assertNotNull(room);
+			assertTrue(client.isConnected());
+			
+			this.server.clientConnected(client, 2);
+			assertSame(room, client.getRoom());
+			assertFalse(client.isConnected());
+			this.assertClosed(client);
+			room.close();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package ipopprojekt.tests.server;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import ipopprojekt.messages.MessageId;
+import ipopprojekt.server.OutboundQueue;
+
+import org.junit.Test;
+
+/**
+ * Tests the OutboundQueue
+ */
+public class TestOutboundQueue {
+	/**
+	 * Tests that waiting neighbor changes are merged into one message for each kind of change
+	 */
+	@Test
+	public void testMergesNeighborChanges() throws IOException {
+		OutboundQueue queue = new OutboundQueue();
+		assertTrue(queue.isEmpty());
+		assertNull(queue.drain());
+		
+		assertTrue(queue.addNeighbor(1, "10.0.0.1", 4712, 0));
+		assertTrue(queue.addNeighbor(2, "10.0.0.2", 4712, 0));
+		assertTrue(queue.removeNeighbor(3, 0));
+		assertTrue(queue.removeNeighbor(2, 0));
+		assertTrue(queue.addNeighbor(1, "10.0.0.1", 4712, 0));
+		assertFalse(queue.isEmpty());
+		
+		DataInputStream stream = new DataInputStream(new ByteArrayInputStream(queue.drain()));
+		assertTrue(queue.isEmpty());
+		
+		//The neighbor that was both added and removed is left out, and a neighbor is listed once for each link
+		assertEquals(MessageId.ADD_NEIGHBORS.getId(), stream.readByte());
+		assertEquals(2, stream.readInt());
+		for (int i = 0; i < 2; i++) {
+			assertEquals(1, stream.readInt());
+			assertEquals("10.0.0.1", stream.readUTF());
+			assertEquals(4712, stream.readInt());
+		}
+		
+		assertEquals(MessageId.REMOVE_NEIGHBORS.getId(), stream.readByte());
+		assertEquals(1, stream.readInt());
+		assertEquals(3, stream.readInt());
+		assertEquals(-1, stream.read());
+	}
+	
+	/**
+	 * Tests that other messages keep their order relative to the neighbor changes
+	 */
+	@Test
+	public void testOrder() throws IOException {
+		OutboundQueue queue = new OutboundQueue();
+		assertTrue(queue.add(new byte[] { MessageId.SET_USER_ID.getId(), 0, 0, 0, 7 }, 0));
+		assertTrue(queue.addNeighbor(1, "10.0.0.1", 4712, 0));
+		assertTrue(queue.add(new byte[] { MessageId.PROBE_PEERS.getId(), 0, 0, 0, 0 }, 0));
+		assertTrue(queue.removeNeighbor(1, 0));
+		
+		DataInputStream stream = new DataInputStream(new ByteArrayInputStream(queue.drain()));
+		assertEquals(MessageId.SET_USER_ID.getId(), stream.readByte());
+		assertEquals(7, stream.readInt());
+		assertEquals(MessageId.ADD_NEIGHBORS.getId(), stream.readByte());
+		assertEquals(1, stream.readInt());
+		assertEquals(1, stream.readInt());
+		assertEquals("10.0.0.1", stream.readUTF());
+		assertEquals(4712, stream.readInt());
+		assertEquals(MessageId.PROBE_PEERS.getId(), stream.readByte());
+		assertEquals(0, stream.readInt());
+		assertEquals(MessageId.REMOVE_NEIGHBORS.getId(), stream.readByte());
+		assertEquals(1, stream.readInt());
+		assertEquals(1, stream.readInt());
+		assertEquals(-1, stream.read());
+	}
+	
+	/**
+	 * Tests that a client is too slow when its messages take up too many bytes or wait too long
+	 */
+	@Test
+	public void testSlowConsumer() {
+		OutboundQueue queue = new OutboundQueue(100, 1000);
+		assertTrue(queue.add(new byte[60], 0));
+		assertFalse(queue.add(new byte[60], 10));
+		assertEquals(60, queue.numBytes());
+		
+		assertTrue(queue.add(new byte[30], 1000));
+		assertFalse(queue.removeNeighbor(1, 1001));
+		
+		//Draining starts the time over
+		assertNotNull(queue.drain());
+		assertEquals(0, queue.numBytes());
+		assertTrue(queue.removeNeighbor(1, 5000));
+		
+		//A closed queue drops the messages
+		assertTrue(queue.close());
+		assertFalse(queue.close());
+		assertTrue(queue.add(new byte[1000], 5000));
+		assertTrue(queue.isEmpty());
+	}
+	
+	/**
+	 * Tests that taking the messages waits for them, and stops when the queue is closed
+	 */
+	@Test
+	public void testTake() throws InterruptedException {
+		OutboundQueue queue = new OutboundQueue();
+		Thread producer = new Thread(() -> {
+			try {
+				Thread.sleep(50);
+				queue.add(new byte[] { 1 }, 0);
+				Thread.sleep(50);
+				queue.close();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		});
+		producer.start();
+		
+		assertArrayEquals(new byte[] { 1 }, queue.take());
+		assertNull(queue.take());
+		producer.join();
+	}
+}
@@ -0,0 +1,92 @@
+package ipopprojekt.tests.server;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import ipopprojekt.messages.MessageId;
+import ipopprojekt.server.Server;
+import ipopprojekt.server.TransportMode;
+import ipopprojekt.util.ExecutionBackend;
+
+import org.junit.Test;
+
+/**
+ * Tests that the server handles invalid messages from clients and invalid configurations
+ */
+public class TestServer {
+	private static final int PORT = 42100;
+	
+	/**
+	 * Connects to the server, and reads the id and the number of rooms it sends first
+	 */
+	private Socket connect() throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), PORT);
+		socket.setSoTimeout(5000);
+		
+		DataInputStream stream = new DataInputStream(socket.getInputStream());
+		assertEquals(MessageId.SET_USER_ID.getId(), stream.readByte());
+		stream.readInt();
+		assertEquals(MessageId.SET_NUMBER_OF_ROOMS.getId(), stream.readByte());
+		assertEquals(1, stream.readInt());
+		return socket;
+	}
+	
+	/**
+	 * Sends the given bytes, and checks that the server closes the connection while the event loop keeps serving other clients
+	 * @param message The bytes
+	 */
+	private void assertDisconnected(byte[] message) throws IOException {
+		Server server = new Server(PORT, TransportMode.NIO, 1, ExecutionBackend.PLATFORM_THREADS);
+		server.addRoom();
+		server.start();
+		
+		try (Socket bad = this.connect()) {
+			DataOutputStream stream = new DataOutputStream(bad.getOutputStream());
+			stream.write(message);
+			stream.flush();
+			assertEquals(-1, bad.getInputStream().read());
+			
+			//The clients share the only event loop, which must still greet new clients
+			this.connect().close();
+		} finally {
+			server.stop();
+		}
+	}
+	
+	/**
+	 * Tests that a message with an unknown id disconnects only the client that sent it
+	 */
+	@Test
+	public void testUnknownMessageId() throws IOException {
+		this.assertDisconnected(new byte[] { 0x7F });
+	}
+	
+	/**
+	 * Tests that a latency report with a negative number of peers disconnects the client
+	 */
+	@Test
+	public void testNegativeLatencyReport() throws IOException {
+		this.assertDisconnected(new byte[] { MessageId.LATENCY_REPORT.getId(), (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF });
+	}
+	
+	/**
+	 * Tests that a latency report with too many peers disconnects the client before anything is allocated for them
+	 */
+	@Test
+	public void testOversizedLatencyReport() throws IOException {
+		this.assertDisconnected(new byte[] { MessageId.LATENCY_REPORT.getId(), (byte)0x7F, (byte)0xFF, (byte)0xFF, (byte)0xFF });
+	}
+	
+	/**
+	 * Tests that the blocking transport can not be used with a bounded pool, as its client loops never give back their threads
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testBlockingRejectsBoundedPool() {
+		new Server(PORT, TransportMode.BLOCKING, 0, ExecutionBackend.BOUNDED_POOL);
+	}
+}
@@ -0,0 +1,112 @@
+package ipopprojekt.tests.util;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import ipopprojekt.util.DuplicateFilter;
+
+import org.junit.Test;
+
+/**
+ * Tests the DuplicateFilter
+ */
+public class TestDuplicateFilter {
+	/**
+	 * Tests that duplicates are detected
+	 */
+	@Test
+	public void testDuplicates() {
+		DuplicateFilter filter = new DuplicateFilter(64, 1000);
+		assertTrue(filter.markReceived(1, 0, 0));
+		assertFalse(filter.markReceived(1, 0, 0));
+		assertTrue(filter.markReceived(2, 0, 0));
+		
+		//Out of order inside the window
+		assertTrue(filter.markReceived(1, 5, 0));
+		assertTrue(filter.markReceived(1, 3, 0));
+		assertFalse(filter.markReceived(1, 3, 0));
+		assertFalse(filter.markReceived(1, 5, 0));
+		assertTrue(filter.markReceived(1, 4, 0));
+	}
+	
+	/**
+	 * Tests that messages older than the window are dropped, and that skipped sequence numbers are forgotten
+	 */
+	@Test
+	public void testWindow() {
+		DuplicateFilter filter = new DuplicateFilter(64, 1000);
+		assertEquals(64, filter.windowSize());
+		
+		assertTrue(filter.markReceived(1, 10, 0));
+		assertTrue(filter.markReceived(1, 100, 0));
+		assertFalse(filter.markReceived(1, 20, 0));
+		assertTrue(filter.markReceived(1, 37, 0));
+		assertFalse(filter.markReceived(1, 37, 0));
+		
+		//Wrapping around the bitmap must not keep old bits
+		assertTrue(filter.markReceived(1, 100 + 64 + 10, 0));
+		assertTrue(filter.markReceived(1, 100 + 64 + 1, 0));
+		assertFalse(filter.markReceived(1, 100, 0));
+	}
+	
+	/**
+	 * Tests checking for a message without marking it
+	 */
+	@Test
+	public void testContains() {
+		DuplicateFilter filter = new DuplicateFilter(64, 1000);
+		assertFalse(filter.contains(1, 5));
+		assertTrue(filter.markReceived(1, 5, 0));
+		assertTrue(filter.contains(1, 5));
+		assertFalse(filter.contains(1, 4));
+		assertFalse(filter.contains(1, 6));
+		assertTrue(filter.markReceived(1, 4, 0));
+		
+		//Older than the window
+		assertTrue(filter.markReceived(1, 100, 0));
+		assertTrue(filter.contains(1, 10));
+	}
+	
+	/**
+	 * Tests that idle senders are forgotten
+	 */
+	@Test
+	public void testEvictIdle() {
+		DuplicateFilter filter = new DuplicateFilter(64, 1000);
+		assertTrue(filter.markReceived(1, 0, 0));
+		assertTrue(filter.markReceived(2, 0, 900));
+		assertEquals(2, filter.numSenders());
+		
+		filter.evictIdle(1500);
+		assertEquals(1, filter.numSenders());
+		
+		//The first sender is forgotten, and the slot is reused by a new sender
+		assertTrue(filter.markReceived(1, 0, 1500));
+		assertTrue(filter.markReceived(3, 0, 1500));
+		assertFalse(filter.markReceived(2, 0, 1500));
+		assertEquals(3, filter.numSenders());
+	}
+	
+	/**
+	 * Tests that the filter agrees with a set for random sequence numbers inside the window
+	 */
+	@Test
+	public void testRandomOrder() {
+		DuplicateFilter filter = new DuplicateFilter(256, 1000);
+		Set<Long> received = new HashSet<>();
+		Random random = new Random(1337);
+		int[] highest = new int[10];
+		
+		for (int i = 0; i < 100000; i++) {
+			int sender = random.nextInt(10);
+			int sequenceNumber = Math.max(0, highest[sender] + random.nextInt(200) - 150);
+			highest[sender] = Math.max(highest[sender], sequenceNumber);
+			
+			boolean isNew = received.add(((long)sender << 32) | sequenceNumber);
+			assertEquals(isNew, filter.markReceived(sender, sequenceNumber, 0));
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package ipopprojekt.tests.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import ipopprojekt.util.IntIntMap;
+
+import org.junit.Test;
+
+/**
+ * Tests the IntIntMap
+ */
+public class TestIntIntMap {
+	/**
+	 * Tests adding and removing entries
+	 */
+	@Test
+	public void testPutAndRemove() {
+		IntIntMap map = new IntIntMap(-1);
+		assertEquals(-1, map.get(5));
+		
+		map.put(5, 10);
+		map.put(21, 42);
+		assertEquals(10, map.get(5));
+		assertEquals(42, map.get(21));
+		assertEquals(2, map.size());
+		
+		map.put(5, 11);
+		assertEquals(11, map.get(5));
+		assertEquals(2, map.size());
+		
+		assertEquals(11, map.remove(5));
+		assertEquals(-1, map.remove(5));
+		assertFalse(map.containsKey(5));
+		assertTrue(map.containsKey(21));
+		assertEquals(1, map.size());
+	}
+	
+	/**
+	 * Tests that the map behaves as a HashMap for random operations
+	 */
+	@Test
+	public void testRandomOperations() {
+		IntIntMap map = new IntIntMap(-1);
+		Map<Integer, Integer> expected = new HashMap<>();
+		Random random = new Random(1337);
+		
+		for (int i = 0; i < 100000; i++) {
+			int key = random.nextInt(2000);
+			
+			if (random.nextBoolean()) {
+				map.put(key, i);
+				expected.put(key, i);
+			} else {
+				Integer value = expected.remove(key);
+				assertEquals(value == null ? -1 : value, map.remove(key));
+			}
+		}
+		
+		assertEquals(expected.size(), map.size());
+		for (int key = 0; key < 2000; key++) {
+			Integer value = expected.get(key);
+			assertEquals(value == null ? -1 : value, map.get(key));
+		}
+	}
+	
+	/**
+	 * Tests that the keys of the map are returned
+	 */
+	@Test
+	public void testKeys() {
+		IntIntMap map = new IntIntMap(-1);
+		for (int i = 0; i < 100; i++) {
+			map.put(i * 7, i);
+		}
+		
+		map.remove(14);
+		
+		int[] keys = map.keys();
+		Arrays.sort(keys);
+		assertEquals(99, keys.length);
+		assertEquals(0, keys[0]);
+		assertEquals(7, keys[1]);
+		assertEquals(21, keys[2]);
+	}
+}
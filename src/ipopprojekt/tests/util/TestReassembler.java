@@ -0,0 +1,77 @@
+package ipopprojekt.tests.util;
+
+import static org.junit.Assert.*;
+
+import ipopprojekt.util.Reassembler;
+
+import org.junit.Test;
+
+/**
+ * Tests the Reassembler
+ */
+public class TestReassembler {
+	/**
+	 * Tests putting together fragments that arrive out of order
+	 */
+	@Test
+	public void testOutOfOrder() {
+		Reassembler reassembler = new Reassembler(1000, 1000);
+		assertNull(reassembler.add(1, 2, 3, new byte[] { 5 }, 0));
+		assertNull(reassembler.add(1, 0, 3, new byte[] { 1, 2 }, 0));
+		assertNull(reassembler.add(2, 0, 2, new byte[] { 7 }, 0));
+		
+		//Duplicates and fragments that do not fit the message are ignored
+		assertNull(reassembler.add(1, 0, 3, new byte[] { 1, 2 }, 0));
+		assertNull(reassembler.add(1, 1, 4, new byte[] { 3, 4 }, 0));
+		assertNull(reassembler.add(1, 3, 3, new byte[] { 6 }, 0));
+		assertEquals(2, reassembler.numPending());
+		assertEquals(4, reassembler.numPendingBytes());
+		
+		assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, reassembler.add(1, 1, 3, new byte[] { 3, 4 }, 0));
+		assertEquals(1, reassembler.numPending());
+		assertEquals(1, reassembler.numPendingBytes());
+		assertEquals(0, reassembler.numDiscarded());
+	}
+	
+	/**
+	 * Tests that the oldest incomplete messages are discarded when the memory is used up
+	 */
+	@Test
+	public void testMemoryBound() {
+		Reassembler reassembler = new Reassembler(10, 1000);
+		assertNull(reassembler.add(1, 0, 2, new byte[4], 0));
+		assertNull(reassembler.add(2, 0, 2, new byte[4], 1));
+		assertNull(reassembler.add(3, 0, 2, new byte[4], 2));
+		
+		assertEquals(2, reassembler.numPending());
+		assertEquals(8, reassembler.numPendingBytes());
+		assertEquals(1, reassembler.numDiscarded());
+		
+		//The first message is gone, so its last fragment starts it again
+		assertNull(reassembler.add(1, 1, 2, new byte[4], 3));
+		assertNotNull(reassembler.add(3, 1, 2, new byte[4], 4));
+		assertEquals(2, reassembler.numDiscarded());
+		assertEquals(4, reassembler.numPendingBytes());
+	}
+	
+	/**
+	 * Tests that incomplete messages are discarded after the timeout
+	 */
+	@Test
+	public void testTimeout() {
+		Reassembler reassembler = new Reassembler(1000, 100);
+		assertNull(reassembler.add(1, 0, 2, new byte[] { 1 }, 0));
+		assertNull(reassembler.add(2, 0, 2, new byte[] { 2 }, 50));
+		
+		reassembler.discardExpired(120);
+		assertEquals(1, reassembler.numPending());
+		assertEquals(1, reassembler.numDiscarded());
+		
+		assertNull(reassembler.add(1, 1, 2, new byte[] { 1 }, 130));
+		assertArrayEquals(new byte[] { 2, 2 }, reassembler.add(2, 1, 2, new byte[] { 2 }, 140));
+		
+		assertNull(reassembler.add(3, 0, 2, new byte[] { 3 }, 300));
+		assertEquals(1, reassembler.numPending());
+		assertEquals(2, reassembler.numDiscarded());
+	}
+}
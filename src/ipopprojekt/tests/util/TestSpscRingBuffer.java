@@ -0,0 +1,71 @@
+package ipopprojekt.tests.util;
+
+import static org.junit.Assert.*;
+
+import ipopprojekt.util.SpscRingBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests the SpscRingBuffer
+ */
+public class TestSpscRingBuffer {
+	/**
+	 * Tests that the elements are returned in order, and that a full ring rejects elements
+	 */
+	@Test
+	public void testOfferAndPoll() {
+		SpscRingBuffer<Integer> ring = new SpscRingBuffer<>(3);
+		assertEquals(4, ring.capacity());
+		assertTrue(ring.isEmpty());
+		assertNull(ring.poll());
+		
+		for (int i = 0; i < 4; i++) {
+			assertTrue(ring.offer(i));
+		}
+		
+		assertFalse(ring.offer(4));
+		assertEquals(4, ring.size());
+		
+		assertEquals(0, (int)ring.poll());
+		assertTrue(ring.offer(4));
+		
+		//Wrap around the end of the array
+		for (int i = 1; i <= 4; i++) {
+			assertEquals(i, (int)ring.poll());
+		}
+		
+		assertNull(ring.poll());
+		assertTrue(ring.isEmpty());
+	}
+	
+	/**
+	 * Tests that all elements arrive in order when the producer and the consumer are different threads
+	 */
+	@Test
+	public void testTwoThreads() throws InterruptedException {
+		SpscRingBuffer<Integer> ring = new SpscRingBuffer<>(64);
+		int count = 1000000;
+		
+		Thread producer = new Thread(() -> {
+			for (int i = 0; i < count; i++) {
+				while (!ring.offer(i)) {
+					Thread.yield();
+				}
+			}
+		});
+		producer.start();
+		
+		for (int i = 0; i < count; i++) {
+			Integer element;
+			while ((element = ring.poll()) == null) {
+				Thread.yield();
+			}
+			
+			assertEquals(i, (int)element);
+		}
+		
+		producer.join();
+		assertTrue(ring.isEmpty());
+	}
+}
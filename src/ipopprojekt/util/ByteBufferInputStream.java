@@ -0,0 +1,49 @@
+package ipopprojekt.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream that reads from a byte buffer.
+ * Reaching the end of the buffer is reported as the end of the stream.
+ */
+public class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer buffer;
+	
+	/**
+	 * Creates a new input stream for the given buffer
+	 * @param buffer The buffer to read from
+	 */
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+	
+	@Override
+	public int read() {
+		if (!this.buffer.hasRemaining()) {
+			return -1;
+		}
+		
+		return this.buffer.get() & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] bytes, int offset, int length) {
+		if (length == 0) {
+			return 0;
+		}
+		
+		if (!this.buffer.hasRemaining()) {
+			return -1;
+		}
+		
+		int count = Math.min(length, this.buffer.remaining());
+		this.buffer.get(bytes, offset, count);
+		return count;
+	}
+	
+	@Override
+	public int available() {
+		return this.buffer.remaining();
+	}
+}
@@ -0,0 +1,219 @@
+package ipopprojekt.util;
+
+import java.util.Arrays;
+
+/**
+ * Detects duplicate messages using the sequence numbers of the senders.
+ * For each sender the highest received sequence number is stored together with a bitmap of the
+ * latest sequence numbers, so the memory used does not depend on the number of received messages.
+ * Messages older than the window are treated as duplicates. Senders that have been idle for too long are evicted.
+ * Checking a message from a known sender does not allocate.
+ */
+public class DuplicateFilter {
+	private static final int NO_SLOT = -1;
+	
+	private final int windowWords;
+	private final long idleTimeout;
+	
+	//The state of each sender is stored in a slot
+	private final IntIntMap slots = new IntIntMap(NO_SLOT);
+	private int[] senderIds = new int[0];
+	private int[] highest = new int[0];
+	private long[] lastReceived = new long[0];
+	private long[] windows = new long[0];
+	private int numSlots = 0;
+	
+	private int[] freeSlots = new int[0];
+	private int numFree = 0;
+	
+	private long lastEviction = 0;
+	
+	/**
+	 * Creates a new filter
+	 * @param windowSize The number of sequence numbers to remember per sender, rounded up to a multiple of 64
+	 * @param idleTimeout The time in milliseconds after which a sender without messages is forgotten
+	 */
+	public DuplicateFilter(int windowSize, long idleTimeout) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("The window size must be positive");
+		}
+		
+		this.windowWords = (windowSize + 63) >>> 6;
+		this.idleTimeout = idleTimeout;
+	}
+	
+	/**
+	 * Returns the number of sequence numbers remembered per sender
+	 */
+	public int windowSize() {
+		return this.windowWords * 64;
+	}
+	
+	/**
+	 * Returns the number of senders that are remembered
+	 */
+	public int numSenders() {
+		return this.slots.size();
+	}
+	
+	/**
+	 * Marks the given message as received
+	 * @param senderId The id of the sender
+	 * @param sequenceNumber The sequence number of the message
+	 * @param now The current time in milliseconds
+	 * @return True if the message had not been received before
+	 */
+	public boolean markReceived(int senderId, int sequenceNumber, long now) {
+		if (now - this.lastEviction >= this.idleTimeout / 2) {
+			this.evictIdle(now);
+		}
+		
+		int slot = this.slots.get(senderId);
+		if (slot == NO_SLOT) {
+			slot = this.allocateSlot(senderId);
+			this.highest[slot] = sequenceNumber;
+			this.lastReceived[slot] = now;
+			this.setBit(slot, sequenceNumber);
+			return true;
+		}
+		
+		this.lastReceived[slot] = now;
+		int ahead = sequenceNumber - this.highest[slot];
+		
+		if (ahead > 0) {
+			//Move the window forward, clearing the bits of the skipped sequence numbers
+			if (ahead >= this.windowSize()) {
+				Arrays.fill(this.windows, slot * this.windowWords, (slot + 1) * this.windowWords, 0);
+			} else {
+				for (int i = 1; i <= ahead; i++) {
+					this.clearBit(slot, this.highest[slot] + i);
+				}
+			}
+			
+			this.highest[slot] = sequenceNumber;
+			this.setBit(slot, sequenceNumber);
+			return true;
+		}
+		
+		//Too old to know if it has been received
+		if (-ahead >= this.windowSize()) {
+			return false;
+		}
+		
+		if (this.isSet(slot, sequenceNumber)) {
+			return false;
+		}
+		
+		this.setBit(slot, sequenceNumber);
+		return true;
+	}
+	
+	/**
+	 * Indicates if the given message has been received, without marking it.
+	 * Messages older than the window are treated as received.
+	 * @param senderId The id of the sender
+	 * @param sequenceNumber The sequence number of the message
+	 */
+	public boolean contains(int senderId, int sequenceNumber) {
+		int slot = this.slots.get(senderId);
+		if (slot == NO_SLOT) {
+			return false;
+		}
+		
+		int ahead = sequenceNumber - this.highest[slot];
+		if (ahead > 0) {
+			return false;
+		}
+		
+		return -ahead >= this.windowSize() || this.isSet(slot, sequenceNumber);
+	}
+	
+	/**
+	 * Forgets the senders that have not sent anything within the idle timeout
+	 * @param now The current time in milliseconds
+	 */
+	public void evictIdle(long now) {
+		this.lastEviction = now;
+		
+		for (int slot = 0; slot < this.numSlots; slot++) {
+			if (this.senderIds[slot] != NO_SLOT && now - this.lastReceived[slot] > this.idleTimeout) {
+				this.slots.remove(this.senderIds[slot]);
+				this.senderIds[slot] = NO_SLOT;
+				this.freeSlots[this.numFree++] = slot;
+			}
+		}
+	}
+	
+	/**
+	 * Allocates a slot for the given sender, with an empty window
+	 * @param senderId The id of the sender
+	 * @return The slot
+	 */
+	private int allocateSlot(int senderId) {
+		int slot;
+		if (this.numFree > 0) {
+			slot = this.freeSlots[--this.numFree];
+			Arrays.fill(this.windows, slot * this.windowWords, (slot + 1) * this.windowWords, 0);
+		} else {
+			slot = this.numSlots++;
+			
+			if (slot == this.senderIds.length) {
+				int capacity = Math.max(16, slot * 2);
+				this.senderIds = Arrays.copyOf(this.senderIds, capacity);
+				this.highest = Arrays.copyOf(this.highest, capacity);
+				this.lastReceived = Arrays.copyOf(this.lastReceived, capacity);
+				this.windows = Arrays.copyOf(this.windows, capacity * this.windowWords);
+				this.freeSlots = Arrays.copyOf(this.freeSlots, capacity);
+			}
+		}
+		
+		this.senderIds[slot] = senderId;
+		this.slots.put(senderId, slot);
+		return slot;
+	}
+	
+	/**
+	 * Returns the position of the word holding the bit of the given sequence number
+	 * @param slot The slot of the sender
+	 * @param sequenceNumber The sequence number
+	 */
+	private int wordIndex(int slot, int sequenceNumber) {
+		return slot * this.windowWords + (int)((sequenceNumber & 0xFFFFFFFFL) >>> 6) % this.windowWords;
+	}
+	
+	/**
+	 * Sets the bit of the given sequence number
+	 * @param slot The slot of the sender
+	 * @param sequenceNumber The sequence number
+	 */
+	private void setBit(int slot, int sequenceNumber) {
+		this.windows[this.wordIndex(slot, sequenceNumber)] |= 1L << sequenceNumber;
+	}
+	
+	/**
+	 * Clears the bit of the given sequence number
+	 * @param slot The slot of the sender
+	 * @param sequenceNumber The sequence number
+	 */
+	private void clearBit(int slot, int sequenceNumber) {
+		this.windows[this.wordIndex(slot, sequenceNumber)] &= ~(1L << sequenceNumber);
+	}
+	
+	/**
+	 * Indicates if the bit of the given sequence number is set
+	 * @param slot The slot of the sender
+	 * @param sequenceNumber The sequence number
+	 */
+	private boolean isSet(int slot, int sequenceNumber) {
+		return (this.windows[this.wordIndex(slot, sequenceNumber)] & (1L << sequenceNumber)) != 0;
+	}
+	
+	/**
+	 * Returns the estimated size of the filter in bytes
+	 */
+	public long estimatedBytes() {
+		return this.slots.estimatedBytes()
+			+ 4L * (this.senderIds.length + this.highest.length + this.freeSlots.length)
+			+ 8L * (this.lastReceived.length + this.windows.length);
+	}
+}
@@ -0,0 +1,150 @@
+package ipopprojekt.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The ways the long running IO loops can be executed
+ */
+public enum ExecutionBackend {
+	/**
+	 * Each loop runs in its own platform thread
+	 */
+	PLATFORM_THREADS,
+	
+	/**
+	 * The loops run in a shared, bounded thread pool.
+	 * Note that a loop holds its thread as long as it runs, so loops beyond the size of the pool wait until another loop ends.
+	 * It must therefore not be used for loops that only end with their connection, such as those of the blocking server transport.
+	 */
+	BOUNDED_POOL,
+	
+	/**
+	 * Each loop runs in its own virtual thread. Falls back to the bounded pool if the JVM does not support virtual threads.
+	 */
+	VIRTUAL_THREADS;
+	
+	/**
+	 * The system property used to select the backend
+	 */
+	public static final String PROPERTY = "ipopprojekt.execution";
+	
+	/**
+	 * The system property used to set the size of the bounded pool
+	 */
+	public static final String POOL_SIZE_PROPERTY = "ipopprojekt.poolSize";
+	
+	private static ExecutorService boundedPool;
+	private static ExecutorService virtualThreads;
+	
+	/**
+	 * Executes the given loop
+	 * @param loop The loop
+	 * @param name The name of the thread, if named threads are used
+	 */
+	public void execute(Runnable loop, String name) {
+		switch (this) {
+		case PLATFORM_THREADS:
+			new Thread(loop, name).start();
+			break;
+		case BOUNDED_POOL:
+			boundedPool().execute(loop);
+			break;
+		case VIRTUAL_THREADS:
+			virtualThreads().execute(loop);
+			break;
+		default:
+			break;
+		}
+	}
+	
+	/**
+	 * Indicates if the loops share a bounded number of threads, so that a loop may wait for another loop to end before it starts
+	 */
+	public boolean isBounded() {
+		return this == BOUNDED_POOL || (this == VIRTUAL_THREADS && !supportsVirtualThreads());
+	}
+	
+	/**
+	 * Returns the size of the bounded pool
+	 */
+	public static int poolSize() {
+		return Integer.getInteger(POOL_SIZE_PROPERTY, 1024);
+	}
+	
+	/**
+	 * Indicates if the JVM supports virtual threads
+	 */
+	public static boolean supportsVirtualThreads() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Returns the shared bounded pool
+	 */
+	private static synchronized ExecutorService boundedPool() {
+		if (boundedPool == null) {
+			boundedPool = Executors.newFixedThreadPool(poolSize());
+		}
+		
+		return boundedPool;
+	}
+	
+	/**
+	 * Returns the shared virtual thread executor, or the bounded pool if virtual threads are not supported
+	 */
+	private static synchronized ExecutorService virtualThreads() {
+		if (virtualThreads == null) {
+			try {
+				//Created via reflection as virtual threads only exists in Java 21 and later
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				virtualThreads = (ExecutorService)factory.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				System.err.println("Virtual threads require Java 21 or later, falling back to a bounded pool of " + poolSize() + " threads");
+				virtualThreads = boundedPool();
+			}
+		}
+		
+		return virtualThreads;
+	}
+	
+	/**
+	 * Returns the backend with the given name
+	 * @param name The name of the backend
+	 * @return The backend or null
+	 */
+	public static ExecutionBackend fromName(String name) {
+		switch (name.toLowerCase()) {
+		case "platform": return PLATFORM_THREADS;
+		case "pool": return BOUNDED_POOL;
+		case "virtual": return VIRTUAL_THREADS;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Returns the backend selected by the system property, or platform threads if not set
+	 */
+	public static ExecutionBackend fromSystemProperty() {
+		String name = System.getProperty(PROPERTY);
+		
+		if (name != null) {
+			ExecutionBackend backend = fromName(name);
+			
+			if (backend != null) {
+				return backend;
+			}
+			
+			System.err.println("Invalid execution backend '" + name + "', valid are: platform, pool, virtual");
+		}
+		
+		return PLATFORM_THREADS;
+	}
+}
@@ -0,0 +1,198 @@
+package ipopprojekt.util;
+
+import java.util.Arrays;
+
+/**
+ * A map from int to int using open addressing, which avoids boxing the keys and values.
+ * The key Integer.MIN_VALUE is reserved and can not be used.
+ */
+public class IntIntMap {
+	private static final int EMPTY = Integer.MIN_VALUE;
+	
+	private int[] keys;
+	private int[] values;
+	private int size;
+	private final int missingValue;
+	
+	/**
+	 * Creates a new map
+	 * @param missingValue The value returned for keys that are not in the map
+	 */
+	public IntIntMap(int missingValue) {
+		this.missingValue = missingValue;
+		this.allocate(16);
+	}
+	
+	/**
+	 * Allocates the tables with the given capacity
+	 * @param capacity The capacity, must be a power of two
+	 */
+	private void allocate(int capacity) {
+		this.keys = new int[capacity];
+		this.values = new int[capacity];
+		Arrays.fill(this.keys, EMPTY);
+	}
+	
+	/**
+	 * Returns the slot that the given key hashes to
+	 * @param key The key
+	 */
+	private int slotFor(int key) {
+		int hash = key * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (this.keys.length - 1);
+	}
+	
+	/**
+	 * Returns the number of entries in the map
+	 */
+	public int size() {
+		return this.size;
+	}
+	
+	/**
+	 * Returns the value for the given key, or the missing value if the key is not in the map
+	 * @param key The key
+	 */
+	public int get(int key) {
+		int mask = this.keys.length - 1;
+		for (int slot = this.slotFor(key); this.keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+			if (this.keys[slot] == key) {
+				return this.values[slot];
+			}
+		}
+		
+		return this.missingValue;
+	}
+	
+	/**
+	 * Indicates if the given key is in the map
+	 * @param key The key
+	 */
+	public boolean containsKey(int key) {
+		int mask = this.keys.length - 1;
+		for (int slot = this.slotFor(key); this.keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+			if (this.keys[slot] == key) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Sets the value for the given key
+	 * @param key The key
+	 * @param value The value
+	 */
+	public void put(int key, int value) {
+		if (key == EMPTY) {
+			throw new IllegalArgumentException("The key " + EMPTY + " is reserved");
+		}
+		
+		int mask = this.keys.length - 1;
+		int slot = this.slotFor(key);
+		for (; this.keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+			if (this.keys[slot] == key) {
+				this.values[slot] = value;
+				return;
+			}
+		}
+		
+		this.keys[slot] = key;
+		this.values[slot] = value;
+		this.size++;
+		
+		//Keep the load factor below 0.5
+		if (this.size * 2 > this.keys.length) {
+			this.rehash(this.keys.length * 2);
+		}
+	}
+	
+	/**
+	 * Removes the given key
+	 * @param key The key
+	 * @return The removed value, or the missing value if the key was not in the map
+	 */
+	public int remove(int key) {
+		int mask = this.keys.length - 1;
+		int slot = this.slotFor(key);
+		for (; this.keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+			if (this.keys[slot] == key) {
+				int value = this.values[slot];
+				this.shiftBack(slot);
+				this.size--;
+				return value;
+			}
+		}
+		
+		return this.missingValue;
+	}
+	
+	/**
+	 * Fills the given free slot by moving back the entries after it, so lookups do not need tombstones
+	 * @param freeSlot The slot
+	 */
+	private void shiftBack(int freeSlot) {
+		int mask = this.keys.length - 1;
+		int slot = (freeSlot + 1) & mask;
+		
+		while (this.keys[slot] != EMPTY) {
+			int home = this.slotFor(this.keys[slot]);
+			
+			//The entry can be moved if the free slot is between its home and its current slot
+			boolean canMove = freeSlot <= slot
+				? (home <= freeSlot || home > slot)
+				: (home <= freeSlot && home > slot);
+			
+			if (canMove) {
+				this.keys[freeSlot] = this.keys[slot];
+				this.values[freeSlot] = this.values[slot];
+				freeSlot = slot;
+			}
+			
+			slot = (slot + 1) & mask;
+		}
+		
+		this.keys[freeSlot] = EMPTY;
+	}
+	
+	/**
+	 * Returns the keys in the map, in no particular order
+	 */
+	public int[] keys() {
+		int[] keys = new int[this.size];
+		int numKeys = 0;
+		
+		for (int i = 0; i < this.keys.length; i++) {
+			if (this.keys[i] != EMPTY) {
+				keys[numKeys++] = this.keys[i];
+			}
+		}
+		
+		return keys;
+	}
+	
+	/**
+	 * Moves the entries to tables with the given capacity
+	 * @param capacity The new capacity
+	 */
+	private void rehash(int capacity) {
+		int[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+		this.allocate(capacity);
+		this.size = 0;
+		
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				this.put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the estimated size of the map in bytes
+	 */
+	public long estimatedBytes() {
+		return 2L * 4 * this.keys.length;
+	}
+}
@@ -0,0 +1,153 @@
+package ipopprojekt.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Puts together messages that have been split into fragments, which can arrive in any order.
+ * The memory used by incomplete messages is bounded, and the oldest incomplete messages are discarded to make room.
+ * Messages that are not complete within the timeout are discarded as well.
+ */
+public class Reassembler {
+	private final long maxBytes;
+	private final long timeout;
+	
+	//The incomplete messages, oldest first
+	private final Map<Long, Partial> partials = new LinkedHashMap<>();
+	private long numBytes = 0;
+	private long numDiscarded = 0;
+	
+	/**
+	 * Creates a new reassembler
+	 * @param maxBytes The largest number of bytes held by incomplete messages
+	 * @param timeout The time in milliseconds after which an incomplete message is discarded
+	 */
+	public Reassembler(long maxBytes, long timeout) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("The number of bytes must be positive");
+		}
+		
+		this.maxBytes = maxBytes;
+		this.timeout = timeout;
+	}
+	
+	/**
+	 * Adds a fragment of a message
+	 * @param key Identifies the message
+	 * @param index The index of the fragment
+	 * @param numFragments The number of fragments of the message
+	 * @param fragment The fragment
+	 * @param now The current time in milliseconds
+	 * @return The message if this was the last missing fragment, otherwise null
+	 */
+	public byte[] add(long key, int index, int numFragments, byte[] fragment, long now) {
+		this.discardExpired(now);
+		
+		if (index < 0 || index >= numFragments || fragment.length > this.maxBytes) {
+			return null;
+		}
+		
+		Partial partial = this.partials.get(key);
+		if (partial == null) {
+			partial = new Partial(numFragments, now);
+			this.partials.put(key, partial);
+		} else if (partial.fragments.length != numFragments) {
+			return null;
+		}
+		
+		if (partial.fragments[index] != null) {
+			return null;
+		}
+		
+		partial.fragments[index] = fragment;
+		partial.numReceived++;
+		partial.numBytes += fragment.length;
+		this.numBytes += fragment.length;
+		
+		if (partial.numReceived == numFragments) {
+			this.partials.remove(key);
+			this.numBytes -= partial.numBytes;
+			return partial.join();
+		}
+		
+		//Make room by discarding the oldest messages, which can be this one
+		Iterator<Partial> oldest = this.partials.values().iterator();
+		while (this.numBytes > this.maxBytes) {
+			this.numBytes -= oldest.next().numBytes;
+			oldest.remove();
+			this.numDiscarded++;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Discards the incomplete messages that have been waiting longer than the timeout
+	 * @param now The current time in milliseconds
+	 */
+	public void discardExpired(long now) {
+		Iterator<Partial> oldest = this.partials.values().iterator();
+		while (oldest.hasNext()) {
+			Partial partial = oldest.next();
+			if (now - partial.created <= this.timeout) {
+				break;
+			}
+			
+			this.numBytes -= partial.numBytes;
+			oldest.remove();
+			this.numDiscarded++;
+		}
+	}
+	
+	/**
+	 * Returns the number of incomplete messages
+	 */
+	public int numPending() {
+		return this.partials.size();
+	}
+	
+	/**
+	 * Returns the number of bytes held by incomplete messages
+	 */
+	public long numPendingBytes() {
+		return this.numBytes;
+	}
+	
+	/**
+	 * Returns the number of messages discarded before they were complete
+	 */
+	public long numDiscarded() {
+		return this.numDiscarded;
+	}
+	
+	/**
+	 * The received fragments of a message
+	 */
+	private static class Partial {
+		public final byte[][] fragments;
+		public final long created;
+		public int numReceived = 0;
+		public int numBytes = 0;
+		
+		public Partial(int numFragments, long created) {
+			this.fragments = new byte[numFragments][];
+			this.created = created;
+		}
+		
+		/**
+		 * Returns the fragments joined in order
+		 */
+		public byte[] join() {
+			byte[] message = new byte[this.numBytes];
+			int position = 0;
+			
+			for (byte[] fragment : this.fragments) {
+				System.arraycopy(fragment, 0, message, position, fragment.length);
+				position += fragment.length;
+			}
+			
+			return message;
+		}
+	}
+}
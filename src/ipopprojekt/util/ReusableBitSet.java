@@ -0,0 +1,73 @@
+package ipopprojekt.util;
+
+import java.util.Arrays;
+
+/**
+ * A bit set meant to be cleared and reused often, for example as the visited set of graph searches.
+ * Clearing only resets the words that have been set, so a search that visits few nodes is cheap to clear.
+ */
+public class ReusableBitSet {
+	private long[] words = new long[0];
+	private int[] touchedWords = new int[0];
+	private int numTouched = 0;
+	
+	/**
+	 * Makes sure that the set can hold the given number of bits. Clears the set if it needs to grow.
+	 * @param numBits The number of bits
+	 */
+	public void ensureCapacity(int numBits) {
+		int numWords = (numBits + 63) >>> 6;
+		
+		if (numWords > this.words.length) {
+			int capacity = Math.max(numWords, this.words.length * 2);
+			this.words = new long[capacity];
+			this.touchedWords = new int[capacity];
+			this.numTouched = 0;
+		}
+	}
+	
+	/**
+	 * Adds the given index to the set
+	 * @param index The index
+	 * @return True if the index was not already in the set
+	 */
+	public boolean add(int index) {
+		int wordIndex = index >>> 6;
+		long word = this.words[wordIndex];
+		long bit = 1L << index;
+		
+		if ((word & bit) != 0) {
+			return false;
+		}
+		
+		if (word == 0) {
+			this.touchedWords[this.numTouched++] = wordIndex;
+		}
+		
+		this.words[wordIndex] = word | bit;
+		return true;
+	}
+	
+	/**
+	 * Indicates if the given index is in the set
+	 * @param index The index
+	 */
+	public boolean contains(int index) {
+		return (this.words[index >>> 6] & (1L << index)) != 0;
+	}
+	
+	/**
+	 * Clears the set
+	 */
+	public void clear() {
+		if (this.numTouched > this.words.length / 8) {
+			Arrays.fill(this.words, 0);
+		} else {
+			for (int i = 0; i < this.numTouched; i++) {
+				this.words[this.touchedWords[i]] = 0;
+			}
+		}
+		
+		this.numTouched = 0;
+	}
+}
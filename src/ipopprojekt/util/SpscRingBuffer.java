@@ -0,0 +1,108 @@
+package ipopprojekt.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded lock-free queue for one producer thread and one consumer thread.
+ * The elements are stored in an array used as a ring, indexed by ever increasing head and tail counters.
+ * Each thread caches the counter of the other thread, so the shared counters are only read when the ring looks full or empty.
+ * @param <T> The type of the elements
+ */
+public class SpscRingBuffer<T> {
+	private final Object[] elements;
+	private final int mask;
+	
+	//The next element to poll, written by the consumer
+	private final AtomicLong head = new AtomicLong();
+	//The next free slot, written by the producer
+	private final AtomicLong tail = new AtomicLong();
+	
+	private long cachedHead = 0;
+	private long cachedTail = 0;
+	
+	/**
+	 * Creates a new ring buffer
+	 * @param capacity The capacity, rounded up to a power of two
+	 */
+	public SpscRingBuffer(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		
+		this.elements = new Object[size];
+		this.mask = size - 1;
+	}
+	
+	/**
+	 * Returns the capacity
+	 */
+	public int capacity() {
+		return this.elements.length;
+	}
+	
+	/**
+	 * Adds the given element. May only be called by the producer.
+	 * The tail is published with a volatile write, so a consumer that sees the ring as empty and then goes to sleep
+	 * can rely on the producer seeing that it sleeps.
+	 * @param element The element
+	 * @return False if the ring is full
+	 */
+	public boolean offer(T element) {
+		long tail = this.tail.get();
+		
+		if (tail - this.cachedHead >= this.elements.length) {
+			this.cachedHead = this.head.get();
+			
+			if (tail - this.cachedHead >= this.elements.length) {
+				return false;
+			}
+		}
+		
+		this.elements[(int)tail & this.mask] = element;
+		this.tail.set(tail + 1);
+		return true;
+	}
+	
+	/**
+	 * Removes the oldest element. May only be called by the consumer.
+	 * @return The element, or null if the ring is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll() {
+		long head = this.head.get();
+		
+		if (head >= this.cachedTail) {
+			this.cachedTail = this.tail.get();
+			
+			if (head >= this.cachedTail) {
+				return null;
+			}
+		}
+		
+		int index = (int)head & this.mask;
+		T element = (T)this.elements[index];
+		this.elements[index] = null;
+		this.head.lazySet(head + 1);
+		return element;
+	}
+	
+	/**
+	 * Returns the number of elements in the ring. May be called by any thread.
+	 */
+	public int size() {
+		long head = this.head.get();
+		return (int)Math.max(0, this.tail.get() - head);
+	}
+	
+	/**
+	 * Indicates if the ring is empty. May be called by any thread.
+	 */
+	public boolean isEmpty() {
+		return this.size() == 0;
+	}
+}